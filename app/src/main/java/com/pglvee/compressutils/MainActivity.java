@@ -3,6 +3,7 @@ package com.pglvee.compressutils;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.View;
 
@@ -14,9 +15,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.pglvee.lib_compress.CompressUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -30,9 +29,8 @@ public class MainActivity extends AppCompatActivity {
         final ActivityResultLauncher<String> register = registerForActivityResult(new ActivityResultContracts.GetContent(), new ActivityResultCallback<Uri>() {
             @Override
             public void onActivityResult(Uri result) {
-                File file = uri2File(result);
-                if (file.exists())
-                    compress(file);
+                if (result != null)
+                    compress(result);
 
             }
         });
@@ -44,26 +42,19 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private File uri2File(Uri uri) {
-        File targetFile = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "original.jpg");
-        try (InputStream inputStream = getContentResolver().openInputStream(uri);
-             OutputStream outputStream = new FileOutputStream(targetFile)) {
-            int read;
-            byte[] buffer = new byte[64 * 1024];
-            while ((read = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, read);
-            }
-            outputStream.flush();
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
-        }
-        return targetFile;
-    }
-
-    private void compress(File targetFile) {
+    /**
+     * 直接从content URI的文件描述符读取，不需要先复制到应用目录
+     */
+    private void compress(Uri uri) {
         long start = System.currentTimeMillis();
         File destinationFile = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "destination.jpg");
-        CompressUtils.newInstance().size(1920).src(targetFile).dst(destinationFile).max(200 * 1024).crop(6f).thumbnail();
+        try (ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(uri, "r")) {
+            if (fd == null)
+                return;
+            CompressUtils.newInstance().size(1920).src(fd).dst(destinationFile).max(200 * 1024).crop(6f).thumbnail();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+        }
         Log.e(TAG, "compress time : " + (System.currentTimeMillis() - start) + " ms, image file size : " + destinationFile.length());
     }
 
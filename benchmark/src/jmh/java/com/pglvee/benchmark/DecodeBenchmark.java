@@ -0,0 +1,44 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * jpeg解码到ARGB_8888，denominator大于1时在DCT域中缩放
+ */
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    @Param({Corpus.CAMERA, Corpus.PANORAMA})
+    public String corpus;
+
+    @Param({"1", "2", "4", "8"})
+    public int denominator;
+
+    private ByteBuffer data;
+    private HostBitmap bitmap;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Corpus.load(corpus);
+        int[] info = NativeCodec.probe(data);
+        int[] size = NativeCodec.scaledSize(info[1], info[2], denominator);
+        bitmap = new HostBitmap(size[0], size[1]);
+    }
+
+    @Benchmark
+    public int decode() {
+        return NativeCodec.bitmapDecompress(data, bitmap);
+    }
+
+    @Benchmark
+    public int[] probe() {
+        return NativeCodec.probe(data);
+    }
+}
@@ -0,0 +1,47 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * ARGB_8888编码为jpeg，对应{@code CompressUtils.image()}的固定质量编码
+ */
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    @Param({Corpus.CAMERA, Corpus.SCREENSHOT})
+    public String corpus;
+
+    @Param({"75", "92"})
+    public int quality;
+
+    /** CompressRequest.OUTPUT_*：baseline、optimized、progressive */
+    @Param({"0", "1", "2"})
+    public int output;
+
+    /** CompressRequest.SUBSAMPLING_*：默认4:2:0、按像素选择；截图选择4:4:4时输出更大，但文字更清晰 */
+    @Param({"0", "1"})
+    public int subsampling;
+
+    /** 编码一张图片最多使用的线程数，0为CPU核数；相机照片超过4M像素，按条带并行编码 */
+    @Param({"1", "0"})
+    public int threads;
+
+    private HostBitmap bitmap;
+
+    @Setup
+    public void setup() throws IOException {
+        bitmap = Corpus.decode(corpus);
+        NativeCodec.setEncodeThreadLimit(threads);
+    }
+
+    @Benchmark
+    public int encode() {
+        return NativeCodec.takeResult(NativeCodec.bitmapCompress(bitmap, quality, 0, 0, output | subsampling << 4, null)).length;
+    }
+}
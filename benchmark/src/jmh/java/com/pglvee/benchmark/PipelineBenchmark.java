@@ -0,0 +1,143 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 相机照片从文件数据到输出jpeg的吞吐量，按CompressEngine对jpeg输入选择的路径依次执行native的各个阶段：
+ * <ul>
+ * <li>image：probe之后在YUV平面上缩放、旋转并按固定质量编码</li>
+ * <li>thumbnail：probe之后缩放解码到ARGB_8888，再在maxSize以内搜索质量</li>
+ * <li>transform：不缩放时的无损旋转</li>
+ * <li>passThrough：原图已经满足尺寸和质量时只去掉元数据，与transform比较</li>
+ * <li>renditions：一次上传的三个尺寸，每个尺寸单独解码</li>
+ * <li>renditionsShared：三个尺寸只解码一次，较小的尺寸从上一级YUV平面缩小</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+
+    private static final int QUALITY = 85;
+    private static final long MAX_SIZE = 200 * 1024;
+    /** 原图、信息流和预览的长边，size参数不影响 */
+    private static final int[] RENDITIONS = {1920, 1080, 240};
+
+    @Param({"1280", "2560"})
+    public int size;
+
+    private ByteBuffer data;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Corpus.load(Corpus.CAMERA);
+    }
+
+    @Benchmark
+    public int image() {
+        int[] info = NativeCodec.probe(data);
+        float scale = Math.max(1f, (float) Math.max(info[1], info[2]) / size);
+        int[] scaled = NativeCodec.scaledSize(info[1], info[2], scale);
+        return NativeCodec.takeResult(NativeCodec.jpegYuvCompress(data, null, data.position(), data.remaining(),
+                scaled[0], scaled[1], 0, 0, scaled[0], scaled[1], (int) (info[1] / scale), (int) (info[2] / scale),
+                degree(info[5]), QUALITY, 0, 0, 0, null)).length;
+    }
+
+    @Benchmark
+    public int thumbnail() {
+        int[] info = NativeCodec.probe(data);
+        float scale = Math.max(1f, (float) Math.max(info[1], info[2]) / size);
+        int[] scaled = NativeCodec.scaledSize(info[1], info[2], scale);
+        HostBitmap bitmap = new HostBitmap(scaled[0], scaled[1]);
+        if (NativeCodec.bitmapDecompress(data, bitmap) < 0)
+            throw new IllegalStateException("decode failed");
+        return NativeCodec.takeResult(NativeCodec.bitmapCompress(bitmap, 100, MAX_SIZE, 0, 0, null)).length;
+    }
+
+    @Benchmark
+    public int transform() {
+        int[] info = NativeCodec.probe(data);
+        return NativeCodec.takeResult(NativeCodec.transformCompress(data, null, data.position(), data.remaining(),
+                degree(info[5]), 0, 0, info[1], info[2], 0)).length;
+    }
+
+    @Benchmark
+    public int passThrough() {
+        // probe同时从量化表估计原图的质量，CompressEngine据此决定是否直接输出
+        if (NativeCodec.probe(data)[6] < 0)
+            throw new IllegalStateException("no quantization table");
+        return NativeCodec.takeResult(NativeCodec.copyWithoutMetadata(data, null, data.position(), data.remaining())).length;
+    }
+
+    @Benchmark
+    public int renditions() {
+        int[] info = NativeCodec.probe(data);
+        int total = 0;
+        for (int size : RENDITIONS) {
+            float scale = Math.max(1f, (float) Math.max(info[1], info[2]) / size);
+            int[] scaled = NativeCodec.scaledSize(info[1], info[2], scale);
+            total += NativeCodec.takeResult(NativeCodec.jpegYuvCompress(data, null, data.position(), data.remaining(),
+                    scaled[0], scaled[1], 0, 0, scaled[0], scaled[1], (int) (info[1] / scale), (int) (info[2] / scale),
+                    degree(info[5]), QUALITY, 0, 0, 0, null)).length;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int renditionsShared() {
+        int[] info = NativeCodec.probe(data);
+        float scale = Math.max(1f, (float) Math.max(info[1], info[2]) / RENDITIONS[0]);
+        int[] level = NativeCodec.scaledSize(info[1], info[2], scale);
+        long planes = NativeCodec.decodePlanes(data, null, data.position(), data.remaining(), level[0], level[1]);
+        if (planes == 0)
+            throw new IllegalStateException("decode failed");
+        long[] levels = new long[RENDITIONS.length + 1];
+        levels[0] = planes;
+        int total = 0;
+        try {
+            for (int i = 0; i < RENDITIONS.length; i++) {
+                scale = Math.max(1f, (float) Math.max(info[1], info[2]) / RENDITIONS[i]);
+                int width = (int) (info[1] / scale), height = (int) (info[2] / scale);
+                if (width * 2 <= level[0] && height * 2 <= level[1]) {
+                    planes = levels[i + 1] = NativeCodec.scalePlanes(planes, width, height);
+                    if (planes == 0)
+                        throw new IllegalStateException("scale failed");
+                    level = new int[]{width, height};
+                }
+                total += NativeCodec.takeResult(NativeCodec.planesCompress(planes, 0, 0, level[0], level[1], width, height,
+                        degree(info[5]), QUALITY, 0, 0, 0, null)).length;
+            }
+        } finally {
+            for (long l : levels)
+                NativeCodec.releasePlanes(l);
+        }
+        return total;
+    }
+
+    /**
+     * 与ImageUtils.getOrientationDegree相同
+     */
+    private static int degree(int orientation) {
+        switch (orientation) {
+            case 6:
+                return 90;
+            case 3:
+                return 180;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+}
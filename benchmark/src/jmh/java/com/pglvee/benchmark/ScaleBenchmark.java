@@ -0,0 +1,82 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 在YUV平面上缩放后编码：相机照片先按TurboJPEG缩放因子解码，再缩放到输出尺寸；
+ * 相机预览的NV21直接缩放。与不缩放的同一条路径对比，差值即为缩放的开销
+ */
+@State(Scope.Thread)
+public class ScaleBenchmark {
+
+    private static final int QUALITY = 85;
+    private static final int PREVIEW_WIDTH = 1920;
+    private static final int PREVIEW_HEIGHT = 1080;
+
+    @Param({"1280", "720"})
+    public int size;
+
+    private ByteBuffer jpeg;
+    private int[] scaled;
+    private int outWidth;
+    private int outHeight;
+    private byte[] nv21;
+    private int[] offsets;
+    private int[] rowStrides;
+
+    @Setup
+    public void setup() throws IOException {
+        jpeg = Corpus.load(Corpus.CAMERA);
+        int[] info = NativeCodec.probe(jpeg);
+        float scale = (float) Math.max(info[1], info[2]) / size;
+        scaled = NativeCodec.scaledSize(info[1], info[2], scale);
+        outWidth = (int) (info[1] / scale);
+        outHeight = (int) (info[2] / scale);
+        HostBitmap preview = new HostBitmap(info[1] / 2, info[2] / 2);
+        if (NativeCodec.bitmapDecompress(jpeg, preview) < 0)
+            throw new IOException("failed to decode " + Corpus.CAMERA);
+        nv21 = Corpus.nv21(preview, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        int uvStride = (PREVIEW_WIDTH + 1) / 2 * 2;
+        offsets = new int[]{0, PREVIEW_WIDTH * PREVIEW_HEIGHT + 1, PREVIEW_WIDTH * PREVIEW_HEIGHT};
+        rowStrides = new int[]{PREVIEW_WIDTH, uvStride, uvStride};
+    }
+
+    @Benchmark
+    public int jpegScale() {
+        return take(NativeCodec.jpegYuvCompress(jpeg, null, jpeg.position(), jpeg.remaining(), scaled[0], scaled[1],
+                0, 0, scaled[0], scaled[1], outWidth, outHeight, 0, QUALITY, 0, 0, 0, null));
+    }
+
+    /**
+     * 同样的缩放解码，不再缩放
+     */
+    @Benchmark
+    public int jpegNoScale() {
+        return take(NativeCodec.jpegYuvCompress(jpeg, null, jpeg.position(), jpeg.remaining(), scaled[0], scaled[1],
+                0, 0, scaled[0], scaled[1], scaled[0], scaled[1], 0, QUALITY, 0, 0, 0, null));
+    }
+
+    @Benchmark
+    public int nv21Scale() {
+        int outHeight = PREVIEW_HEIGHT * size / PREVIEW_WIDTH;
+        return take(NativeCodec.yuvCompress(null, null, null, nv21, offsets, rowStrides, 2, PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT, size, outHeight, 0, QUALITY, 0, 0, 0, null));
+    }
+
+    @Benchmark
+    public int nv21NoScale() {
+        return take(NativeCodec.yuvCompress(null, null, null, nv21, offsets, rowStrides, 2, PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_WIDTH, PREVIEW_HEIGHT, 0, QUALITY, 0, 0, 0, null));
+    }
+
+    private static int take(long result) {
+        return NativeCodec.takeResult(result).length;
+    }
+}
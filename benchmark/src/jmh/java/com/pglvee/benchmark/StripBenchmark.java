@@ -0,0 +1,46 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * 全景照片的条带压缩与整张编码对比，条带高度的计算与CompressEngine相同
+ */
+@State(Scope.Thread)
+public class StripBenchmark {
+
+    private static final int QUALITY = 90;
+    private static final int MAX_RESTART_INTERVAL = 65535;
+
+    private HostBitmap bitmap;
+    private int stripHeight;
+
+    @Setup
+    public void setup() throws IOException {
+        bitmap = Corpus.decode(Corpus.PANORAMA);
+        stripHeight = Math.min(256, MAX_RESTART_INTERVAL / ((bitmap.width + 7) / 8) * 8) / 16 * 16;
+    }
+
+    @Benchmark
+    public int strips() {
+        long encoder = NativeCodec.beginStrips(bitmap.width, bitmap.height, QUALITY, 0, stripHeight);
+        if (encoder == 0)
+            throw new IllegalStateException("beginStrips failed");
+        for (int row = 0; row < bitmap.height; row += stripHeight) {
+            if (NativeCodec.writeStrip(encoder, bitmap, row, Math.min(stripHeight, bitmap.height - row)) < 0) {
+                NativeCodec.abortStrips(encoder);
+                throw new IllegalStateException("writeStrip failed");
+            }
+        }
+        return NativeCodec.takeResult(NativeCodec.finishStrips(encoder, 0)).length;
+    }
+
+    @Benchmark
+    public int whole() {
+        return NativeCodec.takeResult(NativeCodec.bitmapCompress(bitmap, QUALITY, 0, 0, 0, null)).length;
+    }
+}
@@ -0,0 +1,62 @@
+package com.pglvee.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@code CompressUtils.thumbnail()}的质量搜索：在maxSize以内找出最高的质量。
+ * 相机照片的输入为按size在DCT域中缩放解码的图片，之后的Canvas缩放无法在桌面JVM上运行
+ */
+@State(Scope.Thread)
+public class ThumbnailBenchmark {
+
+    @Param({Corpus.CAMERA, Corpus.SCREENSHOT})
+    public String corpus;
+
+    @Param({"1280"})
+    public int size;
+
+    @Param({"51200", "204800"})
+    public long maxSize;
+
+    /** CompressRequest.OUTPUT_*，优化Huffman表之后同样的maxSize可以得到更高的质量 */
+    @Param({"0", "1"})
+    public int output;
+
+    private HostBitmap bitmap;
+
+    @Setup
+    public void setup() throws IOException {
+        if (corpus.equals(Corpus.SCREENSHOT)) {
+            bitmap = Corpus.decode(corpus);
+            return;
+        }
+        ByteBuffer data = Corpus.load(corpus);
+        int[] info = NativeCodec.probe(data);
+        int[] scaled = NativeCodec.scaledSize(info[1], info[2], (float) Math.max(info[1], info[2]) / size);
+        bitmap = new HostBitmap(scaled[0], scaled[1]);
+        if (NativeCodec.bitmapDecompress(data, bitmap) < 0)
+            throw new IOException("failed to decode " + corpus);
+    }
+
+    /**
+     * @return 搜索得到的质量
+     */
+    @Benchmark
+    public int thumbnail() {
+        long result = NativeCodec.bitmapCompress(bitmap, 100, maxSize, 0, output, null);
+        if (result == 0)
+            throw new IllegalStateException("thumbnail failed");
+        try {
+            return NativeCodec.resultInfo(result)[3];
+        } finally {
+            NativeCodec.freeResult(result);
+        }
+    }
+}
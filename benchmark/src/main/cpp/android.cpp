@@ -0,0 +1,54 @@
+//
+// Host implementation of the NDK log and bitmap functions used by light.cpp.
+//
+
+#include <cstdarg>
+#include <cstdio>
+#include <cstdlib>
+#include <android/bitmap.h>
+#include <android/log.h>
+
+extern "C" int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    static const bool enabled = getenv("LIGHT_LOG") != nullptr;
+    va_list args;
+    int retval;
+
+    if (!enabled) return 0;
+    va_start(args, fmt);
+    fprintf(stderr, "%s: ", tag);
+    retval = vfprintf(stderr, fmt, args);
+    va_end(args);
+    return retval;
+}
+
+extern "C" int AndroidBitmap_getInfo(JNIEnv *env, jobject jbitmap, AndroidBitmapInfo *info) {
+    jclass clazz;
+
+    if (jbitmap == nullptr || info == nullptr) return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+    if ((clazz = env->GetObjectClass(jbitmap)) == nullptr) return ANDROID_BITMAP_RESULT_JNI_EXCEPTION;
+    info->width = (uint32_t) env->GetIntField(jbitmap, env->GetFieldID(clazz, "width", "I"));
+    info->height = (uint32_t) env->GetIntField(jbitmap, env->GetFieldID(clazz, "height", "I"));
+    info->stride = (uint32_t) env->GetIntField(jbitmap, env->GetFieldID(clazz, "stride", "I"));
+    info->format = ANDROID_BITMAP_FORMAT_RGBA_8888;
+    info->flags = 0;
+    env->DeleteLocalRef(clazz);
+    return env->ExceptionCheck() ? ANDROID_BITMAP_RESULT_JNI_EXCEPTION : ANDROID_BITMAP_RESULT_SUCCESS;
+}
+
+extern "C" int AndroidBitmap_lockPixels(JNIEnv *env, jobject jbitmap, void **addrPtr) {
+    jclass clazz;
+    jobject pixels;
+
+    if (jbitmap == nullptr || addrPtr == nullptr) return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+    if ((clazz = env->GetObjectClass(jbitmap)) == nullptr) return ANDROID_BITMAP_RESULT_JNI_EXCEPTION;
+    pixels = env->GetObjectField(jbitmap, env->GetFieldID(clazz, "pixels", "Ljava/nio/ByteBuffer;"));
+    env->DeleteLocalRef(clazz);
+    if (pixels == nullptr) return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+    *addrPtr = env->GetDirectBufferAddress(pixels);
+    env->DeleteLocalRef(pixels);
+    return *addrPtr != nullptr ? ANDROID_BITMAP_RESULT_SUCCESS : ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+}
+
+extern "C" int AndroidBitmap_unlockPixels(JNIEnv *env, jobject jbitmap) {
+    return jbitmap != nullptr ? ANDROID_BITMAP_RESULT_SUCCESS : ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+}
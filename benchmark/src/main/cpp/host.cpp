@@ -0,0 +1,129 @@
+//
+// Binds the JNI functions of light.cpp to com.pglvee.benchmark.NativeCodec, so that the desktop JVM calls
+// exactly the code that runs on Android.  android.graphics.Bitmap is replaced by HostBitmap.
+//
+
+#include <jni.h>
+
+#define BUFFER "Ljava/nio/ByteBuffer;"
+#define BITMAP "Lcom/pglvee/benchmark/HostBitmap;"
+
+extern "C" {
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_bitmapCompress(JNIEnv *, jclass, jobject, jint, jlong, jfloat, jint, jobject);
+JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_bitmapDecompress(JNIEnv *, jclass, jobject, jbyteArray, jint, jint,
+                                                              jobject);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_transformCompress(JNIEnv *, jclass, jobject, jbyteArray, jint, jint,
+                                                               jint, jint, jint, jint, jint, jint);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_copyWithoutMetadata(JNIEnv *, jclass, jobject, jbyteArray, jint, jint);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_yuvCompress(JNIEnv *, jclass, jobject, jobject, jobject, jbyteArray,
+                                                         jintArray, jintArray, jint, jint, jint, jint, jint, jint,
+                                                         jint, jint, jint, jint, jint, jlong, jfloat, jint, jobject);
+JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_yuvToBitmap(JNIEnv *, jclass, jobject, jobject, jobject, jbyteArray,
+                                                         jintArray, jintArray, jint, jint, jint, jobject);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_jpegYuvCompress(JNIEnv *, jclass, jobject, jbyteArray, jint, jint,
+                                                             jint, jint, jint, jint, jint, jint, jint, jint, jint,
+                                                             jint, jlong, jfloat, jint, jobject);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_decodePlanes(JNIEnv *, jclass, jobject, jbyteArray, jint, jint, jint, jint);
+JNIEXPORT jlong JNICALL Java_com_pglvee_lib_1compress_CompressEngine_scalePlanes(JNIEnv *, jclass, jlong, jint, jint);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_planesCompress(JNIEnv *, jclass, jlong, jint, jint, jint, jint, jint, jint,
+                                                            jint, jint, jlong, jfloat, jint, jobject);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_releasePlanes(JNIEnv *, jclass, jlong);
+JNIEXPORT jintArray JNICALL Java_com_pglvee_lib_1compress_CompressEngine_resultInfo(JNIEnv *, jclass, jlong);
+JNIEXPORT jlongArray JNICALL Java_com_pglvee_lib_1compress_CompressEngine_resultMetrics(JNIEnv *, jclass, jlong);
+JNIEXPORT jint JNICALL Java_com_pglvee_lib_1compress_CompressEngine_writeResult(JNIEnv *, jclass, jlong, jstring);
+JNIEXPORT jbyteArray JNICALL Java_com_pglvee_lib_1compress_CompressEngine_getResult(JNIEnv *, jclass, jlong);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_freeResult(JNIEnv *, jclass, jlong);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_beginStrips(JNIEnv *, jclass, jint, jint, jint, jint, jint);
+JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_writeStrip(JNIEnv *, jclass, jlong, jobject, jint, jint);
+JNIEXPORT jlong JNICALL Java_com_pglvee_lib_1compress_CompressEngine_finishStrips(JNIEnv *, jclass, jlong, jint);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_abortStrips(JNIEnv *, jclass, jlong);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_setBufferPoolLimit(JNIEnv *, jclass, jlong);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_trimBufferPool(JNIEnv *, jclass, jlong);
+JNIEXPORT void JNICALL Java_com_pglvee_lib_1compress_CompressEngine_setEncodeThreadLimit(JNIEnv *, jclass, jint);
+JNIEXPORT jintArray JNICALL Java_com_pglvee_lib_1compress_CompressEngine_scalingFactors(JNIEnv *, jclass);
+JNIEXPORT jintArray JNICALL
+Java_com_pglvee_lib_1compress_ImageInfo_probe(JNIEnv *, jclass, jobject, jbyteArray, jint, jint);
+JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_ResultCache_hash(JNIEnv *, jclass, jobject, jbyteArray, jint, jint, jlong);
+}
+
+static const JNINativeMethod methods[] = {
+        {(char *) "bitmapCompress",     (char *) "(" BITMAP "IJFI" BUFFER ")J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_bitmapCompress},
+        {(char *) "bitmapDecompress",   (char *) "(" BUFFER "[BII" BITMAP ")I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_bitmapDecompress},
+        {(char *) "transformCompress",  (char *) "(" BUFFER "[BIIIIIIII)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_transformCompress},
+        {(char *) "copyWithoutMetadata", (char *) "(" BUFFER "[BII)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_copyWithoutMetadata},
+        {(char *) "yuvCompress",        (char *) "(" BUFFER BUFFER BUFFER "[B[I[IIIIIIIIIIIIJFI" BUFFER ")J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_yuvCompress},
+        {(char *) "yuvToBitmap",        (char *) "(" BUFFER BUFFER BUFFER "[B[I[IIII" BITMAP ")I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_yuvToBitmap},
+        {(char *) "jpegYuvCompress",    (char *) "(" BUFFER "[BIIIIIIIIIIIIJFI" BUFFER ")J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_jpegYuvCompress},
+        {(char *) "decodePlanes",       (char *) "(" BUFFER "[BIIII)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_decodePlanes},
+        {(char *) "scalePlanes",        (char *) "(JII)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_scalePlanes},
+        {(char *) "planesCompress",     (char *) "(JIIIIIIIIJFI" BUFFER ")J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_planesCompress},
+        {(char *) "releasePlanes",      (char *) "(J)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_releasePlanes},
+        {(char *) "resultInfo",         (char *) "(J)[I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_resultInfo},
+        {(char *) "resultMetrics",      (char *) "(J)[J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_resultMetrics},
+        {(char *) "writeResult",        (char *) "(JLjava/lang/String;)I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_writeResult},
+        {(char *) "getResult",          (char *) "(J)[B",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_getResult},
+        {(char *) "freeResult",         (char *) "(J)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_freeResult},
+        {(char *) "beginStrips",        (char *) "(IIIII)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_beginStrips},
+        {(char *) "writeStrip",         (char *) "(J" BITMAP "II)I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_writeStrip},
+        {(char *) "finishStrips",       (char *) "(JI)J",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_finishStrips},
+        {(char *) "abortStrips",        (char *) "(J)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_abortStrips},
+        {(char *) "setBufferPoolLimit", (char *) "(J)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_setBufferPoolLimit},
+        {(char *) "trimBufferPool",     (char *) "(J)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_trimBufferPool},
+        {(char *) "setEncodeThreadLimit", (char *) "(I)V",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_setEncodeThreadLimit},
+        {(char *) "scalingFactors",     (char *) "()[I",
+                (void *) Java_com_pglvee_lib_1compress_CompressEngine_scalingFactors},
+        {(char *) "probe",              (char *) "(" BUFFER "[BII)[I",
+                (void *) Java_com_pglvee_lib_1compress_ImageInfo_probe},
+        {(char *) "hash",               (char *) "(" BUFFER "[BIIJ)J",
+                (void *) Java_com_pglvee_lib_1compress_ResultCache_hash},
+};
+
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    jclass clazz;
+
+    if (vm->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK) return JNI_ERR;
+    /* Loaded by the lib-compress unit tests as liblight.so, the classes of lib-compress itself bind to the
+       exported functions by name and NativeCodec is not on the class path. */
+    if ((clazz = env->FindClass("com/pglvee/benchmark/NativeCodec")) == nullptr) {
+        env->ExceptionClear();
+        return JNI_VERSION_1_6;
+    }
+    if (env->RegisterNatives(clazz, methods, sizeof(methods) / sizeof(methods[0])) != JNI_OK) return JNI_ERR;
+    return JNI_VERSION_1_6;
+}
@@ -0,0 +1,40 @@
+/* Host replacement for the NDK bitmap API.  A bitmap is a com.pglvee.benchmark.HostBitmap, whose pixels are
+   stored RGBA_8888 in a direct ByteBuffer. */
+#ifndef LIGHT_HOST_ANDROID_BITMAP_H
+#define LIGHT_HOST_ANDROID_BITMAP_H
+
+#include <jni.h>
+#include <stdint.h>
+
+#define ANDROID_BITMAP_RESULT_SUCCESS  0
+#define ANDROID_BITMAP_RESULT_BAD_PARAMETER  -1
+#define ANDROID_BITMAP_RESULT_JNI_EXCEPTION  -2
+
+enum AndroidBitmapFormat {
+    ANDROID_BITMAP_FORMAT_NONE = 0,
+    ANDROID_BITMAP_FORMAT_RGBA_8888 = 1
+};
+
+typedef struct {
+    uint32_t width;
+    uint32_t height;
+    uint32_t stride;
+    int32_t format;
+    uint32_t flags;
+} AndroidBitmapInfo;
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+int AndroidBitmap_getInfo(JNIEnv *env, jobject jbitmap, AndroidBitmapInfo *info);
+
+int AndroidBitmap_lockPixels(JNIEnv *env, jobject jbitmap, void **addrPtr);
+
+int AndroidBitmap_unlockPixels(JNIEnv *env, jobject jbitmap);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
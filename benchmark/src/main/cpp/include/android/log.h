@@ -0,0 +1,20 @@
+/* Host replacement for the NDK logging API.  Messages go to stderr when LIGHT_LOG is set in the environment,
+   so that benchmarks are not slowed down by logging. */
+#ifndef LIGHT_HOST_ANDROID_LOG_H
+#define LIGHT_HOST_ANDROID_LOG_H
+
+enum {
+    ANDROID_LOG_DEBUG = 3, ANDROID_LOG_INFO = 4, ANDROID_LOG_WARN = 5, ANDROID_LOG_ERROR = 6
+};
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,241 @@
+package com.pglvee.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+/**
+ * 基准测试使用的图片：由固定的随机种子生成，每台机器上的内容都相同，生成一次后缓存在corpus.dir目录中
+ * <ul>
+ * <li>camera：4032x3024的相机照片，质量92，4:2:0采样，Exif方向为6</li>
+ * <li>screenshot：1080x2400的png截图，大块纯色加上文字一样的细节</li>
+ * <li>panorama：16000x2000的全景照片，用于条带压缩</li>
+ * </ul>
+ */
+public final class Corpus {
+
+    public static final String CAMERA = "camera";
+    public static final String SCREENSHOT = "screenshot";
+    public static final String PANORAMA = "panorama";
+
+    private static final File DIRECTORY = new File(System.getProperty("corpus.dir", "build/corpus"));
+
+    private Corpus() {
+    }
+
+    /**
+     * 图片文件的内容，放在direct buffer中，与CompressEngine映射文件的方式一致
+     */
+    public static ByteBuffer load(String name) throws IOException {
+        byte[] data = Files.readAllBytes(file(name).toPath());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    /**
+     * 解码后的ARGB_8888图片，jpeg使用light.cpp解码，png使用ImageIO解码
+     */
+    public static HostBitmap decode(String name) throws IOException {
+        File file = file(name);
+        if (!name.equals(SCREENSHOT)) {
+            ByteBuffer data = load(name);
+            int[] info = NativeCodec.probe(data);
+            HostBitmap bitmap = new HostBitmap(info[1], info[2]);
+            if (NativeCodec.bitmapDecompress(data, bitmap) < 0)
+                throw new IOException("failed to decode " + file);
+            return bitmap;
+        }
+        BufferedImage image = ImageIO.read(file);
+        HostBitmap bitmap = new HostBitmap(image.getWidth(), image.getHeight());
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            for (int argb : row)
+                bitmap.pixels.put((byte) (argb >> 16)).put((byte) (argb >> 8)).put((byte) argb).put((byte) (argb >>> 24));
+        }
+        bitmap.pixels.clear();
+        return bitmap;
+    }
+
+    /**
+     * 从图片中间截取width x height转换为相机预览的NV21数据，使用BT.601的full range公式
+     */
+    public static byte[] nv21(HostBitmap bitmap, int width, int height) {
+        int left = (bitmap.width - width) / 2 & ~1, top = (bitmap.height - height) / 2 & ~1;
+        byte[] data = new byte[width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+        int uvOffset = width * height, uvStride = (width + 1) / 2 * 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (top + y) * bitmap.stride + (left + x) * 4;
+                int r = bitmap.pixels.get(i) & 0xff, g = bitmap.pixels.get(i + 1) & 0xff, b = bitmap.pixels.get(i + 2) & 0xff;
+                data[y * width + x] = clamp((77 * r + 150 * g + 29 * b + 128) >> 8);
+                if ((x & 1) == 0 && (y & 1) == 0) {
+                    int uv = uvOffset + y / 2 * uvStride + x;
+                    data[uv] = clamp(128 + ((128 * r - 107 * g - 21 * b + 128) >> 8));
+                    data[uv + 1] = clamp(128 + ((-43 * r - 85 * g + 128 * b + 128) >> 8));
+                }
+            }
+        }
+        return data;
+    }
+
+    public static File file(String name) throws IOException {
+        File file = new File(DIRECTORY, name + (name.equals(SCREENSHOT) ? ".png" : ".jpg"));
+        if (file.isFile())
+            return file;
+        if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs())
+            throw new IOException("can not create " + DIRECTORY);
+        File temp = new File(DIRECTORY, name + ".tmp");
+        switch (name) {
+            case CAMERA:
+                writeJpeg(photo(4032, 3024, 1), 92, 6, temp);
+                break;
+            case PANORAMA:
+                writeJpeg(photo(16000, 2000, 2), 90, 0, temp);
+                break;
+            case SCREENSHOT:
+                ImageIO.write(screenshot(1080, 2400, 3), "png", temp);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown corpus " + name);
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("can not create " + file);
+        return file;
+    }
+
+    /**
+     * 平滑的渐变和色块叠加上传感器噪声，接近相机照片的频谱
+     */
+    private static HostBitmap photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        HostBitmap bitmap = new HostBitmap(width, height);
+        double[] phase = new double[6];
+        for (int i = 0; i < phase.length; i++)
+            phase[i] = random.nextDouble() * Math.PI * 2;
+        int[][] blocks = new int[64][];
+        for (int i = 0; i < blocks.length; i++) {
+            int w = 16 + random.nextInt(width / 6);
+            int h = 16 + random.nextInt(height / 6);
+            blocks[i] = new int[]{random.nextInt(width - w), random.nextInt(height - h), w, h,
+                    random.nextInt(96) - 48, random.nextInt(96) - 48, random.nextInt(96) - 48};
+        }
+        for (int y = 0; y < height; y++) {
+            double fy = (double) y / height;
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / width;
+                int r = (int) (128 + 60 * Math.sin(fx * 5 + phase[0]) + 40 * Math.sin(fy * 7 + phase[1]));
+                int g = (int) (128 + 60 * Math.sin(fy * 4 + phase[2]) + 40 * Math.sin((fx + fy) * 6 + phase[3]));
+                int b = (int) (128 + 60 * Math.sin((fx - fy) * 3 + phase[4]) + 40 * Math.sin(fx * 9 + phase[5]));
+                for (int[] block : blocks) {
+                    if (x >= block[0] && y >= block[1] && x < block[0] + block[2] && y < block[1] + block[3]) {
+                        r += block[4];
+                        g += block[5];
+                        b += block[6];
+                    }
+                }
+                int noise = random.nextInt(13) - 6;
+                bitmap.pixels.put(clamp(r + noise)).put(clamp(g + noise)).put(clamp(b + noise)).put((byte) 0xff);
+            }
+        }
+        bitmap.pixels.clear();
+        return bitmap;
+    }
+
+    /**
+     * 状态栏、卡片和多行文字组成的界面截图，只有少数几种颜色
+     */
+    private static BufferedImage screenshot(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] palette = {0xfffafafa, 0xff2196f3, 0xff212121, 0xff757575, 0xffe0e0e0, 0xffff5722};
+        int[] row = new int[width];
+        int y = 0;
+        while (y < height) {
+            // 一张卡片：背景色之上若干行文字，每个字是一个8x12的随机点阵
+            int background = y == 0 ? palette[1] : random.nextInt(4) == 0 ? palette[4] : palette[0];
+            int lines = y == 0 ? 1 : 1 + random.nextInt(6);
+            int ink = background == palette[1] ? palette[0] : palette[2 + random.nextInt(2)];
+            for (int line = 0; line < lines && y < height; line++) {
+                long[] glyphs = new long[width / 10];
+                for (int i = 0; i < glyphs.length; i++)
+                    glyphs[i] = random.nextInt(8) == 0 ? 0 : random.nextLong();
+                for (int dy = 0; dy < 48 && y < height; dy++, y++) {
+                    for (int x = 0; x < width; x++) {
+                        int gx = x - 40, gy = dy - 18;
+                        boolean set = false;
+                        if (gx >= 0 && gy >= 0 && gy < 12 && gx / 10 < glyphs.length - 8 && gx % 10 < 8)
+                            set = (glyphs[gx / 10] >>> ((gy / 2) * 8 + gx % 10) & 1) != 0;
+                        row[x] = set ? ink : background;
+                    }
+                    image.setRGB(0, y, width, 1, row, 0, width);
+                }
+            }
+            // 卡片之间的分隔线和偶尔出现的按钮
+            for (int dy = 0; dy < 16 && y < height; dy++, y++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = dy == 0 ? palette[4] : dy > 2 && x > width - 240 && x < width - 40 && random.nextInt(4) == 0
+                            ? palette[5] : palette[0];
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * 用light.cpp编码，Exif方向不为0时在SOI之后插入只含Orientation的APP1
+     */
+    private static void writeJpeg(HostBitmap bitmap, int quality, int orientation, File file) throws IOException {
+        byte[] jpeg = NativeCodec.takeResult(NativeCodec.bitmapCompress(bitmap, quality, 0, 0, 0, null));
+        if (jpeg == null)
+            throw new IOException("failed to encode " + file);
+        if (orientation != 0) {
+            byte[] app1 = {
+                    (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+                    'M', 'M', 0, 42, 0, 0, 0, 8,
+                    0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                    0, 0, 0, 0};
+            byte[] data = new byte[jpeg.length + app1.length];
+            System.arraycopy(jpeg, 0, data, 0, 2);
+            System.arraycopy(app1, 0, data, 2, app1.length);
+            System.arraycopy(jpeg, 2, data, 2 + app1.length, jpeg.length - 2);
+            jpeg = data;
+        }
+        Files.write(file.toPath(), jpeg);
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+
+    /**
+     * xorshift随机数，比java.util.Random快，生成大图时不成为瓶颈
+     */
+    private static final class Random {
+        private long state;
+
+        Random(long seed) {
+            state = seed * 0x9e3779b97f4a7c15L | 1;
+        }
+
+        long nextLong() {
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return state;
+        }
+
+        int nextInt(int bound) {
+            return (int) ((nextLong() >>> 1) % bound);
+        }
+
+        double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+    }
+}
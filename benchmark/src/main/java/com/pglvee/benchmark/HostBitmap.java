@@ -0,0 +1,34 @@
+package com.pglvee.benchmark;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 桌面JVM上代替android.graphics.Bitmap的ARGB_8888图片，像素按RGBA顺序保存在direct buffer中，
+ * 由native中的AndroidBitmap_*函数读取
+ */
+public final class HostBitmap {
+
+    final int width;
+    final int height;
+    final int stride;
+    final ByteBuffer pixels;
+
+    public HostBitmap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = width * 4;
+        this.pixels = ByteBuffer.allocateDirect(stride * height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+}
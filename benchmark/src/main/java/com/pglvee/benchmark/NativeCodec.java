@@ -0,0 +1,137 @@
+package com.pglvee.benchmark;
+
+import java.nio.ByteBuffer;
+
+/**
+ * light.cpp在桌面JVM上的绑定：native函数就是CompressEngine、ImageInfo和ResultCache中的同名函数，
+ * 由liblight_host.so在加载时注册，Bitmap换成{@link HostBitmap}
+ */
+public final class NativeCodec {
+
+    static {
+        System.loadLibrary("light_host");
+    }
+
+    private NativeCodec() {
+    }
+
+    /**
+     * 解码到bitmap的尺寸，bitmap小于原图时使用TurboJPEG缩放解码
+     */
+    public static int bitmapDecompress(ByteBuffer data, HostBitmap bitmap) {
+        if (data.isDirect())
+            return bitmapDecompress(data, null, data.position(), data.remaining(), bitmap);
+        return bitmapDecompress(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), bitmap);
+    }
+
+    public static int[] probe(ByteBuffer data) {
+        if (data.isDirect())
+            return probe(data, null, data.position(), data.remaining());
+        return probe(null, data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    /**
+     * 与CompressEngine相同，选择缩放后不小于目标的最小TurboJPEG缩放因子
+     *
+     * @return 缩放解码后的{width, height}
+     */
+    public static int[] scaledSize(int width, int height, float scale) {
+        int[] factors = scalingFactors();
+        int num = 1, denom = 1;
+        for (int i = 0; scale > 1f && i + 1 < factors.length; i += 2) {
+            float factor = (float) factors[i] / factors[i + 1];
+            if (factor * scale >= 1f && factor < (float) num / denom) {
+                num = factors[i];
+                denom = factors[i + 1];
+            }
+        }
+        return new int[]{(width * num + denom - 1) / denom, (height * num + denom - 1) / denom};
+    }
+
+    /**
+     * 取出压缩结果的数据并释放结果，失败时返回null
+     */
+    public static byte[] takeResult(long result) {
+        if (result == 0)
+            return null;
+        try {
+            return getResult(result);
+        } finally {
+            freeResult(result);
+        }
+    }
+
+    public static native long bitmapCompress(HostBitmap bitmap, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    public static native int bitmapDecompress(ByteBuffer buffer, byte[] array, int offset, int length, HostBitmap bitmap);
+
+    public static native long transformCompress(ByteBuffer buffer, byte[] array, int offset, int length, int angle, int x, int y, int w, int h, int output);
+
+    public static native long copyWithoutMetadata(ByteBuffer buffer, byte[] array, int offset, int length);
+
+    public static native long yuvCompress(ByteBuffer y, ByteBuffer u, ByteBuffer v, byte[] array, int[] offsets, int[] rowStrides,
+                                          int uvPixelStride, int width, int height, int x, int cropY, int cropWidth, int cropHeight,
+                                          int outWidth, int outHeight, int angle, int quality, long maxSize, float ssim,
+                                          int output, ByteBuffer cancel);
+
+    public static native int yuvToBitmap(ByteBuffer y, ByteBuffer u, ByteBuffer v, byte[] array, int[] offsets, int[] rowStrides,
+                                         int uvPixelStride, int width, int height, HostBitmap bitmap);
+
+    public static native long jpegYuvCompress(ByteBuffer buffer, byte[] array, int offset, int length, int scaledWidth, int scaledHeight,
+                                              int x, int y, int cropWidth, int cropHeight, int outWidth, int outHeight,
+                                              int angle, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    public static native long decodePlanes(ByteBuffer buffer, byte[] array, int offset, int length, int scaledWidth, int scaledHeight);
+
+    public static native long scalePlanes(long planes, int outWidth, int outHeight);
+
+    public static native long planesCompress(long planes, int x, int y, int cropWidth, int cropHeight, int outWidth, int outHeight,
+                                             int angle, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    public static native void releasePlanes(long planes);
+
+    /**
+     * @return {size, width, height, quality, subsamp}
+     */
+    public static native int[] resultInfo(long result);
+
+    /**
+     * @return {decode, scale, encode nanos, pixel bytes, SSIM * 1e6, search count, quality0, size0, ...}
+     */
+    public static native long[] resultMetrics(long result);
+
+    public static native int writeResult(long result, String outputFile);
+
+    public static native byte[] getResult(long result);
+
+    public static native void freeResult(long result);
+
+    public static native long beginStrips(int width, int height, int quality, int options, int stripHeight);
+
+    public static native int writeStrip(long encoder, HostBitmap bitmap, int firstRow, int rows);
+
+    public static native long finishStrips(long encoder, int output);
+
+    public static native void abortStrips(long encoder);
+
+    public static native void setBufferPoolLimit(long maxBytes);
+
+    public static native void trimBufferPool(long maxBytes);
+
+    /**
+     * @param threads 编码一张大图最多使用的线程数，为0时使用CPU核数
+     */
+    public static native void setEncodeThreadLimit(int threads);
+
+    /**
+     * @return {num0, denom0, num1, denom1, ...}
+     */
+    public static native int[] scalingFactors();
+
+    /**
+     * @return {format, width, height, subsamp, colorspace, exif orientation, quality}，quality由亮度量化表估计，未知时为-1
+     */
+    public static native int[] probe(ByteBuffer buffer, byte[] array, int offset, int length);
+
+    public static native long hash(ByteBuffer buffer, byte[] array, int offset, int length, long seed);
+}
@@ -0,0 +1,116 @@
+package com.pglvee.benchmark;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * light.cpp中estimateQuality由量化表估计的质量，以及copyWithoutMetadata去除元数据的结果
+ */
+public class CopyWithoutMetadataTest {
+
+    private static final int SUBSAMPLING_444 = 2 << 4;
+    private static final int SUBSAMPLING_GRAY = 3 << 4;
+    private static final int OUTPUT_OPTIMIZED = 1;
+
+    private static int probeQuality(byte[] jpeg) {
+        return NativeCodec.probe(TestImages.direct(jpeg))[6];
+    }
+
+    private static int segmentLength(byte[] jpeg, int pos) {
+        return (jpeg[pos + 2] & 0xff) << 8 | jpeg[pos + 3] & 0xff;
+    }
+
+    /**
+     * libjpeg编码的图片估计出的质量就是编码时的质量
+     */
+    @Test
+    public void estimatedQualityIsEncodeQuality() {
+        HostBitmap bitmap = TestImages.gradient(48, 32);
+        for (int quality = 1; quality <= 100; quality++) {
+            assertEquals("quality " + quality, quality, probeQuality(TestImages.encode(bitmap, quality, 0)));
+        }
+        for (int quality : new int[]{20, 75, 92}) {
+            assertEquals(quality, probeQuality(TestImages.encode(bitmap, quality, SUBSAMPLING_444)));
+            assertEquals(quality, probeQuality(TestImages.encode(bitmap, quality, SUBSAMPLING_GRAY)));
+            assertEquals(quality, probeQuality(TestImages.encode(bitmap, quality, OUTPUT_OPTIMIZED)));
+        }
+    }
+
+    @Test
+    public void noQualityWithoutQuantizationTable() {
+        byte[] jpeg = TestImages.encode(TestImages.gradient(16, 16), 80, 0);
+        // 把所有DQT段改为COM段
+        for (int pos = 2; (jpeg[pos + 1] & 0xff) != 0xda; pos += 2 + segmentLength(jpeg, pos)) {
+            if ((jpeg[pos + 1] & 0xff) == 0xdb)
+                jpeg[pos + 1] = (byte) 0xfe;
+        }
+        assertEquals(-1, probeQuality(jpeg));
+    }
+
+    /**
+     * 去除APP1、COM段、ICC以外的APP2段和填充字节，保留APP0、APP14和ICC配置，SOS之后的数据不变
+     */
+    @Test
+    public void stripsMetadataSegments() {
+        HostBitmap bitmap = TestImages.gradient(300, 200);
+        byte[] jpeg = TestImages.encode(bitmap, 85, 0);
+        assertEquals("encoder writes JFIF", 0xe0, jpeg[3] & 0xff);
+        byte[] fill = {(byte) 0xff, (byte) 0xff, (byte) 0xff};
+        byte[] xmp = TestImages.segment(0xe1, TestImages.ascii("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>"));
+        byte[] icc = TestImages.segment(0xe2, TestImages.ascii("ICC_PROFILE\0\1\1profile"));
+        byte[] mpf = TestImages.segment(0xe2, TestImages.ascii("MPF\0II*\0"));
+        byte[] comment = TestImages.segment(0xfe, TestImages.ascii("comment"));
+        // Adobe段，transform 1表示YCbCr
+        byte[] adobe = TestImages.segment(0xee, new byte[]{'A', 'd', 'o', 'b', 'e', 0, 100, 0, 0, 0, 0, 1});
+        byte[] input = TestImages.insert(jpeg, fill, TestImages.exif(6, false, 8), xmp, fill, icc, mpf, adobe,
+                comment, fill);
+
+        long result = NativeCodec.copyWithoutMetadata(TestImages.direct(input), null, 0, input.length);
+        assertTrue("strip failed", result != 0);
+        int[] info = NativeCodec.resultInfo(result);
+        byte[] stripped = NativeCodec.takeResult(result);
+        assertArrayEquals(TestImages.insert(jpeg, icc, adobe), stripped);
+        assertArrayEquals(new int[]{stripped.length, 300, 200, 85, 2}, info);
+        assertEquals("orientation", 0, NativeCodec.probe(TestImages.direct(stripped))[5]);
+        TestImages.assertSamePixels(TestImages.decode(input), TestImages.decode(stripped));
+    }
+
+    /**
+     * 截断在SOS之前时失败，之后的数据原样复制，不会读取超出输入的数据
+     */
+    @Test
+    public void truncatedInput() {
+        byte[] jpeg = TestImages.encode(TestImages.gradient(64, 48), 85, 0);
+        byte[] comment = TestImages.segment(0xfe, TestImages.ascii("comment"));
+        byte[] input = TestImages.insert(jpeg, comment);
+        int sos = 2;
+        while ((input[sos + 1] & 0xff) != 0xda)
+            sos += 2 + segmentLength(input, sos);
+        for (int length = 0; length <= input.length; length++) {
+            byte[] data = Arrays.copyOf(input, length);
+            byte[] stripped = NativeCodec.takeResult(
+                    NativeCodec.copyWithoutMetadata(TestImages.direct(data), null, 0, length));
+            if (length < sos + 4) {
+                assertNull("length " + length, stripped);
+            } else {
+                assertNotNull("length " + length, stripped);
+                assertArrayEquals("length " + length, Arrays.copyOf(jpeg, length - comment.length), stripped);
+            }
+        }
+    }
+
+    @Test
+    public void notJpeg() {
+        byte[] data = TestImages.ascii("GIF89a\20\0\20\0\0\0\0");
+        assertNull(NativeCodec.takeResult(
+                NativeCodec.copyWithoutMetadata(TestImages.direct(data), null, 0, data.length)));
+        assertNull(NativeCodec.takeResult(NativeCodec.copyWithoutMetadata(null, data, 0, 0)));
+    }
+}
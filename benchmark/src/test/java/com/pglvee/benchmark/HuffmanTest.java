@@ -0,0 +1,189 @@
+package com.pglvee.benchmark;
+
+import org.junit.Test;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * light.cpp中的Huffman优化：OUTPUT_OPTIMIZED的结果与OUTPUT_BASELINE解码后像素完全相同，并且不会更大
+ */
+public class HuffmanTest {
+
+    private static final int OUTPUT_BASELINE = 0;
+    private static final int OUTPUT_OPTIMIZED = 1;
+    private static final int SUBSAMPLING_444 = 2 << 4;
+    private static final int SUBSAMPLING_GRAY = 3 << 4;
+
+    private static final int TJSAMP_444 = 0;
+    private static final int TJSAMP_420 = 2;
+    private static final int TJSAMP_GRAY = 3;
+
+    /**
+     * 比较两种输出，优化后的文件不大于基线文件，strict时必须更小，以确认确实经过了重新编码
+     */
+    private static void assertOptimized(byte[] baseline, byte[] optimized, int subsamp, boolean strict) {
+        assertEquals("subsamp", subsamp, NativeCodec.probe(TestImages.direct(optimized))[3]);
+        if (strict)
+            assertTrue(optimized.length + " >= " + baseline.length, optimized.length < baseline.length);
+        else
+            assertTrue(optimized.length + " > " + baseline.length, optimized.length <= baseline.length);
+        TestImages.assertSamePixels(TestImages.decode(baseline), TestImages.decode(optimized));
+    }
+
+    private static void assertBitmap(int width, int height, int quality, boolean strict) {
+        HostBitmap bitmap = TestImages.gradient(width, height);
+        byte[] baseline = TestImages.encode(bitmap, quality, OUTPUT_BASELINE);
+        byte[] optimized = TestImages.encode(bitmap, quality, OUTPUT_OPTIMIZED);
+        assertOptimized(baseline, optimized, TJSAMP_420, strict);
+    }
+
+    /**
+     * ImageIO编码的4:4:4和灰度jpeg经过DCT域的无损变换输出
+     */
+    private static void assertTransform(int width, int height, boolean gray, boolean strict) throws IOException {
+        ByteBuffer jpeg = TestImages.direct(imageIO(width, height, gray));
+        byte[] baseline = NativeCodec.takeResult(NativeCodec.transformCompress(jpeg, null, 0, jpeg.remaining(),
+                0, 0, 0, width, height, OUTPUT_BASELINE));
+        byte[] optimized = NativeCodec.takeResult(NativeCodec.transformCompress(jpeg, null, 0, jpeg.remaining(),
+                0, 0, 0, width, height, OUTPUT_OPTIMIZED));
+        assertTrue("transform failed", baseline != null && optimized != null);
+        assertOptimized(baseline, optimized, gray ? TJSAMP_GRAY : TJSAMP_444, strict);
+    }
+
+    /**
+     * 渐变图片编码为质量90的jpeg，彩色图片的所有分量都不做色度采样即4:4:4
+     */
+    private static byte[] imageIO(int width, int height, boolean gray) throws IOException {
+        BufferedImage image = new BufferedImage(width, height,
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        ByteBuffer pixels = TestImages.gradient(width, height).getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, (pixels.get() & 0xff) << 16 | (pixels.get() & 0xff) << 8 | pixels.get() & 0xff
+                        | pixels.get() << 24);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(format);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", "1");
+            component.setAttribute("VsamplingFactor", "1");
+        }
+        metadata.setFromTree(format, tree);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 按条带编码，条带之间以restart marker连接
+     */
+    private static byte[] strips(HostBitmap bitmap, int quality, int subsampling, int stripHeight, int output) {
+        long encoder = NativeCodec.beginStrips(bitmap.getWidth(), bitmap.getHeight(), quality, subsampling,
+                stripHeight);
+        assertTrue("begin failed", encoder != 0);
+        for (int y = 0; y < bitmap.getHeight(); y += stripHeight) {
+            int rows = Math.min(stripHeight, bitmap.getHeight() - y);
+            assertEquals("strip " + y, 0, NativeCodec.writeStrip(encoder, bitmap, y, rows));
+        }
+        byte[] jpeg = NativeCodec.takeResult(NativeCodec.finishStrips(encoder, output));
+        assertTrue("finish failed", jpeg != null);
+        return jpeg;
+    }
+
+    /**
+     * restart marker的数量
+     */
+    private static int restarts(byte[] jpeg) {
+        int count = 0;
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) >= 0xd0 && (jpeg[i + 1] & 0xff) <= 0xd7)
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void subsampling420() {
+        assertBitmap(1280, 960, 85, true);
+        assertBitmap(333, 97, 60, true);
+    }
+
+    @Test
+    public void subsampling444() throws IOException {
+        assertTransform(1280, 960, false, true);
+        assertTransform(333, 97, false, true);
+    }
+
+    @Test
+    public void gray() throws IOException {
+        assertTransform(1280, 960, true, true);
+        assertTransform(333, 97, true, true);
+    }
+
+    /**
+     * 各种质量下的极端系数分布，包括全部是最大码长的低质量和几乎没有零系数的最高质量
+     */
+    @Test
+    public void qualityExtremes() {
+        for (int quality : new int[]{1, 10, 100})
+            assertBitmap(640, 480, quality, false);
+    }
+
+    /**
+     * 不满一个MCU的尺寸
+     */
+    @Test
+    public void partialMcu() throws IOException {
+        assertBitmap(1, 1, 80, false);
+        assertTransform(17, 9, false, false);
+        assertTransform(15, 31, true, false);
+    }
+
+    /**
+     * 超过8个条带时RST0-RST7循环使用，最后一个条带比条带高度小
+     */
+    @Test
+    public void restartMarkers() {
+        HostBitmap bitmap = TestImages.gradient(1000, 1250);
+        int[][] cases = {{0, TJSAMP_420, 64}, {SUBSAMPLING_444, TJSAMP_444, 56}, {SUBSAMPLING_GRAY, TJSAMP_GRAY, 48}};
+        for (int[] c : cases) {
+            byte[] baseline = strips(bitmap, 85, c[0], c[2], OUTPUT_BASELINE);
+            byte[] optimized = strips(bitmap, 85, c[0], c[2], OUTPUT_OPTIMIZED);
+            int expected = (bitmap.getHeight() + c[2] - 1) / c[2] - 1;
+            assertEquals("baseline restarts", expected, restarts(baseline));
+            assertEquals("optimized restarts", expected, restarts(optimized));
+            assertOptimized(baseline, optimized, c[1], true);
+            // 条带边界不影响像素：与整张编码的结果解码相同
+            TestImages.assertSamePixels(TestImages.decode(TestImages.encode(bitmap, 85, c[0])),
+                    TestImages.decode(optimized));
+        }
+    }
+}
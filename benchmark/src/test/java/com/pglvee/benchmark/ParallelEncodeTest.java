@@ -0,0 +1,96 @@
+package com.pglvee.benchmark;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * light.cpp中parallelCompress按条带并行编码的结果与单线程编码解码后像素完全相同
+ */
+public class ParallelEncodeTest {
+
+    private static final int SUBSAMPLING_444 = 2 << 4;
+
+    /** 超过PARALLEL_MIN_PIXELS，1700不是任何条带高度的整数倍 */
+    private static final int WIDTH = 2500;
+    private static final int HEIGHT = 1700;
+    private static final int QUALITY = 85;
+
+    /** 显式指定的线程数，单核机器上默认的限制不会并行编码 */
+    private static final int THREADS = 4;
+
+    @After
+    public void tearDown() {
+        NativeCodec.setEncodeThreadLimit(0);
+    }
+
+    /**
+     * 是否有DRI段，即是否按条带编码
+     */
+    private static boolean hasRestartInterval(byte[] jpeg) {
+        for (int pos = 2; pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff; ) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == 0xdd)
+                return true;
+            if (marker == 0xda)
+                return false;
+            pos += 2 + ((jpeg[pos + 2] & 0xff) << 8 | jpeg[pos + 3] & 0xff);
+        }
+        return false;
+    }
+
+    private interface Encoder {
+        byte[] encode();
+    }
+
+    private static void assertParallel(Encoder encoder) {
+        NativeCodec.setEncodeThreadLimit(1);
+        byte[] serial = encoder.encode();
+        assertTrue("serial encode used strips", !hasRestartInterval(serial));
+        HostBitmap expected = TestImages.decode(serial);
+
+        NativeCodec.setEncodeThreadLimit(THREADS);
+        byte[] parallel = encoder.encode();
+        assertTrue("no strips with " + THREADS + " threads", hasRestartInterval(parallel));
+        TestImages.assertSamePixels(expected, TestImages.decode(parallel));
+
+        NativeCodec.setEncodeThreadLimit(0);
+        byte[] auto = encoder.encode();
+        assertEquals(Runtime.getRuntime().availableProcessors() > 1, hasRestartInterval(auto));
+        TestImages.assertSamePixels(expected, TestImages.decode(auto));
+    }
+
+    @Test
+    public void rgb() {
+        final HostBitmap bitmap = TestImages.gradient(WIDTH, HEIGHT);
+        assertParallel(new Encoder() {
+            @Override
+            public byte[] encode() {
+                return TestImages.encode(bitmap, QUALITY, 0);
+            }
+        });
+        assertParallel(new Encoder() {
+            @Override
+            public byte[] encode() {
+                return TestImages.encode(bitmap, QUALITY, SUBSAMPLING_444);
+            }
+        });
+    }
+
+    @Test
+    public void yuvPlanes() {
+        final byte[] nv21 = Corpus.nv21(TestImages.gradient(WIDTH, HEIGHT), WIDTH, HEIGHT);
+        int uvStride = (WIDTH + 1) / 2 * 2;
+        final int[] offsets = {0, WIDTH * HEIGHT + 1, WIDTH * HEIGHT};
+        final int[] rowStrides = {WIDTH, uvStride, uvStride};
+        assertParallel(new Encoder() {
+            @Override
+            public byte[] encode() {
+                return NativeCodec.takeResult(NativeCodec.yuvCompress(null, null, null, nv21, offsets, rowStrides, 2,
+                        WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, WIDTH, HEIGHT, 0, QUALITY, 0, 0, 0, null));
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package com.pglvee.benchmark;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * light.cpp中按SSIM选择质量：结果达到目标，比固定的高质量更小，目标越高质量越高
+ */
+public class SsimTest {
+
+    /**
+     * 平滑的彩色起伏上叠加40像素的方格，低质量时方格边缘出现明显的块效应
+     */
+    private static HostBitmap tiles(int width, int height) {
+        HostBitmap bitmap = new HostBitmap(width, height);
+        ByteBuffer pixels = bitmap.getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / width, fy = (double) y / height;
+                int tile = (x / 40 + y / 40) % 2 == 0 ? 30 : 0;
+                pixels.put(clamp(140 + 60 * Math.sin(fx * 5 + 1) + 30 * Math.sin(fy * 11) + tile))
+                        .put(clamp(120 + 50 * Math.sin(fy * 4 + 2) + 30 * Math.sin((fx + fy) * 7) + tile))
+                        .put(clamp(100 + 60 * Math.sin((fx - fy) * 3) + 20 * Math.sin(fx * 13) + tile))
+                        .put((byte) 0xff);
+            }
+        }
+        pixels.clear();
+        return bitmap;
+    }
+
+    private static byte clamp(double value) {
+        return (byte) Math.max(0, Math.min(255, (int) value));
+    }
+
+    /**
+     * @return {size, quality, SSIM * 1e6}
+     */
+    private static long[] compress(HostBitmap bitmap, float ssim, long maxSize) {
+        long result = NativeCodec.bitmapCompress(bitmap, 0, maxSize, ssim, 0, null);
+        assertTrue("compress failed", result != 0);
+        try {
+            int[] info = NativeCodec.resultInfo(result);
+            long[] metrics = NativeCodec.resultMetrics(result);
+            return new long[]{info[0], info[3], metrics[4]};
+        } finally {
+            NativeCodec.freeResult(result);
+        }
+    }
+
+    @Test
+    public void reachesTargetBelowHighQuality() {
+        HostBitmap bitmap = tiles(1280, 960);
+        int q95 = TestImages.encode(bitmap, 95, 0).length;
+        for (float target : new float[]{0.98f, 0.99f}) {
+            long[] result = compress(bitmap, target, 0);
+            assertTrue(result[2] / 1e6 + " < " + target, result[2] / 1e6 >= target);
+            assertTrue(result[0] + " >= " + q95, result[0] < q95);
+        }
+    }
+
+    @Test
+    public void higherTargetGivesHigherQuality() {
+        HostBitmap bitmap = tiles(640, 480);
+        long previous = 0;
+        for (float target : new float[]{0.98f, 0.99f, 0.998f}) {
+            long[] result = compress(bitmap, target, 0);
+            assertTrue(target + ": " + result[1] + " <= " + previous, result[1] > previous);
+            previous = result[1];
+        }
+    }
+
+    /**
+     * 同时设置了maxSize时按大小搜索，SSIM目标不再起作用
+     */
+    @Test
+    public void maxSizeOverridesTarget() {
+        HostBitmap bitmap = tiles(640, 480);
+        long max = TestImages.encode(bitmap, 30, 0).length;
+        long[] result = compress(bitmap, 0.999f, max);
+        assertTrue(result[0] + " > " + max, result[0] <= max);
+    }
+}
@@ -0,0 +1,46 @@
+package com.pglvee.benchmark;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SUBSAMPLING_AUTO按像素选择的色度采样：灰度照片为灰度，彩色文字的截图为4:4:4，自然照片为4:2:0
+ */
+public class SubsamplingTest {
+
+    private static final int SUBSAMPLING_AUTO = 1 << 4;
+
+    private static final int TJSAMP_444 = 0;
+    private static final int TJSAMP_420 = 2;
+    private static final int TJSAMP_GRAY = 3;
+
+    /**
+     * 结果和输出的jpeg都使用同一种色度采样
+     */
+    private static void assertSubsamp(int subsamp, HostBitmap bitmap) {
+        long result = NativeCodec.bitmapCompress(bitmap, 85, 0, 0, SUBSAMPLING_AUTO, null);
+        assertTrue("encode failed", result != 0);
+        int[] info = NativeCodec.resultInfo(result);
+        byte[] jpeg = NativeCodec.takeResult(result);
+        assertEquals("result subsamp", subsamp, info[4]);
+        assertEquals("jpeg subsamp", subsamp, NativeCodec.probe(TestImages.direct(jpeg))[3]);
+    }
+
+    @Test
+    public void grayPhoto() {
+        assertSubsamp(TJSAMP_GRAY, TestImages.gray(TestImages.photo(1600, 1200, 1)));
+    }
+
+    @Test
+    public void screenshotWithColoredText() {
+        assertSubsamp(TJSAMP_444, TestImages.screenshot(1080, 2400));
+    }
+
+    @Test
+    public void naturalPhoto() {
+        assertSubsamp(TJSAMP_420, TestImages.photo(1600, 1200, 2));
+        assertSubsamp(TJSAMP_420, TestImages.gradient(1600, 1200));
+    }
+}
@@ -0,0 +1,200 @@
+package com.pglvee.benchmark;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 单元测试共用的图片生成、编解码和jpeg段操作
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * 平滑的彩色渐变加上少量细节，每个尺寸的内容都固定
+     */
+    static HostBitmap gradient(int width, int height) {
+        HostBitmap bitmap = new HostBitmap(width, height);
+        ByteBuffer pixels = bitmap.getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int detail = ((x * 7 + y * 13) % 17) - 8;
+                pixels.put(clamp(x * 255 / width + detail)).put(clamp(y * 255 / height - detail))
+                        .put(clamp((x + y) * 127 / (width + height) + 64)).put((byte) 0xff);
+            }
+        }
+        pixels.clear();
+        return bitmap;
+    }
+
+    /**
+     * 低频的彩色起伏加上传感器噪声的自然照片，色度平滑
+     */
+    static HostBitmap photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        HostBitmap bitmap = new HostBitmap(width, height);
+        ByteBuffer pixels = bitmap.getPixels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / width, fy = (double) y / height;
+                int noise = random.nextInt(13) - 6;
+                pixels.put(clamp((int) (140 + 60 * Math.sin(fx * 5 + 1) + 30 * Math.sin(fy * 11)) + noise))
+                        .put(clamp((int) (120 + 50 * Math.sin(fy * 4 + 2) + 30 * Math.sin((fx + fy) * 7)) + noise))
+                        .put(clamp((int) (100 + 60 * Math.sin((fx - fy) * 3) + 20 * Math.sin(fx * 13)) + noise))
+                        .put((byte) 0xff);
+            }
+        }
+        pixels.clear();
+        return bitmap;
+    }
+
+    /**
+     * 去掉颜色的照片，每个像素的R、G、B都是原来的亮度
+     */
+    static HostBitmap gray(HostBitmap bitmap) {
+        HostBitmap gray = new HostBitmap(bitmap.getWidth(), bitmap.getHeight());
+        ByteBuffer src = bitmap.getPixels(), dst = gray.getPixels();
+        for (int i = 0; i < src.capacity(); i += 4) {
+            byte luma = clamp((77 * (src.get(i) & 0xff) + 150 * (src.get(i + 1) & 0xff) + 29 * (src.get(i + 2) & 0xff)
+                    + 128) >> 8);
+            dst.put(i, luma).put(i + 1, luma).put(i + 2, luma).put(i + 3, (byte) 0xff);
+        }
+        return gray;
+    }
+
+    /**
+     * 白色背景上的彩色标题栏、按钮和多行彩色文字组成的界面截图
+     */
+    static HostBitmap screenshot(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(new Color(0x2196f3));
+        graphics.fillRect(0, 0, width, 160);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 34));
+        Color[] inks = {new Color(0xd32f2f), new Color(0x1976d2), new Color(0x388e3c), new Color(0x212121)};
+        for (int line = 0, y = 220; y < height; line++, y += 48) {
+            if (line % 12 == 11) {
+                graphics.setColor(new Color(0xff5722));
+                graphics.fillRoundRect(width - 300, y - 34, 260, 44, 12, 12);
+                continue;
+            }
+            graphics.setColor(inks[line % inks.length]);
+            graphics.drawString("The quick brown fox jumps over the lazy dog " + line, 40, y);
+        }
+        graphics.dispose();
+        HostBitmap bitmap = new HostBitmap(width, height);
+        ByteBuffer pixels = bitmap.getPixels();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int rgb : row)
+                pixels.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb).put((byte) 0xff);
+        }
+        pixels.clear();
+        return bitmap;
+    }
+
+    static byte[] encode(HostBitmap bitmap, int quality, int options) {
+        byte[] jpeg = NativeCodec.takeResult(NativeCodec.bitmapCompress(bitmap, quality, 0, 0, options, null));
+        assertNotNull("encode failed", jpeg);
+        return jpeg;
+    }
+
+    static HostBitmap decode(byte[] jpeg) {
+        int[] info = NativeCodec.probe(direct(jpeg));
+        assertTrue("not an image", info[1] > 0 && info[2] > 0);
+        HostBitmap bitmap = new HostBitmap(info[1], info[2]);
+        assertEquals("decode failed", 0, NativeCodec.bitmapDecompress(direct(jpeg), bitmap));
+        return bitmap;
+    }
+
+    static void assertSamePixels(HostBitmap expected, HostBitmap actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        byte[] a = new byte[expected.getPixels().capacity()];
+        byte[] b = new byte[actual.getPixels().capacity()];
+        expected.getPixels().duplicate().get(a);
+        actual.getPixels().duplicate().get(b);
+        assertArrayEquals(a, b);
+    }
+
+    static ByteBuffer direct(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    /**
+     * 在SOI之后插入segments
+     */
+    static byte[] insert(byte[] jpeg, byte[]... segments) {
+        int length = jpeg.length;
+        for (byte[] segment : segments)
+            length += segment.length;
+        byte[] data = new byte[length];
+        System.arraycopy(jpeg, 0, data, 0, 2);
+        int pos = 2;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, data, pos, segment.length);
+            pos += segment.length;
+        }
+        System.arraycopy(jpeg, 2, data, pos, jpeg.length - 2);
+        return data;
+    }
+
+    /**
+     * 标记为0xff marker、内容为payload的段
+     */
+    static byte[] segment(int marker, byte[] payload) {
+        byte[] segment = new byte[4 + payload.length];
+        segment[0] = (byte) 0xff;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) ((payload.length + 2) >> 8);
+        segment[3] = (byte) (payload.length + 2);
+        System.arraycopy(payload, 0, segment, 4, payload.length);
+        return segment;
+    }
+
+    /**
+     * 只含Orientation的Exif APP1，little为true时使用Intel字节序
+     *
+     * @param ifdOffset 第一个IFD相对TIFF头的偏移，正常为8
+     */
+    static byte[] exif(int orientation, boolean little, long ifdOffset) {
+        ByteBuffer payload = ByteBuffer.allocate(32)
+                .order(little ? java.nio.ByteOrder.LITTLE_ENDIAN : java.nio.ByteOrder.BIG_ENDIAN);
+        payload.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        payload.put(little ? (byte) 'I' : (byte) 'M').put(little ? (byte) 'I' : (byte) 'M');
+        payload.putShort((short) 42).putInt((int) ifdOffset);
+        // 一个IFD项：Orientation，SHORT，1个值
+        payload.putShort((short) 1).putShort((short) 0x0112).putShort((short) 3).putInt(1)
+                .putShort((short) orientation).putShort((short) 0);
+        payload.putInt(0);
+        return segment(0xe1, payload.array());
+    }
+
+    static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) text.charAt(i);
+        return data;
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,100 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CompressEngine#estimatePeakBytes(CompressRequest, ImageInfo)}与实际使用的压缩路径一致
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressEngineTest {
+
+    /** 与StreamCompressor的STREAM_CHUNK_BYTES一致 */
+    private static final long STREAM_CHUNK_BYTES = 16L << 20;
+    /** 与LosslessCompressor的PASS_THROUGH_QUALITY一致 */
+    private static final int PASS_THROUGH_QUALITY = 90;
+
+    private final CompressEngine engine = new CompressEngine();
+
+    @Test
+    public void exifRotatedJpegCountsRotatedPlane() {
+        int w = 1600, h = 1200;
+        byte[] jpeg = TestImages.jpeg(TestImages.photo(w, h, Bitmap.Config.ARGB_8888), 90, 6);
+        CompressRequest request = CompressRequest.newBuilder().src(jpeg).quality(80).rotate().build();
+        ImageInfo info = CompressEngine.probe(request);
+        assertEquals(90, info.getDegree());
+        long estimate = engine.estimatePeakBytes(request, info);
+        CompressResult result = engine.compress(request, info);
+        assertTrue(result.isSuccess());
+        assertEquals(CompressMetrics.PATH_PLANAR, result.getMetrics().getPath());
+        // 解码的平面加上旋转前后各一份输出平面
+        assertEquals(3L * (3L * w * h) / 2, estimate);
+        assertEquals(engine.estimatePeakBytes(request.buildUpon().rotate(90).build(), info), estimate);
+        assertEquals(h, result.outSize()[0]);
+        assertEquals(w, result.outSize()[1]);
+    }
+
+    @Test
+    public void largeExifRotatedJpegIsNotEstimatedAsStream() {
+        // 超过16M像素，不旋转时自动使用条带压缩
+        int w = 4800, h = 3600;
+        Bitmap bitmap = TestImages.photo(w, h, Bitmap.Config.RGB_565);
+        byte[] rotated = TestImages.jpeg(bitmap, 90, 6);
+        byte[] upright = TestImages.jpeg(bitmap, 90, 0);
+        bitmap.recycle();
+        File output = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "peak.jpg");
+
+        CompressRequest request = CompressRequest.newBuilder().src(rotated).dst(output).quality(80).rotate().build();
+        ImageInfo info = CompressEngine.probe(request);
+        assertEquals(3L * (3L * w * h) / 2, engine.estimatePeakBytes(request, info));
+        CompressResult result = engine.compress(request, info);
+        assertTrue(result.isSuccess());
+        assertEquals(CompressMetrics.PATH_PLANAR, result.getMetrics().getPath());
+        assertEquals(h, result.outSize()[0]);
+
+        request = request.buildUpon().src(upright).build();
+        info = CompressEngine.probe(request);
+        assertEquals(2 * STREAM_CHUNK_BYTES, engine.estimatePeakBytes(request, info));
+        result = engine.compress(request, info);
+        assertTrue(result.isSuccess());
+        assertEquals(CompressMetrics.PATH_STREAM, result.getMetrics().getPath());
+        assertEquals(w, result.outSize()[0]);
+        output.delete();
+    }
+
+    @Test
+    public void defaultQualityPassesThroughOnlyModerateQuality() {
+        Bitmap bitmap = TestImages.photo(640, 480, Bitmap.Config.ARGB_8888);
+        byte[] moderate = TestImages.jpeg(bitmap, PASS_THROUGH_QUALITY, 0);
+        byte[] high = TestImages.jpeg(bitmap, 98, 0);
+        bitmap.recycle();
+
+        CompressRequest request = CompressRequest.newBuilder().src(moderate).build();
+        ImageInfo info = CompressEngine.probe(request);
+        assertEquals(0, engine.estimatePeakBytes(request, info));
+        CompressResult result = engine.compress(request, info);
+        assertTrue(result.isSuccess());
+        assertEquals(CompressMetrics.PATH_PASSTHROUGH, result.getMetrics().getPath());
+        assertEquals(PASS_THROUGH_QUALITY, result.getQuality());
+
+        request = request.buildUpon().src(high).build();
+        info = CompressEngine.probe(request);
+        result = engine.compress(request, info);
+        assertTrue(result.isSuccess());
+        assertEquals(CompressMetrics.PATH_TRANSFORM, result.getMetrics().getPath());
+        // 明确请求的质量不受限制
+        result = engine.compress(request.buildUpon().quality(98).build(), info);
+        assertEquals(CompressMetrics.PATH_PASSTHROUGH, result.getMetrics().getPath());
+        assertEquals(98, result.getQuality());
+    }
+}
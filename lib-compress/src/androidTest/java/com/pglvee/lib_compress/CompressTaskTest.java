@@ -0,0 +1,139 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link CompressEngine#submit(CompressRequest, int, CompressTask.Callback)}的取消和优先级。
+ * 先用回调阻塞的任务占满所有压缩线程，之后提交的任务都在队列中等待
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressTaskTest {
+
+    /** 与CompressEngine的压缩线程数一致 */
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final CompressEngine engine = new CompressEngine();
+    private final List<CountDownLatch> holds = new ArrayList<>();
+    private Bitmap bitmap;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        bitmap = TestImages.photo(64, 64, Bitmap.Config.ARGB_8888);
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final CountDownLatch hold = new CountDownLatch(1);
+            holds.add(hold);
+            engine.submit(request(), new Callback() {
+                @Override
+                public void onResult(CompressTask task, CompressResult result) {
+                    started.countDown();
+                    await(hold);
+                }
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        for (CountDownLatch hold : holds)
+            hold.countDown();
+    }
+
+    private CompressRequest request() {
+        return CompressRequest.newBuilder().src(bitmap).quality(80).build();
+    }
+
+    @Test
+    public void cancelledQueuedTaskNeverCallsBack() throws Exception {
+        final AtomicBoolean called = new AtomicBoolean();
+        CompressTask task = engine.submit(request(), new Callback() {
+            @Override
+            public void onResult(CompressTask task, CompressResult result) {
+                called.set(true);
+            }
+        });
+        assertTrue(task.cancel(false));
+        assertTrue(task.isCancelled());
+        assertTrue(task.isDone());
+        assertFalse(task.cancel(false));
+        try {
+            task.get();
+            fail("get() of a cancelled task");
+        } catch (CancellationException expected) {
+        }
+
+        // 放开阻塞的线程，之后提交的最低优先级任务完成时队列已经清空
+        tearDown();
+        CompressTask last = engine.submit(request(), CompressTask.PRIORITY_BACKGROUND, null);
+        assertTrue(last.get(10, TimeUnit.SECONDS).isSuccess());
+        assertFalse(called.get());
+    }
+
+    @Test
+    public void queuedTasksRunByPriority() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch finished = new CountDownLatch(5);
+        String[] names = {"background", "default1", "visible", "default2", "raised"};
+        int[] priorities = {CompressTask.PRIORITY_BACKGROUND, CompressTask.PRIORITY_DEFAULT,
+                CompressTask.PRIORITY_VISIBLE, CompressTask.PRIORITY_DEFAULT, CompressTask.PRIORITY_BACKGROUND};
+        CompressTask raised = null;
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            raised = engine.submit(request(), priorities[i], new Callback() {
+                @Override
+                public void onResult(CompressTask task, CompressResult result) {
+                    order.add(name);
+                    finished.countDown();
+                }
+            });
+        }
+        raised.setPriority(CompressTask.PRIORITY_VISIBLE);
+        assertEquals(CompressTask.PRIORITY_VISIBLE, raised.getPriority());
+
+        // 只放开一个线程，由它按顺序取出队列中的任务
+        holds.get(0).countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("visible", "raised", "default1", "default2", "background"), order);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 测试中的任务不会失败
+     */
+    private abstract static class Callback implements CompressTask.Callback {
+
+        @Override
+        public void onError(CompressTask task, Throwable error) {
+            throw new AssertionError(error);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CompressUtils}的输出
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressUtilsTest {
+
+    /**
+     * thumbnail按max搜索质量，输出不超过max，更大的max得到更大的输出
+     */
+    @Test
+    public void thumbnailFitsMaxSize() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        int previous = 0;
+        for (long max : new long[]{60_000, 150_000, 400_000}) {
+            CompressUtils utils = CompressUtils.newInstance().src(bitmap).max(max).thumbnail();
+            byte[] jpeg = utils.dst();
+            assertTrue(jpeg.length + " > " + max, jpeg.length > 0 && jpeg.length <= max);
+            assertTrue(jpeg.length + " <= " + previous, jpeg.length > previous);
+            assertFalse(utils.result().isOversize());
+            previous = jpeg.length;
+            assertArrayEquals(new int[]{1600, 1200}, utils.outSize());
+            Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            assertEquals(1600, decoded.getWidth());
+            assertEquals(1200, decoded.getHeight());
+            decoded.recycle();
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * 最低的质量也超过max时仍然成功并输出最小的结果，通过isOversize区分
+     */
+    @Test
+    public void thumbnailReportsOversize() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        CompressUtils utils = CompressUtils.newInstance().src(bitmap).max(2_000).thumbnail();
+        bitmap.recycle();
+        CompressResult result = utils.result();
+        assertTrue(result.isSuccess());
+        assertTrue(result.isOversize());
+        assertTrue(result.getSize() > 2_000);
+        assertEquals(result.getSize(), utils.dst().length);
+        int[] qualities = result.getMetrics().getSearchQualities();
+        long[] sizes = result.getMetrics().getSearchSizes();
+        for (int i = 0; i < sizes.length; i++)
+            assertTrue(qualities[i] + ": " + sizes[i], sizes[i] >= result.getSize());
+    }
+
+    /**
+     * 不缩放、未设置质量时jpeg在DCT域中旋转：宽高互换，输出(x, y)与原图(y, h - 1 - x)的像素只差舍入误差
+     */
+    @Test
+    public void imageRotatesJpegLosslessly() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        byte[] jpeg = TestImages.jpeg(bitmap, 90, 0);
+        bitmap.recycle();
+        CompressUtils utils = CompressUtils.newInstance().src(jpeg).rotate(90).image();
+        assertArrayEquals(new int[]{1200, 1600}, utils.outSize());
+        Bitmap source = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        byte[] output = utils.dst();
+        Bitmap rotated = BitmapFactory.decodeByteArray(output, 0, output.length);
+        assertEquals(1200, rotated.getWidth());
+        assertEquals(1600, rotated.getHeight());
+        for (int y = 0; y < rotated.getHeight(); y += 7) {
+            for (int x = 0; x < rotated.getWidth(); x += 7)
+                assertClose(source.getPixel(y, 1199 - x), rotated.getPixel(x, y), 8);
+        }
+        source.recycle();
+        rotated.recycle();
+    }
+
+    /**
+     * Exif方向为6时rotate()同样无损旋转，居中裁剪在旋转之后进行
+     */
+    @Test
+    public void imageAppliesExifRotationAndCrop() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        byte[] jpeg = TestImages.jpeg(bitmap, 90, 6);
+        bitmap.recycle();
+        CompressUtils utils = CompressUtils.newInstance().src(jpeg).rotate().image();
+        assertArrayEquals(new int[]{1200, 1600}, utils.outSize());
+        utils = CompressUtils.newInstance().src(jpeg).rotate().crop(1f).image();
+        assertArrayEquals(new int[]{1200, 1200}, utils.outSize());
+        byte[] output = utils.dst();
+        Bitmap cropped = BitmapFactory.decodeByteArray(output, 0, output.length);
+        assertEquals(1200, cropped.getWidth());
+        assertEquals(1200, cropped.getHeight());
+        cropped.recycle();
+    }
+
+    private static void assertClose(int expected, int actual, int tolerance) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int diff = Math.abs((expected >> shift & 0xff) - (actual >> shift & 0xff));
+            assertTrue(Integer.toHexString(expected) + " != " + Integer.toHexString(actual), diff <= tolerance);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 从文件描述符读取和写入文件描述符的输出与内存中的输入输出完全相同
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileDescriptorTest {
+
+    private final CompressEngine engine = new CompressEngine();
+    private final File dir = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir();
+    private final File input = new File(dir, "fd-input");
+    private final File output = new File(dir, "fd-output");
+
+    @After
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+
+    private static byte[] png(Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int n; (n = in.read(buffer)) > 0; )
+                out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] compress(CompressRequest request) {
+        CompressResult result = engine.compress(request);
+        assertTrue(result.isSuccess());
+        return result.getData();
+    }
+
+    /**
+     * jpeg和png文件的描述符，以及从当前位置开始读取
+     */
+    @Test
+    public void seekableInput() throws IOException {
+        Bitmap bitmap = TestImages.photo(1200, 900, Bitmap.Config.ARGB_8888);
+        byte[][] images = {TestImages.jpeg(bitmap, 90, 6), png(bitmap)};
+        bitmap.recycle();
+        for (byte[] image : images) {
+            CompressRequest.Builder builder = CompressRequest.newBuilder().size(600, 450).quality(80).rotate();
+            byte[] expected = compress(builder.src(image).build());
+
+            write(input, image);
+            try (ParcelFileDescriptor fd = ParcelFileDescriptor.open(input, ParcelFileDescriptor.MODE_READ_ONLY)) {
+                assertArrayEquals(expected, compress(builder.src(fd).build()));
+            }
+
+            byte[] prefixed = new byte[image.length + 3];
+            System.arraycopy(image, 0, prefixed, 3, image.length);
+            write(input, prefixed);
+            try (FileInputStream in = new FileInputStream(input)) {
+                assertTrue(in.skip(3) == 3);
+                assertArrayEquals(expected, compress(builder.src(in.getFD()).build()));
+            }
+        }
+    }
+
+    @Test
+    public void pipeInput() throws Exception {
+        Bitmap bitmap = TestImages.photo(800, 600, Bitmap.Config.ARGB_8888);
+        final byte[] jpeg = TestImages.jpeg(bitmap, 90, 0);
+        bitmap.recycle();
+        CompressRequest.Builder builder = CompressRequest.newBuilder().size(400, 300).quality(80);
+        byte[] expected = compress(builder.src(jpeg).build());
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                    out.write(jpeg);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        writer.start();
+        try (ParcelFileDescriptor fd = pipe[0]) {
+            assertArrayEquals(expected, compress(builder.src(fd).build()));
+        }
+        writer.join();
+    }
+
+    /**
+     * 从描述符的当前位置写入，native编码和Java编码器的输出都一样
+     */
+    @Test
+    public void descriptorOutput() throws IOException {
+        Bitmap bitmap = TestImages.photo(800, 600, Bitmap.Config.ARGB_8888);
+        CompressRequest[] requests = {
+                CompressRequest.newBuilder().src(bitmap).quality(80).build(),
+                CompressRequest.newBuilder().src(bitmap).quality(80).format(ImageEncoder.WEBP).build()};
+        for (CompressRequest request : requests) {
+            byte[] expected = compress(request);
+            try (FileOutputStream out = new FileOutputStream(output)) {
+                out.write(new byte[]{1, 2, 3});
+                CompressResult result = engine.compress(request.buildUpon().dst(out.getFD()).build());
+                assertTrue(result.isSuccess());
+            }
+            byte[] written = read(output);
+            byte[] prefixed = new byte[expected.length + 3];
+            prefixed[0] = 1;
+            prefixed[1] = 2;
+            prefixed[2] = 3;
+            System.arraycopy(expected, 0, prefixed, 3, expected.length);
+            assertArrayEquals(prefixed, written);
+        }
+        bitmap.recycle();
+    }
+}
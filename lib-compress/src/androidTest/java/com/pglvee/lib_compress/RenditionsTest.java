@@ -0,0 +1,57 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CompressEngine#compressRenditions(CompressRequest, List)}与逐个压缩的输出尺寸一致
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenditionsTest {
+
+    private final CompressEngine engine = new CompressEngine();
+
+    @Test
+    public void renditionsMatchSingleCompress() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        byte[] jpeg = TestImages.jpeg(bitmap, 90, 6);
+        bitmap.recycle();
+        // 旋转和裁剪使用source的设置，各尺寸不按从大到小排列
+        CompressRequest source = CompressRequest.newBuilder().src(jpeg).rotate().crop(1.2f).build();
+        int[][] sizes = {{240, 320}, {900, 1200}, {120, 160}, {600, 800}};
+        List<CompressRequest> renditions = new ArrayList<>();
+        for (int[] size : sizes)
+            renditions.add(CompressRequest.newBuilder().size(size[0], size[1]).quality(80).build());
+        renditions.add(CompressRequest.newBuilder().size(600, 800).max(30_000).build());
+
+        CompressResult[] results = engine.compressRenditions(source, renditions);
+        assertEquals(renditions.size(), results.length);
+        for (int i = 0; i < results.length; i++) {
+            CompressRequest rendition = renditions.get(i);
+            CompressResult single = engine.compress(source.buildUpon().size(rendition.width, rendition.height)
+                    .quality(rendition.quality).max(rendition.maxSize).build());
+            CompressResult result = results[i];
+            assertTrue("rendition " + i, result.isSuccess() && single.isSuccess());
+            assertArrayEquals("rendition " + i, single.outSize(), result.outSize());
+            assertArrayEquals("rendition " + i, single.inSize(), result.inSize());
+            byte[] data = result.getData();
+            Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length);
+            assertEquals(result.outSize()[0], decoded.getWidth());
+            assertEquals(result.outSize()[1], decoded.getHeight());
+            decoded.recycle();
+        }
+        assertTrue(results[4].getData().length <= 30_000);
+    }
+}
@@ -0,0 +1,58 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * 仪器测试使用的图片，在测试中生成，不依赖资源文件
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * 彩色渐变加上固定种子的噪声，压缩率接近照片，每个尺寸的内容都固定
+     */
+    static Bitmap photo(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(13) - 6;
+                row[x] = 0xff000000 | clamp(x * 255 / width + noise) << 16 | clamp(y * 255 / height + noise) << 8
+                        | clamp((x + y) * 127 / (width + height) + 64 + noise);
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 用系统编码器编码为jpeg，Exif方向不为0时在SOI之后插入只含Orientation的APP1
+     */
+    static byte[] jpeg(Bitmap bitmap, int quality, int orientation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        byte[] jpeg = out.toByteArray();
+        if (orientation == 0)
+            return jpeg;
+        byte[] app1 = {
+                (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                0, 0, 0, 0};
+        byte[] data = new byte[jpeg.length + app1.length];
+        System.arraycopy(jpeg, 0, data, 0, 2);
+        System.arraycopy(app1, 0, data, 2, app1.length);
+        System.arraycopy(jpeg, 2, data, 2 + app1.length, jpeg.length - 2);
+        return data;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
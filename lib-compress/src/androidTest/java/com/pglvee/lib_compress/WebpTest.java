@@ -0,0 +1,72 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ImageEncoder#WEBP}和{@link ImageEncoder#WEBP_LOSSLESS}的输出
+ */
+@RunWith(AndroidJUnit4.class)
+public class WebpTest {
+
+    private final CompressEngine engine = new CompressEngine();
+
+    private static Bitmap decode(CompressResult result, int width, int height) {
+        byte[] data = result.getData();
+        assertEquals("image/webp", result.getMimeType());
+        assertTrue(data.length > 12 && data[0] == 'R' && data[8] == 'W' && data[11] == 'P');
+        Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        return decoded;
+    }
+
+    @Test
+    public void lossyScalesAndFitsMaxSize() {
+        Bitmap bitmap = TestImages.photo(1600, 1200, Bitmap.Config.ARGB_8888);
+        CompressRequest request = CompressRequest.newBuilder().src(bitmap).size(800, 600)
+                .format(ImageEncoder.WEBP).build();
+        CompressResult result = engine.compress(request.buildUpon().quality(80).build());
+        assertTrue(result.isSuccess());
+        decode(result, 800, 600).recycle();
+
+        long max = result.getData().length / 2;
+        result = engine.compress(request.buildUpon().max(max).build());
+        assertTrue(result.isSuccess());
+        assertTrue(result.getData().length + " > " + max, result.getData().length <= max);
+        decode(result, 800, 600).recycle();
+        bitmap.recycle();
+    }
+
+    @Test
+    public void losslessKeepsPixels() {
+        Assume.assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+        Bitmap bitmap = TestImages.photo(320, 240, Bitmap.Config.ARGB_8888);
+        CompressResult result = engine.compress(CompressRequest.newBuilder().src(bitmap)
+                .format(ImageEncoder.WEBP_LOSSLESS).build());
+        assertTrue(result.isSuccess());
+        Bitmap decoded = decode(result, 320, 240);
+        for (int y = 0; y < 240; y++) {
+            for (int x = 0; x < 320; x++)
+                assertEquals(bitmap.getPixel(x, y), decoded.getPixel(x, y));
+        }
+        decoded.recycle();
+        bitmap.recycle();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void losslessRejectedBeforeQ() {
+        Assume.assumeTrue(Build.VERSION.SDK_INT < Build.VERSION_CODES.Q);
+        CompressRequest.newBuilder().format(ImageEncoder.WEBP_LOSSLESS);
+    }
+}
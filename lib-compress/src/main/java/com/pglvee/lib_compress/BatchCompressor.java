@@ -0,0 +1,160 @@
+package com.pglvee.lib_compress;
+
+import android.os.Process;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量压缩：按CPU核数并行执行，根据每张图片预估的像素内存峰值做准入控制，
+ * 同时处理的图片所需内存总和不超过memoryBudget，每张图片完成后立即回调
+ */
+public final class BatchCompressor {
+
+    public interface Callback {
+
+        /**
+         * 单张图片处理完成，在工作线程中回调，压缩失败时{@link CompressResult#isSuccess()}为false
+         */
+        void onResult(int index, CompressRequest request, CompressResult result);
+
+        /**
+         * 单张图片处理时抛出异常，包括OutOfMemoryError
+         */
+        void onError(int index, CompressRequest request, Throwable error);
+
+        /**
+         * 全部图片处理完成或取消
+         */
+        void onComplete();
+    }
+
+    /**
+     * 一次提交的批量任务
+     */
+    public static final class Batch {
+
+        private final AtomicInteger remaining;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+
+        private Batch(int count) {
+            this.remaining = new AtomicInteger(count);
+        }
+
+        /**
+         * 取消尚未开始的图片，正在压缩的图片会继续完成
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+    }
+
+    private static final int KB = 1024;
+    private final CompressEngine engine;
+    private final ExecutorService executor;
+    private final Semaphore memory;
+    private final int budget;
+
+    public BatchCompressor() {
+        this(CompressEngine.getDefault(), Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * @param parallelism 同时压缩的最大数量
+     * @param memoryBudget 同时处理的图片预估内存之和的上限，单张超过上限的图片会单独执行
+     */
+    public BatchCompressor(CompressEngine engine, int parallelism, long memoryBudget) {
+        this.engine = engine;
+        this.budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / KB));
+        this.memory = new Semaphore(budget, true);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "compress-batch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 提交一批图片，按列表顺序开始处理，结果按完成顺序回调
+     */
+    public Batch submit(List<CompressRequest> requests, final Callback callback) {
+        final Batch batch = new Batch(requests.size());
+        if (requests.isEmpty()) {
+            callback.onComplete();
+            batch.done.countDown();
+            return batch;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            final int index = i;
+            final CompressRequest request = requests.get(i);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(batch, index, request, callback);
+                }
+            });
+        }
+        return batch;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void process(Batch batch, int index, CompressRequest request, Callback callback) {
+        try {
+            if (batch.cancelled)
+                return;
+            // 头信息只读取一次，预估内存和压缩共用
+            ImageInfo info = CompressEngine.probe(request);
+            int permits = (int) Math.max(1, Math.min(budget, engine.estimatePeakBytes(request, info) / KB));
+            memory.acquire(permits);
+            try {
+                if (!batch.cancelled)
+                    callback.onResult(index, request, engine.compress(request, info));
+            } finally {
+                memory.release(permits);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.onError(index, request, e);
+        } catch (Throwable e) {
+            callback.onError(index, request, e);
+        } finally {
+            if (batch.remaining.decrementAndGet() == 0) {
+                callback.onComplete();
+                batch.done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.pglvee.lib_compress;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 可复用的Bitmap池，按像素格式和大小级别（2的幂）分组，总字节数超过上限时淘汰最久未使用的图片。
+ * 取出的图片通过reconfigure调整为需要的宽高，也可以作为BitmapFactory.Options.inBitmap解码
+ */
+public final class BitmapPool {
+
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> groups = new EnumMap<>(Bitmap.Config.class);
+    private final LinkedHashSet<Bitmap> lru = new LinkedHashSet<>();
+    private long maxBytes;
+    private long bytes;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 取出可以容纳指定宽高的图片并调整为该宽高，像素内容未定义；没有合适的图片时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> group = groups.get(config);
+        if (group == null || width <= 0 || height <= 0)
+            return null;
+        long need = (long) width * height * getBytesPerPixel(config);
+        int sizeClass = getSizeClass(need);
+        // 只复用同一级别或大一级的图片，避免用很大的图片承载很小的图片
+        for (int c = sizeClass; c <= sizeClass + 1; c++) {
+            ArrayDeque<Bitmap> bitmaps = group.get(c);
+            if (bitmaps == null)
+                continue;
+            for (Iterator<Bitmap> it = bitmaps.descendingIterator(); it.hasNext(); ) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getAllocationByteCount() < need)
+                    continue;
+                it.remove();
+                if (bitmaps.isEmpty())
+                    group.remove(c);
+                lru.remove(bitmap);
+                bytes -= bitmap.getAllocationByteCount();
+                try {
+                    bitmap.reconfigure(width, height, config);
+                    bitmap.setHasAlpha(true);
+                    return bitmap;
+                } catch (IllegalArgumentException e) {
+                    // 无法调整的图片不再放回池中，继续查找下一张
+                    bitmap.recycle();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 归还不再使用的图片，不可修改或超过上限的图片直接回收
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || lru.contains(bitmap))
+            return;
+        Bitmap.Config config = bitmap.getConfig();
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || config == null || size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        lru.add(bitmap);
+        TreeMap<Integer, ArrayDeque<Bitmap>> group = groups.get(config);
+        if (group == null) {
+            group = new TreeMap<>();
+            groups.put(config, group);
+        }
+        int sizeClass = getSizeClass(size);
+        ArrayDeque<Bitmap> bitmaps = group.get(sizeClass);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            group.put(sizeClass, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        bytes += size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * 修改容量上限，超出的部分立即淘汰
+     */
+    public synchronized void setMaxSize(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxSize() {
+        return maxBytes;
+    }
+
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 在{@link ComponentCallbacks2#onTrimMemory(int)}中调用，根据内存紧张程度释放部分或全部图片
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(getMaxSize() / 2);
+        }
+    }
+
+    private synchronized void trimToSize(long size) {
+        Iterator<Bitmap> it = lru.iterator();
+        while (bytes > size && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            TreeMap<Integer, ArrayDeque<Bitmap>> group = groups.get(bitmap.getConfig());
+            int sizeClass = getSizeClass(bitmap.getAllocationByteCount());
+            ArrayDeque<Bitmap> bitmaps = group.get(sizeClass);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty())
+                group.remove(sizeClass);
+            bytes -= bitmap.getAllocationByteCount();
+            bitmap.recycle();
+        }
+    }
+
+    private static int getSizeClass(long size) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1));
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
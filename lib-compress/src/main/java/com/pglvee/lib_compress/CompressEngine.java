@@ -0,0 +1,1143 @@
+package com.pglvee.lib_compress;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压缩引擎，可以长期持有并在多个线程中同时使用，不需要加锁。
+ * 每次压缩的参数由不可变的{@link CompressRequest}描述，中间状态只存在于本次调用中；
+ * native层按线程复用TurboJPEG实例，编码缓冲区和解码图片分别通过native缓冲池和{@link BitmapPool}复用。
+ */
+public final class CompressEngine {
+
+    /** 与native一致：按maxSize搜索质量最多编码的次数，输出达到maxSize的该比例时停止搜索 */
+    private static final int MAX_SEARCH_ENCODES = 8;
+    private static final double SEARCH_TOLERANCE = 0.97;
+    /** 异步压缩的线程空闲超过该时间后退出 */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    /** 优先级高的在前，同一优先级先提交的在前 */
+    private static final Comparator<Runnable> TASK_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable a, Runnable b) {
+            CompressTask x = (CompressTask) a;
+            CompressTask y = (CompressTask) b;
+            if (x.getPriority() != y.getPriority())
+                return Integer.compare(y.getPriority(), x.getPriority());
+            return Integer.compare(x.sequence, y.sequence);
+        }
+    };
+    private static volatile CompressEngine defaultEngine;
+    private static volatile int[] scalingFactors;
+    private final BitmapPool pool;
+    private final StreamCompressor stream;
+    private volatile ResultCache cache;
+    private volatile CompressMetrics.Listener listener;
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor encodeExecutor;
+
+    static {
+        System.loadLibrary("light");
+    }
+
+    public static CompressEngine getDefault() {
+        if (defaultEngine == null) {
+            synchronized (CompressEngine.class) {
+                if (defaultEngine == null)
+                    defaultEngine = new CompressEngine();
+            }
+        }
+        return defaultEngine;
+    }
+
+    public CompressEngine() {
+        this(new BitmapPool(Math.min(Runtime.getRuntime().maxMemory() / 8, 64L << 20)));
+    }
+
+    public CompressEngine(BitmapPool pool) {
+        this.pool = pool;
+        this.stream = new StreamCompressor(this);
+    }
+
+    public BitmapPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 设置压缩结果的磁盘缓存，相同的输入和参数再次压缩时直接使用缓存的结果，为null时不缓存
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 设置每次压缩完成后接收各阶段耗时的监听，为null时不回调；不设置时耗时仍然记录在{@link CompressResult#getMetrics()}中
+     */
+    public void setListener(CompressMetrics.Listener listener) {
+        this.listener = listener;
+    }
+
+    public CompressMetrics.Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * 在{@link ComponentCallbacks2#onTrimMemory(int)}中调用，释放缓存的图片和native编码缓冲区
+     */
+    public void trimMemory(int level) {
+        pool.trimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            trimBufferPool(0);
+    }
+
+    /**
+     * 设置所有引擎共享的native编码缓冲池的容量上限，默认64M
+     */
+    public static void setNativeBufferLimit(long maxBytes) {
+        setBufferPoolLimit(maxBytes);
+    }
+
+    /**
+     * 设置编码一张大图最多使用的线程数，为0时使用CPU核数，最多8个，默认为0；为1时只使用调用线程。
+     * 超过4M像素的图片按MCU行分成条带并行编码，用重启标记拼接成一张jpeg，解码得到的像素与单线程编码相同；
+     * 编码线程在第一次并行编码时创建并一直保留，同时压缩的多张图片共享这些线程，渐进式输出不并行
+     */
+    public static void setEncodeThreads(int threads) {
+        setEncodeThreadLimit(threads);
+    }
+
+    public CompressResult compress(CompressRequest request) {
+        return compress(request, probe(request));
+    }
+
+    /**
+     * 以默认优先级异步压缩
+     */
+    public CompressTask submit(CompressRequest request, CompressTask.Callback callback) {
+        return submit(request, CompressTask.PRIORITY_DEFAULT, callback);
+    }
+
+    /**
+     * 在引擎的压缩线程中异步压缩，排队的任务按优先级执行，已经开始的任务不会被抢占
+     *
+     * @param priority CompressTask.PRIORITY_*或其他整数，越大越先执行
+     * @param callback 完成后在压缩线程中回调，可以为null，通过{@link CompressTask#get()}等待结果
+     */
+    public CompressTask submit(CompressRequest request, int priority, CompressTask.Callback callback) {
+        CompressTask task = new CompressTask(this, request, priority, callback);
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * 线程数为CPU核数的一半，至少两个，后台任务占满时屏幕上的缩略图仍然排在队列最前面；
+     * 每个线程同时持有解码图片和输出图片，更多的线程只会增加内存峰值
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(16, TASK_ORDER), newThreadFactory("compress-async-"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * 多尺寸输出的并行编码：不排队，线程都在编码时由调用线程自己编码，
+     * 在异步压缩的线程中调用也不会互相等待
+     */
+    private synchronized ThreadPoolExecutor getEncodeExecutor() {
+        if (encodeExecutor == null) {
+            encodeExecutor = new ThreadPoolExecutor(0, Runtime.getRuntime().availableProcessors(), KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), newThreadFactory("compress-encode-"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return encodeExecutor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * 修改排队任务的优先级：先移出队列再重新加入，使队列按新的优先级排序
+     */
+    synchronized void reorder(CompressTask task, int priority) {
+        if (executor != null && task.isQueued() && executor.remove(task)) {
+            task.updatePriority(priority);
+            if (task.isQueued())
+                executor.execute(task);
+        } else {
+            task.updatePriority(priority);
+        }
+    }
+
+    /**
+     * 取消的任务移出队列，不再占用队列位置
+     */
+    synchronized void dequeue(CompressTask task) {
+        if (executor != null)
+            executor.remove(task);
+    }
+
+    /**
+     * 使用已经读取的头信息压缩，避免再次读取输入图片
+     *
+     * @param info {@link #probe(CompressRequest)}对同一个请求的结果
+     */
+    public CompressResult compress(CompressRequest request, ImageInfo info) {
+        return compress(request, info, null);
+    }
+
+    /**
+     * @param task 异步压缩的任务，在各阶段之间检查是否已经取消，同步压缩时为null
+     */
+    CompressResult compress(CompressRequest request, ImageInfo info, CompressTask task) {
+        long before = SystemClock.elapsedRealtimeNanos();
+        CompressMetrics metrics = new CompressMetrics();
+        metrics.probeNanos = info.probeNanos;
+        metrics.inputBytes = getInputBytes(request, info);
+        ResultCache cache = this.cache;
+        String key = cache != null ? ResultCache.key(request, info) : null;
+        CompressResult result = new CompressResult();
+        result.metrics = metrics;
+        if (key != null && cache.get(key, request, result)) {
+            metrics.path = CompressMetrics.PATH_CACHE;
+        } else if (!isCancelled(task)) {
+            result = compressUncached(request, info, metrics, task);
+            // 直接输出的原图不缓存，复制一次原图比读取缓存更快
+            if (key != null && result.success && !CompressMetrics.PATH_PASSTHROUGH.equals(metrics.path))
+                cache.put(key, request, result);
+        }
+        result.mimeType = request.encoder.getMimeType();
+        result.cancelled = !result.success && isCancelled(task);
+        result.oversize = isOversize(request, result);
+        metrics.outputBytes = Math.max(result.size, 0);
+        metrics.totalNanos = info.probeNanos + SystemClock.elapsedRealtimeNanos() - before;
+        CompressMetrics.Listener listener = this.listener;
+        if (listener != null)
+            listener.onCompressed(request, result, metrics);
+        return result;
+    }
+
+    /**
+     * 质量搜索找不到满足maxSize的质量时仍然输出最小的结果；无损变换和直接输出超过maxSize时改为重新编码，不会到这里
+     */
+    private static boolean isOversize(CompressRequest request, CompressResult result) {
+        return result.success && request.maxSize > 0 && result.size > request.maxSize;
+    }
+
+    /**
+     * 同一张图片输出多个尺寸：只解码一次，解码到最大的输出所需的尺寸，较小的尺寸从已经缩小的像素逐级缩小，
+     * 各尺寸并行编码。renditions中的请求只使用尺寸、质量、maxSize、ssim、裁剪、编码方式和输出位置，
+     * 输入、旋转和背景使用source的设置；共享的解码时间计入最大的尺寸，像素内存峰值包括共享的各级像素
+     *
+     * @return 与renditions一一对应的结果
+     */
+    public CompressResult[] compressRenditions(CompressRequest source, List<CompressRequest> renditions) {
+        long before = SystemClock.elapsedRealtimeNanos();
+        ImageInfo info = probe(source);
+        int count = renditions.size();
+        CompressRequest[] requests = new CompressRequest[count];
+        CompressResult[] results = new CompressResult[count];
+        String[] keys = new String[count];
+        ResultCache cache = this.cache;
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests[i] = renditions.get(i).withSource(source);
+            results[i] = new CompressResult();
+            results[i].metrics = new CompressMetrics();
+            results[i].metrics.probeNanos = info.probeNanos;
+            results[i].metrics.inputBytes = getInputBytes(source, info);
+            keys[i] = cache != null ? ResultCache.key(requests[i], info) : null;
+            if (keys[i] != null && cache.get(keys[i], requests[i], results[i]))
+                results[i].metrics.path = CompressMetrics.PATH_CACHE;
+            else
+                pending.add(i);
+        }
+        if (!pending.isEmpty())
+            compressRenditions(requests, results, pending, info);
+        for (int i : pending) {
+            if (keys[i] != null && results[i].success && !CompressMetrics.PATH_PASSTHROUGH.equals(results[i].metrics.path))
+                cache.put(keys[i], requests[i], results[i]);
+        }
+        long totalNanos = info.probeNanos + SystemClock.elapsedRealtimeNanos() - before;
+        CompressMetrics.Listener listener = this.listener;
+        for (int i = 0; i < count; i++) {
+            results[i].mimeType = requests[i].encoder.getMimeType();
+            results[i].oversize = isOversize(requests[i], results[i]);
+            results[i].metrics.outputBytes = Math.max(results[i].size, 0);
+            results[i].metrics.totalNanos = totalNanos;
+            if (listener != null)
+                listener.onCompressed(requests[i], results[i], results[i].metrics);
+        }
+        return results;
+    }
+
+    /**
+     * 无需解码的无损变换、YUV输入和超大图片的条带压缩逐个处理，其余的按输出从大到小处理，
+     * 每个尺寸从已有的最小一级像素开始缩放；jpeg图片都输出jpeg时在YUV平面上处理，其他输入、其他编码器和任意角度的旋转使用Bitmap
+     */
+    private void compressRenditions(CompressRequest[] requests, CompressResult[] results, List<Integer> pending, ImageInfo info) {
+        CompressRequest source = requests[pending.get(0)];
+        ByteBuffer jpegData = info.isJpeg() ? info.data : null;
+        int w = info.width;
+        int h = info.height;
+        int angle = source.autoRotate ? info.getDegree() : source.angle;
+        final float[] scales = new float[requests.length];
+        int[][] crops = new int[requests.length][];
+        List<Integer> shared = new ArrayList<>();
+        boolean planar = jpegData != null && angle % 90 == 0;
+        for (int i : pending) {
+            CompressRequest request = requests[i];
+            crops[i] = ImageUtils.getOptionCrop(w, h, request.maxScale);
+            scales[i] = ImageUtils.getOptionScale(crops[i][0], crops[i][1], request.width, request.height);
+            boolean single = source.inputYuv != null || source.inputBitmap == null && StreamCompressor.isStream(request, angle,
+                    getDecodedPixels(request, jpegData, w, h, scales[i], crops[i]));
+            if (LosslessCompressor.isTransform(request, info, scales[i], angle)
+                    || LosslessCompressor.isPassThrough(request, info, scales[i], crops[i], angle))
+                single = true;
+            if (single) {
+                results[i] = compressUncached(request, info, results[i].metrics, null);
+            } else {
+                shared.add(i);
+                planar &= request.isJpegOutput();
+            }
+        }
+        if (shared.isEmpty() || w == 0 || h == 0)
+            return;
+        Integer[] order = shared.toArray(new Integer[0]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(scales[a], scales[b]);
+            }
+        });
+        if (!planar || !planarRenditions(requests, results, order, w, h, scales, crops, angle, jpegData))
+            bitmapRenditions(requests, results, order, w, h, scales, crops, angle, jpegData);
+    }
+
+    /**
+     * jpeg图片按最大的输出解码一次到YUV平面，输出尺寸不超过当前一级的一半时缩小出新的一级，
+     * 各尺寸从当前一级裁剪、缩放和旋转后并行编码；解码失败时返回false
+     */
+    private boolean planarRenditions(final CompressRequest[] requests, final CompressResult[] results, Integer[] order, int w, int h,
+                                     float[] scales, int[][] crops, int angle, ByteBuffer jpegData) {
+        long decodeBefore = SystemClock.elapsedRealtimeNanos();
+        int[] factor = ImageUtils.getOptionScalingFactor(scales[order[0]], getScalingFactors());
+        int levelWidth = ImageUtils.getScaled(w, factor);
+        int levelHeight = ImageUtils.getScaled(h, factor);
+        long level = decodePlanes(jpegData, levelWidth, levelHeight);
+        if (level == 0)
+            return false;
+        results[order[0]].metrics.decodeNanos = SystemClock.elapsedRealtimeNanos() - decodeBefore;
+        final int degree = (angle % 360 + 360) % 360;
+        long levelBytes = 3L * levelWidth * levelHeight / 2;
+        List<Long> levels = new ArrayList<>();
+        levels.add(level);
+        List<Future<?>> encodes = new ArrayList<>();
+        try {
+            for (final int i : order) {
+                int needWidth = Math.max(1, (int) (w / scales[i]));
+                int needHeight = Math.max(1, (int) (h / scales[i]));
+                CompressMetrics metrics = results[i].metrics;
+                if (needWidth * 2 <= levelWidth && needHeight * 2 <= levelHeight) {
+                    long transformBefore = SystemClock.elapsedRealtimeNanos();
+                    long scaled = scalePlanes(level, needWidth, needHeight);
+                    if (scaled != 0) {
+                        levels.add(scaled);
+                        level = scaled;
+                        levelWidth = needWidth;
+                        levelHeight = needHeight;
+                        levelBytes += 3L * needWidth * needHeight / 2;
+                    }
+                    metrics.transformNanos = SystemClock.elapsedRealtimeNanos() - transformBefore;
+                }
+                final long src = level;
+                final int[] crop = crops[i];
+                final int x = (int) ((long) crop[2] * levelWidth / w);
+                final int y = (int) ((long) crop[3] * levelHeight / h);
+                final int cw = (int) ((long) crop[0] * levelWidth / w);
+                final int ch = (int) ((long) crop[1] * levelHeight / h);
+                final int outWidth = (int) (crop[0] / scales[i]);
+                final int outHeight = (int) (crop[1] / scales[i]);
+                metrics.path = CompressMetrics.PATH_PLANAR;
+                metrics.peakPixelBytes = levelBytes;
+                results[i].inWidth = w;
+                results[i].inHeight = h;
+                encodes.add(getEncodeExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        CompressRequest request = requests[i];
+                        ResultWriter.write(request, results[i], planesCompress(src, x, y, cw, ch, outWidth, outHeight, degree,
+                                request.quality > 0 ? request.quality : 100, request.maxSize, request.ssim, request.options(), null));
+                    }
+                }));
+            }
+        } finally {
+            awaitAll(encodes);
+            for (long planes : levels)
+                releasePlanes(planes);
+        }
+        return true;
+    }
+
+    /**
+     * 解码为Bitmap后按与YUV平面相同的方式逐级缩小，Bitmap输入直接作为第一级
+     */
+    private void bitmapRenditions(final CompressRequest[] requests, final CompressResult[] results, Integer[] order, int w, int h,
+                                  float[] scales, int[][] crops, int angle, ByteBuffer jpegData) {
+        CompressRequest source = requests[order[0]];
+        Bitmap level = source.inputBitmap;
+        if (level == null) {
+            long decodeBefore = SystemClock.elapsedRealtimeNanos();
+            level = decodeBitmap(source, jpegData, w, h, scales[order[0]]);
+            results[order[0]].metrics.decodeNanos = SystemClock.elapsedRealtimeNanos() - decodeBefore;
+            if (level == null)
+                return;
+        }
+        long levelBytes = level.getAllocationByteCount();
+        List<Bitmap> levels = new ArrayList<>();
+        levels.add(level);
+        List<Future<?>> encodes = new ArrayList<>();
+        try {
+            for (final int i : order) {
+                final CompressRequest request = requests[i];
+                int needWidth = Math.max(1, (int) (w / scales[i]));
+                int needHeight = Math.max(1, (int) (h / scales[i]));
+                CompressMetrics metrics = results[i].metrics;
+                long transformBefore = SystemClock.elapsedRealtimeNanos();
+                if (needWidth * 2 <= level.getWidth() && needHeight * 2 <= level.getHeight()) {
+                    Bitmap scaled = obtainBitmap(needWidth, needHeight);
+                    // 复用的图片保留着上一次的像素，透明的图片需要先清空
+                    scaled.eraseColor(0);
+                    new Canvas(scaled).drawBitmap(level, null, new Rect(0, 0, needWidth, needHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+                    levels.add(scaled);
+                    level = scaled;
+                    levelBytes += scaled.getAllocationByteCount();
+                }
+                final Bitmap outB = transformBitmap(request, level, new int[]{0, 0, w, h}, w, h, scales[i], crops[i], angle);
+                final boolean ownsOutput = outB != level;
+                metrics.transformNanos = SystemClock.elapsedRealtimeNanos() - transformBefore;
+                metrics.path = CompressMetrics.PATH_BITMAP;
+                metrics.peakPixelBytes = levelBytes + (outB != level ? outB.getAllocationByteCount() : 0);
+                results[i].inWidth = w;
+                results[i].inHeight = h;
+                encodes.add(getEncodeExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        encode(request, results[i], outB, null);
+                        // 输出图片编码后立即释放，各级像素等所有尺寸编码完成后再释放
+                        if (ownsOutput)
+                            pool.put(outB);
+                    }
+                }));
+            }
+        } finally {
+            awaitAll(encodes);
+            for (Bitmap bitmap : levels) {
+                if (bitmap != source.inputBitmap)
+                    pool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * 等待所有编码结束；被中断时也要等到native不再读取共享的像素之后才能释放
+     */
+    private static void awaitAll(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    static boolean isCancelled(CompressTask task) {
+        return task != null && task.isCancelled();
+    }
+
+    private CompressResult compressUncached(CompressRequest request, ImageInfo info, CompressMetrics metrics, CompressTask task) {
+        CompressResult result = new CompressResult();
+        result.metrics = metrics;
+        Bitmap bitmap = request.inputBitmap;
+        int angle = request.angle;
+        int w, h;
+        float scale;
+        int[] cropOptions, region;
+        if (request.inputYuv != null) {
+            YuvPlanes yuv = request.inputYuv;
+            w = yuv.width;
+            h = yuv.height;
+            cropOptions = ImageUtils.getOptionCrop(w, h, request.maxScale);
+            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], request.width, request.height);
+            long handle = angle % 90 == 0 && request.isJpegOutput() ? yuvCompress(request, yuv, scale, cropOptions, angle, task) : 0;
+            if (handle != 0) {
+                metrics.path = CompressMetrics.PATH_PLANAR;
+                ResultWriter.write(request, result, handle);
+                result.inWidth = w;
+                result.inHeight = h;
+                return result;
+            }
+            if (isCancelled(task))
+                return result;
+            // 任意角度的旋转在bitmap上绘制
+            long decodeBefore = SystemClock.elapsedRealtimeNanos();
+            bitmap = obtainBitmap(w, h);
+            if (yuvToBitmap(yuv, bitmap) < 0) {
+                pool.put(bitmap);
+                bitmap = null;
+            }
+            metrics.decodeNanos = SystemClock.elapsedRealtimeNanos() - decodeBefore;
+            region = new int[]{0, 0, w, h};
+        } else if (bitmap == null) {
+            ByteBuffer jpegData = info.isJpeg() ? info.data : null;
+            w = info.width;
+            h = info.height;
+            if (request.autoRotate)
+                angle = info.getDegree();
+            cropOptions = ImageUtils.getOptionCrop(w, h, request.maxScale);
+            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], request.width, request.height);
+            if (LosslessCompressor.isPassThrough(request, info, scale, cropOptions, angle)
+                    && LosslessCompressor.passThrough(request, result, jpegData)) {
+                metrics.path = CompressMetrics.PATH_PASSTHROUGH;
+                result.inWidth = w;
+                result.inHeight = h;
+                return result;
+            }
+            if (LosslessCompressor.isTransform(request, info, scale, angle)
+                    && LosslessCompressor.transform(request, result, jpegData, w, h, angle)) {
+                metrics.path = CompressMetrics.PATH_TRANSFORM;
+                result.inWidth = w;
+                result.inHeight = h;
+                return result;
+            }
+            if (StreamCompressor.isStream(request, angle, getDecodedPixels(request, jpegData, w, h, scale, cropOptions))
+                    && stream.compress(request, result, w, h, scale, cropOptions, task)) {
+                metrics.path = CompressMetrics.PATH_STREAM;
+                result.inWidth = w;
+                result.inHeight = h;
+                return result;
+            }
+            if (isCancelled(task))
+                return result;
+            long handle = isPlanar(request, jpegData, w, h, cropOptions, angle)
+                    ? jpegYuvCompress(request, jpegData, w, h, scale, cropOptions, angle, task) : 0;
+            if (handle != 0) {
+                metrics.path = CompressMetrics.PATH_PLANAR;
+                ResultWriter.write(request, result, handle);
+                result.inWidth = w;
+                result.inHeight = h;
+                return result;
+            }
+            if (isCancelled(task))
+                return result;
+            long decodeBefore = SystemClock.elapsedRealtimeNanos();
+            region = new int[]{cropOptions[2], cropOptions[3], cropOptions[0], cropOptions[1]};
+            if (!ImageUtils.isRegionCrop(w, h, cropOptions) || (bitmap = stream.decodeRegion(request, region, scale)) == null) {
+                region = new int[]{0, 0, w, h};
+                bitmap = decodeBitmap(request, jpegData, w, h, scale);
+            }
+            metrics.decodeNanos = SystemClock.elapsedRealtimeNanos() - decodeBefore;
+        } else {
+            w = bitmap.getWidth();
+            h = bitmap.getHeight();
+            cropOptions = ImageUtils.getOptionCrop(w, h, request.maxScale);
+            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], request.width, request.height);
+            region = new int[]{0, 0, w, h};
+        }
+        if (w == 0 || h == 0 || bitmap == null)
+            return result;
+        if (isCancelled(task)) {
+            if (bitmap != request.inputBitmap)
+                pool.put(bitmap);
+            return result;
+        }
+        result.inWidth = w;
+        result.inHeight = h;
+        metrics.path = CompressMetrics.PATH_BITMAP;
+        long transformBefore = SystemClock.elapsedRealtimeNanos();
+        Bitmap outB = transformBitmap(request, bitmap, region, w, h, scale, cropOptions, angle);
+        metrics.transformNanos = SystemClock.elapsedRealtimeNanos() - transformBefore;
+        metrics.peakPixelBytes = bitmap.getAllocationByteCount() + (outB != bitmap ? outB.getAllocationByteCount() : 0);
+        try {
+            // 解码得到的图片在编码之前释放，同一时刻最多只有解码图片和输出图片两份像素
+            if (bitmap != outB && bitmap != request.inputBitmap)
+                pool.put(bitmap);
+            if (!isCancelled(task))
+                encode(request, result, outB, task);
+            if (outB != request.inputBitmap)
+                pool.put(outB);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * 输入文件或内存数据的字节数，Bitmap和YUV输入按像素数据计算
+     */
+    private static long getInputBytes(CompressRequest request, ImageInfo info) {
+        if (info.data != null)
+            return info.data.remaining();
+        if (request.inputBitmap != null)
+            return request.inputBitmap.getByteCount();
+        if (request.inputYuv != null)
+            return 3L * request.inputYuv.width * request.inputYuv.height / 2;
+        return 0;
+    }
+
+    /**
+     * 预估压缩过程中同时存在的像素内存峰值，只使用图片的头信息：
+     * 解码得到的图片，加上缩放、裁剪、旋转之后的一张输出图片；条带压缩时为一段解码区域和对应的输出；
+     * 在YUV平面上处理时按每个像素1.5字节计算
+     */
+    long estimatePeakBytes(CompressRequest request, ImageInfo info) {
+        int w = info.width;
+        int h = info.height;
+        ByteBuffer jpegData = info.isJpeg() ? info.data : null;
+        int[] cropOptions = ImageUtils.getOptionCrop(w, h, request.maxScale);
+        float scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], request.width, request.height);
+        boolean decoded = request.inputBitmap == null && request.inputYuv == null;
+        long decodedPixels = decoded ? getDecodedPixels(request, jpegData, w, h, scale, cropOptions) : 0;
+        long outPixels = (long) (cropOptions[0] / scale) * (long) (cropOptions[1] / scale);
+        // 与compress一致，自动旋转时使用Exif方向，否则会把需要旋转的大图估计为条带压缩
+        int angle = request.autoRotate ? info.getDegree() : request.angle;
+        // 直接输出的原图不解码
+        if (decoded && LosslessCompressor.isPassThrough(request, info, scale, cropOptions, angle)
+                && (request.maxSize <= 0 || info.data.remaining() <= request.maxSize))
+            return 0;
+        if (decoded && StreamCompressor.isStream(request, angle, decodedPixels))
+            return 2 * StreamCompressor.STREAM_CHUNK_BYTES;
+        // YUV 4:2:0每个像素1.5字节，旋转时多一份输出平面
+        if (request.inputYuv != null && angle % 90 == 0 && request.isJpegOutput()
+                || decoded && isPlanar(request, jpegData, w, h, cropOptions, angle))
+            return 3L * (decodedPixels + (angle % 180 != 0 ? 2 : 1) * outPixels) / 2;
+        if (request.inputYuv != null)
+            decodedPixels = (long) w * h;
+        if (angle % 90 != 0)
+            outPixels *= 2;
+        return 4L * (decodedPixels + outPixels);
+    }
+
+    /**
+     * 解码得到的图片的像素数：裁剪时只解码保留的区域，jpeg使用TurboJPEG缩放因子，其他格式使用inSampleSize
+     */
+    private static long getDecodedPixels(CompressRequest request, ByteBuffer jpegData, int w, int h, float scale, int[] cropOptions) {
+        if (ImageUtils.isRegionCrop(w, h, cropOptions)) {
+            int sample = ImageUtils.getOptionSample(scale);
+            return (long) ((cropOptions[0] + sample - 1) / sample) * ((cropOptions[1] + sample - 1) / sample);
+        } else if (jpegData != null) {
+            int[] factor = ImageUtils.getOptionScalingFactor(scale, getScalingFactors());
+            return (long) ImageUtils.getScaled(w, factor) * ImageUtils.getScaled(h, factor);
+        }
+        int sample = ImageUtils.getOptionSample(scale);
+        return (long) ((w + sample - 1) / sample) * ((h + sample - 1) / sample);
+    }
+
+    /**
+     * jpeg图片重新编码时解码到YUV平面处理，不经过RGB转换；裁剪时仍然只解码保留的区域
+     */
+    private static boolean isPlanar(CompressRequest request, ByteBuffer jpegData, int w, int h, int[] cropOptions, int angle) {
+        return jpegData != null && request.isJpegOutput() && angle % 90 == 0 && !ImageUtils.isRegionCrop(w, h, cropOptions);
+    }
+
+    /**
+     * 在YUV平面上裁剪、缩放和旋转后直接编码，失败时返回0
+     */
+    private static long yuvCompress(CompressRequest request, YuvPlanes yuv, float scale, int[] cropOptions, int angle, CompressTask task) {
+        return yuvCompress(yuv.getBuffer(0), yuv.getBuffer(1), yuv.getBuffer(2), yuv.array, yuv.offsets, yuv.rowStrides,
+                yuv.uvPixelStride, yuv.width, yuv.height, cropOptions[2], cropOptions[3], cropOptions[0], cropOptions[1],
+                (int) (cropOptions[0] / scale), (int) (cropOptions[1] / scale), (angle % 360 + 360) % 360,
+                request.quality > 0 ? request.quality : 100, request.maxSize, request.ssim, request.options(),
+                task != null ? task.cancelFlag : null);
+    }
+
+    private static int yuvToBitmap(YuvPlanes yuv, Bitmap bitmap) {
+        return yuvToBitmap(yuv.getBuffer(0), yuv.getBuffer(1), yuv.getBuffer(2), yuv.array, yuv.offsets, yuv.rowStrides,
+                yuv.uvPixelStride, yuv.width, yuv.height, bitmap);
+    }
+
+    /**
+     * jpeg图片使用TurboJPEG缩放因子解码到YUV平面，裁剪区域换算到缩放后的坐标，失败时返回0
+     */
+    private static long jpegYuvCompress(CompressRequest request, ByteBuffer data, int w, int h, float scale, int[] cropOptions, int angle,
+                                        CompressTask task) {
+        int[] factor = ImageUtils.getOptionScalingFactor(scale, getScalingFactors());
+        int scaledWidth = ImageUtils.getScaled(w, factor);
+        int scaledHeight = ImageUtils.getScaled(h, factor);
+        int x = (int) ((long) cropOptions[2] * scaledWidth / w);
+        int y = (int) ((long) cropOptions[3] * scaledHeight / h);
+        int cw = (int) ((long) cropOptions[0] * scaledWidth / w);
+        int ch = (int) ((long) cropOptions[1] * scaledHeight / h);
+        int outWidth = (int) (cropOptions[0] / scale);
+        int outHeight = (int) (cropOptions[1] / scale);
+        int degree = (angle % 360 + 360) % 360;
+        int quality = request.quality > 0 ? request.quality : 100;
+        ByteBuffer cancel = task != null ? task.cancelFlag : null;
+        if (data.isDirect())
+            return jpegYuvCompress(data, null, data.position(), data.remaining(), scaledWidth, scaledHeight,
+                    x, y, cw, ch, outWidth, outHeight, degree, quality, request.maxSize, request.ssim, request.options(), cancel);
+        return jpegYuvCompress(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), scaledWidth, scaledHeight,
+                x, y, cw, ch, outWidth, outHeight, degree, quality, request.maxSize, request.ssim, request.options(), cancel);
+    }
+
+    private static long decodePlanes(ByteBuffer data, int scaledWidth, int scaledHeight) {
+        if (data.isDirect())
+            return decodePlanes(data, null, data.position(), data.remaining(), scaledWidth, scaledHeight);
+        return decodePlanes(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), scaledWidth, scaledHeight);
+    }
+
+    /**
+     * 编码输出图片：jpeg交给native，其他格式使用请求的编码器，设置了maxSize时按与native相同的方式搜索质量
+     *
+     * @param task 在质量搜索的每次编码之前检查是否已经取消，可以为null
+     */
+    private void encode(CompressRequest request, CompressResult result, Bitmap bitmap, CompressTask task) {
+        if (request.isJpegOutput()) {
+            ResultWriter.write(request, result, bitmapCompress(bitmap, request.quality > 0 ? request.quality : 100, request.maxSize,
+                    request.ssim, request.options(), task != null ? task.cancelFlag : null));
+            return;
+        }
+        long before = SystemClock.elapsedRealtimeNanos();
+        ImageEncoder encoder = request.encoder;
+        EncodeBuffer[] buffers = {new EncodeBuffer(bitmap.getByteCount() / 8), null};
+        int quality = request.quality > 0 ? request.quality : 100;
+        try {
+            if (request.maxSize > 0 && !encoder.isLossless()) {
+                buffers[1] = new EncodeBuffer(bitmap.getByteCount() / 8);
+                quality = searchQuality(encoder, bitmap, request.maxSize, buffers, result.metrics, task);
+            } else if (!encoder.encode(bitmap, quality, buffers[0])) {
+                quality = -1;
+            }
+            result.metrics.encodeNanos += SystemClock.elapsedRealtimeNanos() - before;
+            if (quality < 0)
+                return;
+            ResultWriter.write(request, result, buffers[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        result.outWidth = bitmap.getWidth();
+        result.outHeight = bitmap.getHeight();
+        result.quality = quality;
+    }
+
+    /**
+     * 从100开始二分查找输出不超过maxSize的最高质量，两个缓冲区轮流保存当前最好的结果和下一次尝试；
+     * 没有质量满足时使用得到的最小输出
+     *
+     * @return 选择的质量，结果在buffers[0]中；编码失败或取消时返回-1
+     */
+    private static int searchQuality(ImageEncoder encoder, Bitmap bitmap, long maxSize, EncodeBuffer[] buffers,
+                                     CompressMetrics metrics, CompressTask task) throws IOException {
+        int lo = 1, hi = 100, q = 100, encodes = 0, bestQuality = -1, tryIndex = 0;
+        long bestSize = 0;
+        boolean fits = false;
+        int[] qualities = new int[MAX_SEARCH_ENCODES];
+        long[] sizes = new long[MAX_SEARCH_ENCODES];
+        try {
+            while (lo <= hi && encodes < MAX_SEARCH_ENCODES) {
+                if (isCancelled(task))
+                    return -1;
+                EncodeBuffer out = buffers[tryIndex];
+                out.reset();
+                if (!encoder.encode(bitmap, q, out))
+                    return -1;
+                long size = out.size();
+                qualities[encodes] = q;
+                sizes[encodes++] = size;
+                if (size <= maxSize ? !fits || q > bestQuality : !fits && (bestSize == 0 || size < bestSize)) {
+                    // 保留这次的结果，下一次尝试写到另一个缓冲区
+                    tryIndex = 1 - tryIndex;
+                    bestSize = size;
+                    bestQuality = q;
+                }
+                if (size <= maxSize) {
+                    fits = true;
+                    if (size >= maxSize * SEARCH_TOLERANCE)
+                        break;
+                    lo = q + 1;
+                } else {
+                    hi = q - 1;
+                }
+                q = (lo + hi) / 2;
+            }
+        } finally {
+            metrics.searchQualities = Arrays.copyOf(qualities, encodes);
+            metrics.searchSizes = Arrays.copyOf(sizes, encodes);
+        }
+        if (tryIndex == 0) {
+            EncodeBuffer best = buffers[1];
+            buffers[1] = buffers[0];
+            buffers[0] = best;
+        }
+        return bestQuality;
+    }
+
+    /**
+     * 读取输入图片的头信息：文件只映射一次，格式、宽高和Exif方向由native从文件头中解析，
+     * native无法识别的格式使用BitmapFactory读取宽高；Bitmap和YUV输入直接使用其宽高
+     */
+    public static ImageInfo probe(CompressRequest request) {
+        long before = SystemClock.elapsedRealtimeNanos();
+        ImageInfo info = probeInput(request);
+        info.probeNanos = SystemClock.elapsedRealtimeNanos() - before;
+        return info;
+    }
+
+    private static ImageInfo probeInput(CompressRequest request) {
+        if (request.inputYuv != null)
+            return new ImageInfo(null, request.inputYuv.width, request.inputYuv.height, -1, -1, 0, -1, null);
+        if (request.inputBitmap != null)
+            return new ImageInfo(null, request.inputBitmap.getWidth(), request.inputBitmap.getHeight(), -1, -1, 0, -1, null);
+        ImageInfo info = request.inputData != null ? ImageInfo.probe(request.inputData) : ImageInfo.probe(request.inputFilePath);
+        if (info.width > 0 && info.height > 0 || info.data == null)
+            return info;
+        BitmapFactory.Options newOpts = new BitmapFactory.Options();
+        newOpts.inJustDecodeBounds = true;
+        decodeBitmap(request, newOpts);
+        return new ImageInfo(newOpts.outMimeType != null ? newOpts.outMimeType : info.mimeType, Math.max(newOpts.outWidth, 0),
+                Math.max(newOpts.outHeight, 0), -1, -1, 0, -1, info.data);
+    }
+
+    /**
+     * 按缩放比例解码输入图片：jpeg图片在libjpeg-turbo的DCT域中直接缩放到不小于目标的尺寸，其他图片使用inSampleSize
+     */
+    private Bitmap decodeBitmap(CompressRequest request, ByteBuffer jpegData, int w, int h, float scale) {
+        if (jpegData != null) {
+            int[] factor = ImageUtils.getOptionScalingFactor(scale, getScalingFactors());
+            Bitmap decoded = obtainBitmap(ImageUtils.getScaled(w, factor), ImageUtils.getScaled(h, factor));
+            if (bitmapDecompress(jpegData, decoded) < 0) {
+                pool.put(decoded);
+                return null;
+            }
+            return decoded;
+        }
+        BitmapFactory.Options newOpts = new BitmapFactory.Options();
+        newOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        newOpts.inSampleSize = ImageUtils.getOptionSample(scale);
+        return decodePooled(request, null, null, newOpts, w, h);
+    }
+
+    /**
+     * 使用图片池中的图片作为inBitmap解码整张图片或decoder中的一个区域，复用失败时重新分配
+     */
+    Bitmap decodePooled(CompressRequest request, BitmapRegionDecoder decoder, Rect rect, BitmapFactory.Options opts, int w, int h) {
+        opts.inMutable = true;
+        opts.inBitmap = pool.get((w + opts.inSampleSize - 1) / opts.inSampleSize,
+                (h + opts.inSampleSize - 1) / opts.inSampleSize, Bitmap.Config.ARGB_8888);
+        Bitmap decoded;
+        try {
+            decoded = decoder != null ? decoder.decodeRegion(rect, opts) : decodeBitmap(request, opts);
+        } catch (IllegalArgumentException e) {
+            if (opts.inBitmap == null)
+                throw e;
+            pool.put(opts.inBitmap);
+            opts.inBitmap = null;
+            return decoder != null ? decoder.decodeRegion(rect, opts) : decodeBitmap(request, opts);
+        }
+        if (opts.inBitmap != null && decoded != opts.inBitmap)
+            pool.put(opts.inBitmap);
+        return decoded;
+    }
+
+    /**
+     * 从图片池中取出ARGB_8888格式的图片，没有合适的图片时新建
+     */
+    Bitmap obtainBitmap(int width, int height) {
+        Bitmap bitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * direct buffer和文件映射通过{@link ByteBufferInputStream}解码，不复制到堆上
+     */
+    private static Bitmap decodeBitmap(CompressRequest request, BitmapFactory.Options opts) {
+        ByteBuffer inputData = request.inputData;
+        if (inputData == null)
+            return BitmapFactory.decodeFile(request.inputFilePath, opts);
+        if (inputData.hasArray())
+            return BitmapFactory.decodeByteArray(inputData.array(), inputData.arrayOffset() + inputData.position(), inputData.remaining(), opts);
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(inputData), null, opts);
+    }
+
+    /**
+     * bitmap对应原图中的region区域，先映射到缩放后的整图坐标，再平移到裁剪区域
+     */
+    static Matrix getTransformMatrix(Bitmap bitmap, int[] region, int w, int h, float scale, int[] cropOptions) {
+        float sx = (int) (w / scale) / (float) w;
+        float sy = (int) (h / scale) / (float) h;
+        Matrix matrix = new Matrix();
+        matrix.setScale(region[2] * sx / bitmap.getWidth(), region[3] * sy / bitmap.getHeight());
+        matrix.postTranslate(region[0] * sx - (int) (cropOptions[2] / scale), region[1] * sy - (int) (cropOptions[3] / scale));
+        return matrix;
+    }
+
+    /**
+     * 将缩放、裁剪、旋转和背景填充合并为一次绘制，只分配一张最终尺寸的输出图片；
+     * 无需任何变换且为ARGB_8888格式时直接返回原图
+     */
+    private Bitmap transformBitmap(CompressRequest request, Bitmap bitmap, int[] region, int w, int h, float scale, int[] cropOptions, int angle) {
+        int outWidth = (int) (cropOptions[0] / scale);
+        int outHeight = (int) (cropOptions[1] / scale);
+        Matrix matrix = getTransformMatrix(bitmap, region, w, h, scale, cropOptions);
+        if (angle % 360 != 0) {
+            Matrix rotate = new Matrix();
+            rotate.setRotate(angle, outWidth / 2f, outHeight / 2f);
+            RectF bounds = new RectF(0, 0, outWidth, outHeight);
+            rotate.mapRect(bounds);
+            rotate.postTranslate(-bounds.left, -bounds.top);
+            matrix.postConcat(rotate);
+            outWidth = Math.round(bounds.width());
+            outHeight = Math.round(bounds.height());
+        }
+        if (matrix.isIdentity() && request.background == 0 && bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                && outWidth == bitmap.getWidth() && outHeight == bitmap.getHeight())
+            return bitmap;
+        Bitmap outB = obtainBitmap(outWidth, outHeight);
+        // 复用的图片保留着上一次的像素，需要先清空
+        outB.eraseColor(request.background);
+        Canvas canvas = new Canvas(outB);
+        canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return outB;
+    }
+
+    /**
+     * 使用TurboJPEG编码整张Bitmap，供单独调用{@link ImageEncoder#JPEG}时使用
+     *
+     * @return 失败时返回null
+     */
+    static byte[] encodeJpeg(Bitmap bitmap, int quality) {
+        long handle = bitmapCompress(bitmap, quality, 0, 0, CompressRequest.OUTPUT_BASELINE, null);
+        if (handle == 0)
+            return null;
+        try {
+            return getResult(handle);
+        } finally {
+            freeResult(handle);
+        }
+    }
+
+    private static int[] getScalingFactors() {
+        if (scalingFactors == null)
+            scalingFactors = scalingFactors();
+        return scalingFactors;
+    }
+
+    private static int bitmapDecompress(ByteBuffer data, Bitmap bitmap) {
+        if (data.isDirect())
+            return bitmapDecompress(data, null, data.position(), data.remaining(), bitmap);
+        return bitmapDecompress(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), bitmap);
+    }
+
+    /**
+     * 直接使用Bitmap的像素数据编码jpeg，无需中间文件
+     *
+     * @param bitmap ARGB_8888格式的图片
+     * @param quality 输出质量，maxSize大于0时无效
+     * @param maxSize 输出的最大大小，为0时不限制
+     * @param ssim 大于0时使用SSIM不低于该值的最低质量，maxSize大于0时无效
+     * @param output 编码方式，为CompressRequest.OUTPUT_*之一
+     * @param cancel 任务的取消标志，质量搜索的每次编码之前检查，可以为null
+     * @return 压缩结果，失败或取消时返回0
+     */
+    private static native long bitmapCompress(Bitmap bitmap, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    /**
+     * 无损旋转和裁剪jpeg图片，裁剪区域为旋转之后的坐标
+     *
+     * @param angle 0、90、180或270
+     * @return 压缩结果，失败时返回0
+     */
+    static native long transformCompress(ByteBuffer buffer, byte[] array, int offset, int length, int angle, int x, int y, int w, int h, int output);
+
+    /**
+     * 复制jpeg图片，去掉Exif、XMP等应用段和注释，保留ICC颜色配置，图像数据不变
+     *
+     * @return 压缩结果，不是jpeg或文件头损坏时返回0
+     */
+    static native long copyWithoutMetadata(ByteBuffer buffer, byte[] array, int offset, int length);
+
+    /**
+     * @return {size, width, height, quality, subsamp}，无损变换的quality为-1
+     */
+    static native int[] resultInfo(long result);
+
+    /**
+     * @return {decode, scale, encode nanos, pixel bytes, SSIM * 1e6, search count, quality0, size0, quality1, size1, ...}
+     */
+    static native long[] resultMetrics(long result);
+
+    static native int writeResult(long result, String outputFile);
+
+    /**
+     * 复制到direct buffer，buffer容量不足时返回-1
+     */
+    static native int copyResult(long result, ByteBuffer outputBuffer);
+
+    static native byte[] getResult(long result);
+
+    /**
+     * 结果数据上的direct buffer，只在{@link #freeResult(long)}之前有效
+     */
+    static native ByteBuffer resultBuffer(long result);
+
+    static native void freeResult(long result);
+
+    private static native void setBufferPoolLimit(long maxBytes);
+
+    /**
+     * @param threads 为0时使用CPU核数
+     */
+    private static native void setEncodeThreadLimit(int threads);
+
+    /**
+     * 在YUV 4:2:0平面上裁剪、缩放和旋转后编码为4:2:0的jpeg，平面为三个direct buffer或array中的三段
+     *
+     * @param offsets 各平面在buffer或array中的起始位置
+     * @param outWidth 旋转之前的输出宽度
+     * @param angle 0、90、180或270
+     * @return 压缩结果，失败时返回0
+     */
+    private static native long yuvCompress(ByteBuffer y, ByteBuffer u, ByteBuffer v, byte[] array, int[] offsets, int[] rowStrides,
+                                           int uvPixelStride, int width, int height, int x, int cropY, int cropWidth, int cropHeight,
+                                           int outWidth, int outHeight, int angle, int quality, long maxSize, float ssim,
+                                           int output, ByteBuffer cancel);
+
+    /**
+     * 将YUV 4:2:0平面转换到相同尺寸的ARGB_8888格式的bitmap
+     */
+    private static native int yuvToBitmap(ByteBuffer y, ByteBuffer u, ByteBuffer v, byte[] array, int[] offsets, int[] rowStrides,
+                                          int uvPixelStride, int width, int height, Bitmap bitmap);
+
+    /**
+     * 将内存中的jpeg图片缩放解码到YUV平面，裁剪、缩放和旋转后重新编码
+     *
+     * @param scaledWidth 解码后的宽度，必须是TurboJPEG缩放因子对应的尺寸
+     * @param x 裁剪区域，为解码后的坐标
+     * @return 压缩结果，失败时返回0
+     */
+    private static native long jpegYuvCompress(ByteBuffer buffer, byte[] array, int offset, int length, int scaledWidth, int scaledHeight,
+                                               int x, int y, int cropWidth, int cropHeight, int outWidth, int outHeight,
+                                               int angle, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    /**
+     * 将内存中的jpeg图片缩放解码到native中的YUV平面，供多个尺寸共同使用
+     *
+     * @param scaledWidth 解码后的宽度，必须是TurboJPEG缩放因子对应的尺寸
+     * @return YUV平面，失败时返回0，使用完后调用{@link #releasePlanes(long)}
+     */
+    private static native long decodePlanes(ByteBuffer buffer, byte[] array, int offset, int length, int scaledWidth, int scaledHeight);
+
+    /**
+     * 将整张YUV平面缩放为新的4:2:0平面，原平面不变
+     *
+     * @return 新的YUV平面，失败时返回0
+     */
+    private static native long scalePlanes(long planes, int outWidth, int outHeight);
+
+    /**
+     * 从YUV平面中裁剪、缩放和旋转后编码，平面不会被修改，可以在多个线程中同时编码
+     *
+     * @param x 裁剪区域，为平面中的坐标
+     * @return 压缩结果，失败或取消时返回0
+     */
+    private static native long planesCompress(long planes, int x, int y, int cropWidth, int cropHeight, int outWidth, int outHeight,
+                                              int angle, int quality, long maxSize, float ssim, int output, ByteBuffer cancel);
+
+    private static native void releasePlanes(long planes);
+
+    /**
+     * 开始按条带编码一张jpeg图片
+     *
+     * @param stripHeight 除最后一条外每个条带的行数，必须是MCU高度的倍数
+     * @return 编码器，失败时返回0
+     */
+    static native long beginStrips(int width, int height, int quality, int options, int stripHeight);
+
+    /**
+     * 编码bitmap中从firstRow开始的rows行，bitmap的宽度必须与图片相同
+     */
+    static native int writeStrip(long encoder, Bitmap bitmap, int firstRow, int rows);
+
+    /**
+     * 结束编码并释放编码器，拼接后的图片不能是渐进式的，output不为0时都只重新生成Huffman表
+     *
+     * @return 压缩结果，失败时返回0
+     */
+    static native long finishStrips(long encoder, int output);
+
+    static native void abortStrips(long encoder);
+
+    /**
+     * 释放native编码缓冲池中的缓冲区，直到剩余不超过maxBytes
+     */
+    private static native void trimBufferPool(long maxBytes);
+
+    /**
+     * TurboJPEG支持的缩放因子
+     *
+     * @return {num0, denom0, num1, denom1, ...}
+     */
+    private static native int[] scalingFactors();
+
+    /**
+     * 将内存中的jpeg图片解码到ARGB_8888格式的bitmap，bitmap小于原图时使用TurboJPEG缩放解码
+     */
+    private static native int bitmapDecompress(ByteBuffer buffer, byte[] array, int offset, int length, Bitmap bitmap);
+}
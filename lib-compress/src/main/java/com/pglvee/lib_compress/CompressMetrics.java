@@ -0,0 +1,170 @@
+package com.pglvee.lib_compress;
+
+import java.util.Locale;
+
+/**
+ * 一次压缩各阶段的耗时和数据量，随{@link CompressResult}返回，也可以通过
+ * {@link CompressEngine#setListener(Listener)}统一收集。只在阶段之间读取时钟，开销可以忽略，线上可以一直开启
+ */
+public final class CompressMetrics {
+
+    /** 命中{@link ResultCache} */
+    public static final String PATH_CACHE = "cache";
+    /** jpeg原图已经满足要求，只去掉元数据后直接输出 */
+    public static final String PATH_PASSTHROUGH = "passthrough";
+    /** jpeg在DCT域中无损旋转和裁剪 */
+    public static final String PATH_TRANSFORM = "transform";
+    /** 超大图片的条带压缩 */
+    public static final String PATH_STREAM = "stream";
+    /** 在YUV平面上缩放和编码，包括jpeg和相机的YUV输入 */
+    public static final String PATH_PLANAR = "planar";
+    /** 解码为Bitmap后绘制和编码 */
+    public static final String PATH_BITMAP = "bitmap";
+
+    public interface Listener {
+
+        /**
+         * 每次压缩完成后在压缩线程中回调，包括失败的压缩，需要尽快返回
+         */
+        void onCompressed(CompressRequest request, CompressResult result, CompressMetrics metrics);
+    }
+
+    private static final int[] NO_QUALITIES = new int[0];
+    private static final long[] NO_SIZES = new long[0];
+
+    String path;
+    long probeNanos;
+    long decodeNanos;
+    long transformNanos;
+    long encodeNanos;
+    long totalNanos;
+    long peakPixelBytes;
+    long inputBytes;
+    long outputBytes;
+    float ssim;
+    int[] searchQualities = NO_QUALITIES;
+    long[] searchSizes = NO_SIZES;
+
+    CompressMetrics() {
+    }
+
+    /**
+     * 合并native压缩结果中的阶段耗时、像素内存和质量搜索过程
+     *
+     * @param values {decode, scale, encode nanos, pixel bytes, SSIM * 1e6, search count, quality0, size0, ...}
+     */
+    void addNative(long[] values) {
+        if (values == null)
+            return;
+        decodeNanos += values[0];
+        transformNanos += values[1];
+        encodeNanos += values[2];
+        peakPixelBytes = Math.max(peakPixelBytes, values[3]);
+        ssim = values[4] / 1e6f;
+        int searches = (int) values[5];
+        searchQualities = new int[searches];
+        searchSizes = new long[searches];
+        for (int i = 0; i < searches; i++) {
+            searchQualities[i] = (int) values[6 + 2 * i];
+            searchSizes[i] = values[7 + 2 * i];
+        }
+    }
+
+    /**
+     * 本次压缩使用的路径，为PATH_*之一，失败时可能为null
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isCacheHit() {
+        return PATH_CACHE.equals(path);
+    }
+
+    /**
+     * 读取输入图片头信息的耗时
+     */
+    public long getProbeNanos() {
+        return probeNanos;
+    }
+
+    /**
+     * 解码的耗时，条带压缩时为各段之和
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * 缩放、裁剪和旋转的耗时
+     */
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    /**
+     * 编码的耗时，包括质量搜索的全部编码、无损变换和直接输出时复制原图
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * 从probe开始到输出写完的总耗时
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * 同一时刻持有的解码图片、输出图片和YUV平面的最大字节数
+     */
+    public long getPeakPixelBytes() {
+        return peakPixelBytes;
+    }
+
+    /**
+     * 输入文件或内存数据的字节数，Bitmap和YUV输入为像素数据的字节数
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * 按{@link CompressRequest.Builder#ssim(float)}选择质量时输出的SSIM，未使用时为0
+     */
+    public float getSsim() {
+        return ssim;
+    }
+
+    /**
+     * 按maxSize或SSIM搜索质量时每次尝试的质量，未搜索时为空
+     */
+    public int[] getSearchQualities() {
+        return searchQualities.clone();
+    }
+
+    /**
+     * 每次尝试编码得到的字节数，与{@link #getSearchQualities()}一一对应
+     */
+    public long[] getSearchSizes() {
+        return searchSizes.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                "%s total %.1fms probe %.1fms decode %.1fms transform %.1fms encode %.1fms peak %dKB in %dKB out %dKB",
+                path, totalNanos / 1e6, probeNanos / 1e6, decodeNanos / 1e6, transformNanos / 1e6, encodeNanos / 1e6,
+                peakPixelBytes >> 10, inputBytes >> 10, outputBytes >> 10));
+        if (ssim > 0)
+            builder.append(String.format(Locale.US, " ssim %.4f", ssim));
+        for (int i = 0; i < searchQualities.length; i++)
+            builder.append(i == 0 ? " search " : ", ").append('q').append(searchQualities[i]).append('=').append(searchSizes[i]);
+        return builder.toString();
+    }
+}
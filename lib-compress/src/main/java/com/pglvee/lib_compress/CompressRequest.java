@@ -0,0 +1,405 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+/**
+ * 一次压缩的全部参数，创建之后不可修改，可以在多个线程中重复交给{@link CompressEngine}
+ */
+public final class CompressRequest {
+
+    /** TurboJPEG默认的Huffman表，编码最快 */
+    public static final int OUTPUT_BASELINE = 0;
+    /** 按图片统计重新生成最优Huffman表，图像数据不变，输出通常小5%左右 */
+    public static final int OUTPUT_OPTIMIZED = 1;
+    /** 渐进式jpeg，使用最优Huffman表，大图通常比OUTPUT_OPTIMIZED更小，但编码和解码更慢 */
+    public static final int OUTPUT_PROGRESSIVE = 2;
+
+    /** 重新编码时使用4:2:0，灰度原图保持灰度，无损变换和直接输出时保留原图的采样方式 */
+    public static final int SUBSAMPLING_DEFAULT = 0;
+    /** 按像素的色度选择：接近灰度的图片使用灰度，色度边缘多的截图和文字使用4:4:4，照片使用4:2:0 */
+    public static final int SUBSAMPLING_AUTO = 1;
+    /** 不降低色度分辨率，彩色文字和细线最清晰，输出最大 */
+    public static final int SUBSAMPLING_444 = 2;
+    /** 只编码亮度，输出为灰度图片 */
+    public static final int SUBSAMPLING_GRAY = 3;
+    /** 传给native的options中SUBSAMPLING_*所在的位置，与light.cpp的OUTPUT_SUBSAMP_SHIFT一致 */
+    private static final int SUBSAMPLING_SHIFT = 4;
+
+    final String inputFilePath;
+    final ByteBuffer inputData;
+    final Bitmap inputBitmap;
+    final YuvPlanes inputYuv;
+    final String outputFilePath;
+    final ByteBuffer outputBuffer;
+    final FileDescriptor outputFd;
+    final int width;
+    final int height;
+    final int quality;
+    final long maxSize;
+    final float ssim;
+    final int angle;
+    final boolean autoRotate;
+    final float maxScale;
+    final int background;
+    final boolean stream;
+    final int output;
+    final int subsampling;
+    final ImageEncoder encoder;
+
+    private CompressRequest(Builder builder) {
+        this.inputFilePath = builder.inputFilePath;
+        this.inputData = builder.inputData;
+        this.inputBitmap = builder.inputBitmap;
+        this.inputYuv = builder.inputYuv;
+        this.outputFilePath = builder.outputFilePath;
+        this.outputBuffer = builder.outputBuffer;
+        this.outputFd = builder.outputFd;
+        this.width = builder.width;
+        this.height = builder.height;
+        this.quality = builder.quality;
+        this.maxSize = builder.maxSize;
+        this.ssim = builder.ssim;
+        this.angle = builder.angle;
+        this.autoRotate = builder.autoRotate;
+        this.maxScale = builder.maxScale;
+        this.background = builder.background;
+        this.stream = builder.stream;
+        this.output = builder.output;
+        this.subsampling = builder.subsampling;
+        this.encoder = builder.encoder;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public Builder buildUpon() {
+        Builder builder = new Builder();
+        builder.inputFilePath = inputFilePath;
+        builder.inputData = inputData;
+        builder.inputBitmap = inputBitmap;
+        builder.inputYuv = inputYuv;
+        builder.outputFilePath = outputFilePath;
+        builder.outputBuffer = outputBuffer;
+        builder.outputFd = outputFd;
+        builder.width = width;
+        builder.height = height;
+        builder.quality = quality;
+        builder.maxSize = maxSize;
+        builder.ssim = ssim;
+        builder.angle = angle;
+        builder.autoRotate = autoRotate;
+        builder.maxScale = maxScale;
+        builder.background = background;
+        builder.stream = stream;
+        builder.output = output;
+        builder.subsampling = subsampling;
+        builder.encoder = encoder;
+        return builder;
+    }
+
+    /**
+     * 使用TurboJPEG输出，可以走native的无损变换、条带压缩和YUV平面路径
+     */
+    boolean isJpegOutput() {
+        return encoder == ImageEncoder.JPEG;
+    }
+
+    /**
+     * native编码使用的OUTPUT_*和SUBSAMPLING_*
+     */
+    int options() {
+        return output | subsampling << SUBSAMPLING_SHIFT;
+    }
+
+    /**
+     * 多尺寸输出中的一个尺寸：输入、旋转和背景使用source的设置，其余参数使用本请求的设置
+     */
+    CompressRequest withSource(CompressRequest source) {
+        Builder builder = buildUpon();
+        builder.inputFilePath = source.inputFilePath;
+        builder.inputData = source.inputData;
+        builder.inputBitmap = source.inputBitmap;
+        builder.inputYuv = source.inputYuv;
+        builder.angle = source.angle;
+        builder.autoRotate = source.autoRotate;
+        builder.background = source.background;
+        return builder.build();
+    }
+
+    public static final class Builder {
+
+        private String inputFilePath;
+        private ByteBuffer inputData;
+        private Bitmap inputBitmap;
+        private YuvPlanes inputYuv;
+        private String outputFilePath;
+        private ByteBuffer outputBuffer;
+        private FileDescriptor outputFd;
+        private int width;
+        private int height;
+        private int quality;
+        private long maxSize;
+        private float ssim;
+        private int angle;
+        private boolean autoRotate;
+        private float maxScale;
+        private int background;
+        private boolean stream;
+        private int output;
+        private int subsampling;
+        private ImageEncoder encoder = ImageEncoder.JPEG;
+
+        private Builder() {
+        }
+
+        public Builder src(File inputFile) {
+            return src(inputFile.getAbsolutePath());
+        }
+
+        public Builder src(String inputFilePath) {
+            this.inputFilePath = inputFilePath;
+            this.inputData = null;
+            this.inputBitmap = null;
+            this.inputYuv = null;
+            return this;
+        }
+
+        public Builder src(byte[] data) {
+            return src(ByteBuffer.wrap(data));
+        }
+
+        /**
+         * 从内存读取图片，jpeg图片由libjpeg-turbo直接解码，读取范围为position到limit
+         */
+        public Builder src(ByteBuffer data) {
+            if (!data.isDirect() && !data.hasArray()) {
+                ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data.duplicate());
+                copy.flip();
+                data = copy;
+            }
+            this.inputFilePath = null;
+            this.inputData = data.slice();
+            this.inputBitmap = null;
+            this.inputYuv = null;
+            return this;
+        }
+
+        /**
+         * 从文件描述符读取图片，例如ContentResolver.openFileDescriptor打开的content URI，不需要先复制到文件；
+         * 普通文件从当前位置映射到末尾，管道等不能seek的描述符在这里一次读完，设置之后就可以关闭描述符
+         */
+        public Builder src(FileDescriptor fd) {
+            ByteBuffer data = ImageUtils.readFd(fd);
+            return data != null ? src(data) : src((String) null);
+        }
+
+        public Builder src(ParcelFileDescriptor fd) {
+            return src(fd.getFileDescriptor());
+        }
+
+        public Builder src(Bitmap bitmap) {
+            this.inputFilePath = null;
+            this.inputData = null;
+            this.inputBitmap = bitmap;
+            this.inputYuv = null;
+            return this;
+        }
+
+        /**
+         * 直接压缩相机预览的NV21数据，在YUV平面上裁剪、缩放和旋转后编码，不经过RGB转换
+         */
+        public Builder src(byte[] nv21, int width, int height) {
+            return src(YuvPlanes.fromNv21(nv21, width, height));
+        }
+
+        /**
+         * 直接压缩YUV_420_888格式的相机图片，压缩完成之前不能close
+         */
+        public Builder src(Image image) {
+            return src(YuvPlanes.fromImage(image));
+        }
+
+        private Builder src(YuvPlanes yuv) {
+            this.inputFilePath = null;
+            this.inputData = null;
+            this.inputBitmap = null;
+            this.inputYuv = yuv;
+            return this;
+        }
+
+        public Builder dst(File outputFile) {
+            return dst(outputFile.getAbsolutePath());
+        }
+
+        public Builder dst(String outputFilePath) {
+            this.outputFilePath = outputFilePath;
+            this.outputBuffer = null;
+            this.outputFd = null;
+            return this;
+        }
+
+        /**
+         * 输出到文件描述符，从当前位置写入且不截断，文件需要以"wt"模式打开；压缩完成之前不能关闭。
+         * 写入之后无法读回，不使用{@link ResultCache}
+         */
+        public Builder dst(FileDescriptor fd) {
+            this.outputFilePath = null;
+            this.outputBuffer = null;
+            this.outputFd = fd;
+            return this;
+        }
+
+        public Builder dst(ParcelFileDescriptor fd) {
+            return dst(fd.getFileDescriptor());
+        }
+
+        /**
+         * 输出到调用方提供的direct buffer，从position开始写入，压缩完成后position后移输出的长度
+         */
+        public Builder dst(ByteBuffer outputBuffer) {
+            if (!outputBuffer.isDirect())
+                throw new IllegalArgumentException("outputBuffer must be a direct buffer");
+            this.outputFilePath = null;
+            this.outputBuffer = outputBuffer;
+            this.outputFd = null;
+            return this;
+        }
+
+        /**
+         * 设置输出图片的宽高
+         */
+        public Builder size(int width, int height) {
+            this.width = width;
+            this.height = height;
+            return this;
+        }
+
+        /**
+         * 设置输出图片的宽高
+         */
+        public Builder size(int size) {
+            return size(size, size);
+        }
+
+        /**
+         * 设置输出图片的质量，设置了{@link #max(long)}时无效；
+         * 为0时jpeg输入在无需缩放的情况下只做无损的旋转和裁剪，否则使用最高质量。
+         * jpeg输入无需缩放、裁剪和旋转，按量化表估计的质量不高于quality（为0时不高于90），且不超过{@link #max(long)}时，
+         * 不再重新编码，只去掉元数据后输出原图；设置了{@link #ssim(float)}、非默认的{@link #output(int)}，
+         * 或{@link #subsampling(int)}与原图不同时总是重新编码
+         */
+        public Builder quality(int quality) {
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * 限制输出图片的最大大小，在此范围内选择最高的质量，为0时不限制；
+         * 最低的质量也超过maxSize时输出最小的结果，{@link CompressResult#isOversize()}为true
+         */
+        public Builder max(long maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * 按结构相似度选择质量：使用输出与原图亮度的SSIM不低于target的最低质量，常用0.95到0.99，为0时不使用；
+         * 设置后{@link #quality(int)}无效，同时设置了{@link #max(long)}时按大小搜索。
+         * 简单的图片可以使用很低的质量，复杂的图片不会因为质量过低而出现明显的失真
+         */
+        public Builder ssim(float target) {
+            this.ssim = target;
+            return this;
+        }
+
+        /**
+         * 根据Exif信息自动旋转图片
+         */
+        public Builder rotate() {
+            this.autoRotate = true;
+            this.angle = 0;
+            return this;
+        }
+
+        /**
+         * 根据角度旋转图片
+         */
+        public Builder rotate(int angle) {
+            this.autoRotate = false;
+            this.angle = angle;
+            return this;
+        }
+
+        /**
+         * 设置图片最大比例，超出比例裁剪图片
+         */
+        public Builder crop(float maxScale) {
+            this.maxScale = maxScale;
+            return this;
+        }
+
+        /**
+         * 设置背景颜色，对于带透明度的png图片可以设置为白底或黑底
+         */
+        public Builder background(int color) {
+            this.background = color;
+            return this;
+        }
+
+        /**
+         * 按条带逐段解码、缩放和编码，像素内存只与宽度有关，与图片高度无关；
+         * 解码后超过64M的图片会自动使用，设置了{@link #max(long)}、{@link #ssim(float)}或旋转时无效
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * 设置输出jpeg的编码方式，为OUTPUT_*之一，默认为{@link #OUTPUT_BASELINE}；
+         * 设置了{@link #max(long)}时按实际输出的大小搜索质量；条带压缩不支持渐进式，改为{@link #OUTPUT_OPTIMIZED}
+         */
+        public Builder output(int output) {
+            this.output = output;
+            return this;
+        }
+
+        /**
+         * 设置输出jpeg的色度采样，为SUBSAMPLING_*之一，默认为{@link #SUBSAMPLING_DEFAULT}，实际使用的采样方式见
+         * {@link CompressResult#getSubsamp()}；{@link #SUBSAMPLING_AUTO}抽样分析像素，耗时远小于编码，
+         * 条带压缩在编码之前看不到像素，仍使用4:2:0
+         */
+        public Builder subsampling(int subsampling) {
+            this.subsampling = subsampling;
+            return this;
+        }
+
+        /**
+         * 设置输出图片的编码器，默认为{@link ImageEncoder#JPEG}；其他编码器在Bitmap上编码，
+         * {@link #ssim(float)}、{@link #stream(boolean)}和{@link #output(int)}无效。
+         * {@link ImageEncoder#WEBP_LOSSLESS}需要Android 10及以上；Android 11之前{@link ImageEncoder#WEBP}的质量最高为99
+         *
+         * @throws UnsupportedOperationException 当前系统不支持该编码器
+         */
+        public Builder format(ImageEncoder encoder) {
+            if (encoder == ImageEncoder.WEBP_LOSSLESS && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
+                throw new UnsupportedOperationException("WEBP_LOSSLESS requires Android 10 (API 29), running on API "
+                        + Build.VERSION.SDK_INT);
+            this.encoder = encoder != null ? encoder : ImageEncoder.JPEG;
+            return this;
+        }
+
+        public CompressRequest build() {
+            return new CompressRequest(this);
+        }
+    }
+}
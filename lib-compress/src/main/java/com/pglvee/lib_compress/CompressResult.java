@@ -0,0 +1,98 @@
+package com.pglvee.lib_compress;
+
+/**
+ * 一次压缩的结果，由{@link CompressEngine}生成
+ */
+public final class CompressResult {
+
+    boolean success;
+    boolean cancelled;
+    boolean oversize;
+    int inWidth;
+    int inHeight;
+    int outWidth;
+    int outHeight;
+    int size;
+    int quality;
+    int subsamp = -1;
+    String mimeType;
+    byte[] data;
+    CompressMetrics metrics;
+
+    CompressResult() {
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * 异步压缩在完成之前被{@link CompressTask#cancel(boolean)}取消
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 设置了maxSize但最低的质量也无法满足，输出的是质量搜索中最小的结果，{@link #isSuccess()}仍然为true
+     */
+    public boolean isOversize() {
+        return oversize;
+    }
+
+    /**
+     * 返回图片压缩之前的宽高
+     */
+    public int[] inSize() {
+        return new int[]{inWidth, inHeight};
+    }
+
+    /**
+     * 返回图片压缩之后的宽高
+     */
+    public int[] outSize() {
+        return new int[]{outWidth, outHeight};
+    }
+
+    /**
+     * 输出的字节数
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 输出使用的质量，无损旋转和裁剪时为-1，直接输出jpeg原图时为按量化表估计的原图质量
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * 输出jpeg的色度采样方式，为TurboJPEG的TJSAMP_*，与{@link ImageInfo#getSubsamp()}相同；其他编码器为-1
+     */
+    public int getSubsamp() {
+        return subsamp;
+    }
+
+    /**
+     * 输出图片的MIME类型，由请求的{@link ImageEncoder}决定
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * 未设置输出文件、文件描述符或buffer时，返回内存中压缩后的数据
+     */
+    public byte[] getData() {
+        return data != null ? data : new byte[0];
+    }
+
+    /**
+     * 本次压缩各阶段的耗时和数据量
+     */
+    public CompressMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,162 @@
+package com.pglvee.lib_compress;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 通过{@link CompressEngine#submit(CompressRequest, int, Callback)}提交的异步压缩。
+ * 排队的任务按优先级从高到低、同一优先级按提交顺序执行；取消时排队的任务直接移出队列，
+ * 正在执行的任务在解码、变换、编码之间以及质量搜索的每次编码之前检查，尽快结束并释放图片
+ */
+public final class CompressTask implements RunnableFuture<CompressResult> {
+
+    /** 预加载、重新压缩等用户看不到的工作 */
+    public static final int PRIORITY_BACKGROUND = 0;
+    public static final int PRIORITY_DEFAULT = 10;
+    /** 屏幕上正在显示的缩略图，排在所有已提交的其他任务之前 */
+    public static final int PRIORITY_VISIBLE = 20;
+
+    public interface Callback {
+
+        /**
+         * 压缩完成，在压缩线程中回调，压缩失败时{@link CompressResult#isSuccess()}为false；已取消的任务不回调
+         */
+        void onResult(CompressTask task, CompressResult result);
+
+        /**
+         * 压缩时抛出异常，包括OutOfMemoryError
+         */
+        void onError(CompressTask task, Throwable error);
+    }
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    final CompressRequest request;
+    /** 同一优先级内的提交顺序 */
+    final int sequence = SEQUENCE.incrementAndGet();
+    /** 取消标志，native在质量搜索的每次编码之前读取 */
+    final ByteBuffer cancelFlag = ByteBuffer.allocateDirect(4);
+    private final CompressEngine engine;
+    private final Callback callback;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int priority;
+    private CompressResult result;
+    private Throwable error;
+
+    CompressTask(CompressEngine engine, CompressRequest request, int priority, Callback callback) {
+        this.engine = engine;
+        this.request = request;
+        this.priority = priority;
+        this.callback = callback;
+    }
+
+    public CompressRequest getRequest() {
+        return request;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 修改优先级，例如图片滚动回屏幕内时提高到{@link #PRIORITY_VISIBLE}；已经开始的任务不受影响
+     */
+    public void setPriority(int priority) {
+        engine.reorder(this, priority);
+    }
+
+    void updatePriority(int priority) {
+        this.priority = priority;
+    }
+
+    boolean isQueued() {
+        return state.get() == QUEUED;
+    }
+
+    /**
+     * 取消任务，取消后不再回调，{@link #get()}立即抛出CancellationException
+     *
+     * @param mayInterruptIfRunning 忽略，正在执行的任务总是在下一个检查点结束
+     * @return 任务已经完成或已经取消时返回false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        int current;
+        do {
+            current = state.get();
+            if (current == DONE || current == CANCELLED)
+                return false;
+        } while (!state.compareAndSet(current, CANCELLED));
+        cancelFlag.putInt(0, 1);
+        if (current == QUEUED)
+            engine.dequeue(this);
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state.get() >= DONE;
+    }
+
+    @Override
+    public CompressResult get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public CompressResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return report();
+    }
+
+    private CompressResult report() throws ExecutionException {
+        if (state.get() == CANCELLED)
+            throw new CancellationException();
+        if (error != null)
+            throw new ExecutionException(error);
+        return result;
+    }
+
+    /**
+     * 由引擎的压缩线程调用，任务只会执行一次
+     */
+    @Override
+    public void run() {
+        if (!state.compareAndSet(QUEUED, RUNNING))
+            return;
+        try {
+            result = engine.compress(request, CompressEngine.probe(request), this);
+        } catch (Throwable e) {
+            error = e;
+        }
+        // 执行期间被取消时丢弃结果
+        if (!state.compareAndSet(RUNNING, DONE))
+            return;
+        done.countDown();
+        if (callback == null)
+            return;
+        if (error != null)
+            callback.onError(this, error);
+        else
+            callback.onResult(this, result);
+    }
+}
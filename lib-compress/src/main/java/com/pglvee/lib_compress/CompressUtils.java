@@ -1,36 +1,18 @@
 package com.pglvee.lib_compress;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.os.SystemClock;
-import android.text.TextUtils;
-import android.util.Log;
-
-import java.io.ByteArrayOutputStream;
+import android.media.Image;
+import android.os.ParcelFileDescriptor;
+
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class CompressUtils {
 
-    private static final String TAG = "compress-jni";
-    private String inputFilePath;
-    private String outputFilePath;
-    private int width;
-    private int height;
+    private final CompressRequest.Builder builder = CompressRequest.newBuilder();
     private int quality;
     private long maxSize;
-    private int angle;
-    private Bitmap bitmap;
-    private String tempInputFilePath;
-    private String tempOutFilePath;
-    private int outWidth;
-    private int outHeight;
-    private int inWidth;
-    private int inHeight;
-    private float maxScale;
-    private int background;
+    private CompressResult result = new CompressResult();
 
     // Used to load the 'light' library on application startup.
     static {
@@ -45,8 +27,7 @@ public class CompressUtils {
      * 设置输出图片的宽高
      */
     public CompressUtils size(int width, int height) {
-        this.width = width;
-        this.height = height;
+        builder.size(width, height);
         return this;
     }
 
@@ -54,13 +35,13 @@ public class CompressUtils {
      * 设置输出图片的宽高
      */
     public CompressUtils size(int size) {
-        this.width = size;
-        this.height = size;
+        builder.size(size);
         return this;
     }
 
     /**
-     * 设置输出图片的质量，使用{@link #thumbnail()}方法时无效
+     * 设置输出图片的质量，使用{@link #thumbnail()}方法时无效；
+     * 未设置时jpeg输入在无需缩放的情况下只做无损的旋转和裁剪
      */
     public CompressUtils quality(int quality) {
         this.quality = quality;
@@ -68,39 +49,80 @@ public class CompressUtils {
     }
 
     public CompressUtils src(File inputFile) {
-        this.inputFilePath = inputFile.getAbsolutePath();
+        builder.src(inputFile);
         return this;
     }
 
     public CompressUtils src(String inputFilePath) {
-        this.inputFilePath = inputFilePath;
+        builder.src(inputFilePath);
+        return this;
+    }
+
+    /**
+     * 从content URI等文件描述符读取图片，不需要先复制到文件，设置之后就可以关闭描述符
+     */
+    public CompressUtils src(ParcelFileDescriptor fd) {
+        builder.src(fd);
         return this;
     }
 
     public CompressUtils src(Bitmap bitmap) {
-        this.bitmap = bitmap;
+        builder.src(bitmap);
+        return this;
+    }
+
+    /**
+     * 直接压缩相机预览的NV21数据，不经过RGB转换
+     */
+    public CompressUtils src(byte[] nv21, int width, int height) {
+        builder.src(nv21, width, height);
+        return this;
+    }
+
+    /**
+     * 直接压缩YUV_420_888格式的相机图片，压缩完成之前不能close
+     */
+    public CompressUtils src(Image image) {
+        builder.src(image);
         return this;
     }
 
     public CompressUtils src(byte[] data) {
-        try {
-            File file = File.createTempFile("temp" + System.currentTimeMillis(), ".jpg");
-            ImageUtils.byte2File(data, file);
-            this.tempInputFilePath = file.getPath();
-            this.inputFilePath = file.getPath();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        builder.src(data);
+        return this;
+    }
+
+    /**
+     * 从内存读取图片，jpeg图片由libjpeg-turbo直接解码，读取范围为position到limit
+     */
+    public CompressUtils src(ByteBuffer data) {
+        builder.src(data);
         return this;
     }
 
     public CompressUtils dst(File outputFile) {
-        this.outputFilePath = outputFile.getAbsolutePath();
+        builder.dst(outputFile);
         return this;
     }
 
     public CompressUtils dst(String outputFilePath) {
-        this.outputFilePath = outputFilePath;
+        builder.dst(outputFilePath);
+        return this;
+    }
+
+    /**
+     * 输出到调用方提供的direct buffer，从position开始写入，压缩完成后position后移输出的长度
+     */
+    public CompressUtils dst(ByteBuffer outputBuffer) {
+        builder.dst(outputBuffer);
+        return this;
+    }
+
+    /**
+     * 输出到以"wt"模式打开的文件描述符，压缩完成之前不能关闭
+     */
+    public CompressUtils dst(ParcelFileDescriptor fd) {
+        builder.dst(fd);
         return this;
     }
 
@@ -108,7 +130,7 @@ public class CompressUtils {
      * 设置图片最大比例，超出比例裁剪图片
      */
     public CompressUtils crop(float maxScale) {
-        this.maxScale = maxScale;
+        builder.crop(maxScale);
         return this;
     }
 
@@ -116,38 +138,67 @@ public class CompressUtils {
      * 设置背景颜色，对于带透明度的png图片可以设置为白底或黑底
      */
     public CompressUtils background(int color) {
-        this.background = color;
+        builder.background(color);
+        return this;
+    }
+
+    /**
+     * 设置输出jpeg的编码方式，为{@link CompressRequest}的OUTPUT_*之一
+     */
+    public CompressUtils output(int output) {
+        builder.output(output);
         return this;
     }
 
+    /**
+     * 设置输出jpeg的色度采样，为{@link CompressRequest}的SUBSAMPLING_*之一
+     */
+    public CompressUtils subsampling(int subsampling) {
+        builder.subsampling(subsampling);
+        return this;
+    }
+
+    /**
+     * 设置输出图片的编码器，默认为{@link ImageEncoder#JPEG}，支持的系统版本见{@link CompressRequest.Builder#format(ImageEncoder)}
+     */
+    public CompressUtils format(ImageEncoder encoder) {
+        builder.format(encoder);
+        return this;
+    }
+
+    /**
+     * 未设置输出文件、文件描述符或buffer时，返回内存中压缩后的数据
+     */
     public byte[] dst() {
-        byte[] data = new byte[0];
-        if (!TextUtils.isEmpty(tempOutFilePath)) {
-            data = ImageUtils.file2byte(tempOutFilePath);
-            new File(tempOutFilePath).delete();
-        }
-        return data;
+        return result.getData();
     }
 
     /**
      * 返回图片压缩之后的宽高
      */
     public int[] outSize() {
-        return new int[]{outWidth, outHeight};
+        return result.outSize();
     }
 
     /**
      * 返回图片压缩之前的宽高
      */
     public int[] inSize() {
-        return new int[]{inWidth, inHeight};
+        return result.inSize();
+    }
+
+    /**
+     * 返回最近一次压缩的结果
+     */
+    public CompressResult result() {
+        return result;
     }
 
     /**
      * 自动旋转图片
      */
     public CompressUtils rotate() {
-        this.angle = ImageUtils.readPictureDegree(this.inputFilePath);
+        builder.rotate();
         return this;
     }
 
@@ -155,12 +206,12 @@ public class CompressUtils {
      * 根据角度旋转图片
      */
     public CompressUtils rotate(int angle) {
-        this.angle = angle;
+        builder.rotate(angle);
         return this;
     }
 
     /**
-     * 限制输出图片的最大大小，使用{@link #image()}方法时无效
+     * 限制输出图片的最大大小，使用{@link #image()}方法时无效；无法满足时输出最小的结果，见{@link CompressResult#isOversize()}
      */
     public CompressUtils max(long maxSize) {
         this.maxSize = maxSize;
@@ -168,171 +219,54 @@ public class CompressUtils {
     }
 
     /**
-     * 生成压缩图方法：通过quality控制质量，无法通过maxSize控制大小
+     * 按结构相似度选择质量，设置后{@link #image()}不再使用quality，见{@link CompressRequest.Builder#ssim(float)}
      */
-    public synchronized CompressUtils image() {
-        long before = SystemClock.uptimeMillis();
-        int w, h;
-        float scale;
-        int[] cropOptions;
-        boolean recycle = false;
-        if (bitmap == null) {
-            recycle = true;
-            BitmapFactory.Options newOpts = new BitmapFactory.Options();
-            newOpts.inJustDecodeBounds = true;
-            newOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            BitmapFactory.decodeFile(inputFilePath, newOpts);
-            newOpts.inJustDecodeBounds = false;
-            w = newOpts.outWidth;
-            h = newOpts.outHeight;
-            cropOptions = ImageUtils.getOptionCrop(w, h, maxScale);
-            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], width, height);
-            newOpts.inSampleSize = ImageUtils.getOptionSample(scale);
-            bitmap = BitmapFactory.decodeFile(inputFilePath, newOpts);
-        } else {
-            w = bitmap.getWidth();
-            h = bitmap.getHeight();
-            cropOptions = ImageUtils.getOptionCrop(w, h, maxScale);
-            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], width, height);
-        }
-        if (w == 0 || h == 0 || bitmap == null)
-            return this;
-        inWidth = w;
-        inHeight = h;
-        outWidth = (int) (w / scale);
-        outHeight = (int) (h / scale);
-        if (scale > 1)
-            bitmap = Bitmap.createScaledBitmap(bitmap, outWidth, outHeight, true);
-        if (maxScale > 0)
-            bitmap = Bitmap.createBitmap(bitmap, (int) (cropOptions[2] / scale), (int) (cropOptions[3] / scale), (int) (cropOptions[0] / scale), (int) (cropOptions[1] / scale));
-        if (angle > 0) {
-            Matrix matrix = new Matrix();
-            matrix.setRotate(angle, (float) bitmap.getWidth() / 2, (float) bitmap.getHeight() / 2);
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        }
-        outWidth = bitmap.getWidth();
-        outHeight = bitmap.getHeight();
-        Bitmap outB = bitmap.copy(Bitmap.Config.ARGB_8888,true);
-        Canvas canvas = new Canvas(outB);
-        if (background != 0) {
-            canvas.drawColor(background);
-        }
-        canvas.drawBitmap(bitmap, 0, 0, null);
-        String tempFile = ImageUtils.getTempFile();
-        try {
-            FileOutputStream outputStream = new FileOutputStream(tempFile);
-            outB.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-            outputStream.flush();
-            outputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if (!TextUtils.isEmpty(outputFilePath))
-            imageCompress(tempFile, outputFilePath, quality);
-        else {
-            tempOutFilePath = ImageUtils.getTempFile();
-            imageCompress(tempFile, tempOutFilePath, quality);
-        }
-        new File(tempFile).delete();
-        if (!TextUtils.isEmpty(tempInputFilePath)) new File(tempInputFilePath).delete();
-        try {
-            if (recycle && bitmap != null) {
-                bitmap.recycle();
-                bitmap = null;
-            }
-            if (outB != null) {
-                outB.recycle();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        Log.d(TAG, "compress consume time : " + (SystemClock.uptimeMillis() - before) + "ms");
+    public CompressUtils ssim(float target) {
+        builder.ssim(target);
+        return this;
+    }
+
+    /**
+     * 生成压缩图方法：通过quality或ssim控制质量，无法通过maxSize控制大小
+     */
+    public CompressUtils image() {
+        result = CompressEngine.getDefault().compress(request(false));
         return this;
     }
 
     /**
      * 生成缩略图方法：通过maxSize控制输出大小，无法通过quality控制质量
      */
-    public synchronized CompressUtils thumbnail() {
-        long before = SystemClock.uptimeMillis();
-        int w, h;
-        float scale;
-        int[] cropOptions;
-        boolean recycle = false;
-        if (bitmap == null) {
-            recycle = true;
-            BitmapFactory.Options newOpts = new BitmapFactory.Options();
-            newOpts.inJustDecodeBounds = true;
-            newOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            BitmapFactory.decodeFile(inputFilePath, newOpts);
-            newOpts.inJustDecodeBounds = false;
-            w = newOpts.outWidth;
-            h = newOpts.outHeight;
-            cropOptions = ImageUtils.getOptionCrop(w, h, maxScale);
-            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], width, height);
-            newOpts.inSampleSize = ImageUtils.getOptionSample(scale);
-            bitmap = BitmapFactory.decodeFile(inputFilePath, newOpts);
-        } else {
-            w = bitmap.getWidth();
-            h = bitmap.getHeight();
-            cropOptions = ImageUtils.getOptionCrop(w, h, maxScale);
-            scale = ImageUtils.getOptionScale(cropOptions[0], cropOptions[1], width, height);
-        }
-        if (w == 0 || h == 0 || bitmap == null)
-            return this;
-        inWidth = w;
-        inHeight = h;
-        outWidth = (int) (w / scale);
-        outHeight = (int) (h / scale);
-        if (scale > 1)
-            bitmap = Bitmap.createScaledBitmap(bitmap, outWidth, outHeight, true);
-        if (maxScale > 0)
-            bitmap = Bitmap.createBitmap(bitmap, (int) (cropOptions[2] / scale), (int) (cropOptions[3] / scale), (int) (cropOptions[0] / scale), (int) (cropOptions[1] / scale));
-        if (angle > 0) {
-            Matrix matrix = new Matrix();
-            matrix.setRotate(angle, (float) bitmap.getWidth() / 2, (float) bitmap.getHeight() / 2);
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        }
-        outWidth = bitmap.getWidth();
-        outHeight = bitmap.getHeight();
-        Bitmap outB = bitmap.copy(Bitmap.Config.ARGB_8888,true);
-        Canvas canvas = new Canvas(outB);
-        if (background != 0) {
-            canvas.drawColor(background);
-        }
-        canvas.drawBitmap(bitmap, 0, 0, null);
-        ByteArrayOutputStream outputStream;
-        outputStream = new ByteArrayOutputStream();
-        outB.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        byte[] jpegBuff = outputStream.toByteArray();
-        if (!TextUtils.isEmpty(outputFilePath))
-            thumbnailCompress(jpegBuff, outputFilePath, maxSize);
-        else {
-            tempOutFilePath = ImageUtils.getTempFile();
-            thumbnailCompress(jpegBuff, tempOutFilePath, maxSize);
-        }
-        try {
-            outputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (!TextUtils.isEmpty(tempInputFilePath)) new File(tempInputFilePath).delete();
-        try {
-            if (recycle && bitmap != null) {
-                bitmap.recycle();
-                bitmap = null;
-            }
-            outB.recycle();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        Log.d(TAG, "compress consume time : " + (SystemClock.uptimeMillis() - before) + "ms");
+    public CompressUtils thumbnail() {
+        result = CompressEngine.getDefault().compress(request(true));
         return this;
     }
 
-    private static native void imageCompress(String inputFile, String outputFile, int quality);
+    /**
+     * 在{@link CompressEngine}的压缩线程中执行{@link #image()}，结果通过callback返回，不更新{@link #result()}
+     *
+     * @param priority CompressTask.PRIORITY_*，越大越先执行
+     */
+    public CompressTask imageAsync(int priority, CompressTask.Callback callback) {
+        return CompressEngine.getDefault().submit(request(false), priority, callback);
+    }
+
+    /**
+     * 在{@link CompressEngine}的压缩线程中执行{@link #thumbnail()}，列表中可见的缩略图使用{@link CompressTask#PRIORITY_VISIBLE}，
+     * 滑出屏幕时调用{@link CompressTask#cancel(boolean)}
+     */
+    public CompressTask thumbnailAsync(int priority, CompressTask.Callback callback) {
+        return CompressEngine.getDefault().submit(request(true), priority, callback);
+    }
 
-    private static native void thumbnailCompress(byte[] inputData, String outputFile, long maxSize);
+    /**
+     * 生成本次设置对应的压缩参数，可以交给{@link CompressEngine}在其他线程中执行
+     *
+     * @param thumbnail 是否按{@link #thumbnail()}的方式处理
+     */
+    public CompressRequest request(boolean thumbnail) {
+        return thumbnail ? builder.quality(0).max(maxSize).build() : builder.quality(quality).max(0).build();
+    }
 
     /**
      * @param scale scale <-> m/n
@@ -0,0 +1,20 @@
+package com.pglvee.lib_compress;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * 保存{@link ImageEncoder}的输出，可以直接读取内部数组，写到buffer时不再复制一次
+ */
+final class EncodeBuffer extends ByteArrayOutputStream {
+
+    EncodeBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * 内部数组，有效数据为前{@link #size()}个字节
+     */
+    byte[] array() {
+        return buf;
+    }
+}
@@ -0,0 +1,40 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 输出图片的编码器，通过{@link CompressRequest.Builder#format(ImageEncoder)}选择。
+ * jpeg由TurboJPEG在native中编码，可以使用YUV平面、无损变换和条带压缩；其他编码器在解码、缩放、裁剪和旋转之后的Bitmap上编码，
+ * 与jpeg共用按maxSize搜索质量的流程
+ */
+public interface ImageEncoder {
+
+    /** TurboJPEG，默认的编码器 */
+    ImageEncoder JPEG = new JpegEncoder();
+    /** 有损WebP，保留透明度，相同画质下通常比jpeg小25%到35%，编码慢几倍；Android 11之前质量最高为99 */
+    ImageEncoder WEBP = new WebpEncoder(false);
+    /** 无损WebP，保留透明度，quality为压缩力度；需要Android 10及以上，更低的版本在{@link CompressRequest.Builder#format(ImageEncoder)}中抛出异常 */
+    ImageEncoder WEBP_LOSSLESS = new WebpEncoder(true);
+
+    /**
+     * 输出图片的MIME类型，同时作为{@link ResultCache}的key的一部分
+     */
+    String getMimeType();
+
+    /**
+     * 无损编码时quality不影响画质，不按maxSize搜索质量
+     */
+    boolean isLossless();
+
+    /**
+     * 编码整张图片，可能在多个线程中同时调用
+     *
+     * @param bitmap ARGB_8888格式的图片
+     * @param quality 1到100
+     * @return 不支持或编码失败时返回false
+     */
+    boolean encode(Bitmap bitmap, int quality, OutputStream out) throws IOException;
+}
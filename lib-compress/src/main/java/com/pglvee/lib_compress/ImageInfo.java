@@ -0,0 +1,120 @@
+package com.pglvee.lib_compress;
+
+import android.text.TextUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 输入图片的头信息：文件只映射一次，由native从文件头中解析格式、宽高、jpeg采样方式、量化表和Exif方向，
+ * 不创建任何解码器；得到的结果在压缩的各个阶段重复使用
+ */
+public final class ImageInfo {
+
+    /** 与native中的FORMAT_*对应 */
+    private static final String[] MIME_TYPES = {"image/*", "image/jpeg", "image/png", "image/gif", "image/x-ms-bmp", "image/webp"};
+
+    final String mimeType;
+    final int width;
+    final int height;
+    final int subsamp;
+    final int colorspace;
+    final int orientation;
+    final int quality;
+    /** 文件的映射或内存中的图片数据，Bitmap和YUV输入为null */
+    final ByteBuffer data;
+    /** {@link CompressEngine#probe(CompressRequest)}的耗时 */
+    long probeNanos;
+
+    static {
+        System.loadLibrary("light");
+    }
+
+    ImageInfo(String mimeType, int width, int height, int subsamp, int colorspace, int orientation, int quality, ByteBuffer data) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.subsamp = subsamp;
+        this.colorspace = colorspace;
+        this.orientation = orientation;
+        this.quality = quality;
+        this.data = data;
+    }
+
+    public static ImageInfo probe(String path) {
+        ByteBuffer data = TextUtils.isEmpty(path) ? null : ImageUtils.mapFile(path);
+        return data != null ? probe(data) : new ImageInfo("*/*", 0, 0, -1, -1, 0, -1, null);
+    }
+
+    public static ImageInfo probe(byte[] data) {
+        return probe(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 读取范围为position到limit，不改变data的position
+     */
+    public static ImageInfo probe(ByteBuffer data) {
+        int[] info = data.isDirect() ? probe(data, null, data.position(), data.remaining())
+                : probe(null, data.array(), data.arrayOffset() + data.position(), data.remaining());
+        if (info == null)
+            return new ImageInfo(MIME_TYPES[0], 0, 0, -1, -1, 0, -1, data);
+        return new ImageInfo(MIME_TYPES[info[0]], info[1], info[2], info[3], info[4], info[5], info[6], data);
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public boolean isJpeg() {
+        return "image/jpeg".equals(mimeType);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * jpeg图片的色度采样方式，为TurboJPEG的TJSAMP_*，其他格式为-1
+     */
+    public int getSubsamp() {
+        return subsamp;
+    }
+
+    /**
+     * jpeg图片的颜色空间，为TurboJPEG的TJCS_*，其他格式为-1
+     */
+    public int getColorspace() {
+        return colorspace;
+    }
+
+    /**
+     * Exif中的方向，没有时为0
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * jpeg图片按量化表估计的编码质量，为libjpeg中最接近的质量，其他格式或没有量化表时为-1
+     */
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * Exif方向对应的顺时针旋转角度
+     */
+    public int getDegree() {
+        return ImageUtils.getOrientationDegree(orientation);
+    }
+
+    /**
+     * 解析内存中图片的文件头，输入为direct buffer或byte[]中的一段
+     *
+     * @return {format, width, height, subsamp, colorspace, exif orientation, quality}，无法识别时宽高为0
+     */
+    private static native int[] probe(ByteBuffer buffer, byte[] array, int offset, int length);
+}
@@ -3,19 +3,16 @@ package com.pglvee.lib_compress;
 import android.media.ExifInterface;
 import android.os.Environment;
 import android.text.TextUtils;
-import android.util.Log;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 public class ImageUtils {
 
-    private static final String TAG = "ImageUtils";
-
     static int getOptionSample(final float scale) {
         if (scale < 2) return 1;
         else if (scale >= 2f && scale < 4f) return 2;
@@ -32,6 +29,32 @@ public class ImageUtils {
         else return (float) ol / (float) s;
     }
 
+    /**
+     * 选择不小于目标尺寸的最小TurboJPEG缩放因子，只在DCT域中缩小，剩余部分再重采样
+     *
+     * @param factors {num0, denom0, num1, denom1, ...}
+     * @return {num, denom}
+     */
+    static int[] getOptionScalingFactor(final float scale, int[] factors) {
+        int num = 1, denom = 1;
+        if (scale <= 1f) return new int[]{num, denom};
+        for (int i = 0; i + 1 < factors.length; i += 2) {
+            float factor = (float) factors[i] / factors[i + 1];
+            if (factor * scale >= 1f && factor < (float) num / denom) {
+                num = factors[i];
+                denom = factors[i + 1];
+            }
+        }
+        return new int[]{num, denom};
+    }
+
+    /**
+     * 与TJSCALED相同，按缩放因子向上取整
+     */
+    static int getScaled(int dimension, int[] factor) {
+        return (dimension * factor[0] + factor[1] - 1) / factor[1];
+    }
+
     static int[] getOptionCrop(int oW, int oH, float maxScale) {
         if (oW == 0 || oH == 0) return new int[]{0, 0, 0, 0};
         int oWC = oW;
@@ -50,10 +73,51 @@ public class ImageUtils {
         return new int[]{oWC, oHC, xOffset, yOffset};
     }
 
-    static String getTempFile() {
+    /**
+     * getOptionCrop的结果是否裁掉了原图的一部分
+     */
+    static boolean isRegionCrop(int w, int h, int[] cropOptions) {
+        return cropOptions[0] > 0 && cropOptions[1] > 0 && (cropOptions[0] < w || cropOptions[1] < h);
+    }
+
+    /**
+     * 以只读方式映射文件，返回的direct buffer可以直接交给native解码
+     */
+    static ByteBuffer mapFile(String path) {
+        try (FileInputStream fis = new FileInputStream(path);
+             FileChannel channel = fis.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 读取文件描述符中的图片：普通文件从当前位置映射到末尾，与{@link #mapFile(String)}相同；
+     * 管道、socket等不能seek的描述符一次读完。不关闭描述符，也不改变可以seek的描述符的位置
+     */
+    static ByteBuffer readFd(FileDescriptor fd) {
+        // 从描述符创建的FileInputStream不拥有描述符，不能close
+        FileInputStream fis = new FileInputStream(fd);
+        FileChannel channel = fis.getChannel();
+        try {
+            long position = channel.position();
+            long size = channel.size();
+            if (size > position)
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, size - position);
+        } catch (IOException e) {
+            // 不能seek的描述符，position()和size()失败
+        }
         try {
-            File file = File.createTempFile("temp"+System.currentTimeMillis(), ".jpg");
-            return file.getAbsolutePath();
+            byte[] data = new byte[64 * 1024];
+            int size = 0, read;
+            while ((read = fis.read(data, size, data.length - size)) != -1) {
+                size += read;
+                if (size == data.length)
+                    data = Arrays.copyOf(data, size * 2);
+            }
+            return ByteBuffer.wrap(data, 0, size);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -108,6 +172,13 @@ public class ImageUtils {
         return "*/*";
     }
 
+    public static String getMimeType(ByteBuffer data) {
+        if (data.remaining() < 4) return "image/*";
+        byte[] prefix = new byte[4];
+        data.duplicate().get(prefix);
+        return getMimeType(prefix);
+    }
+
     public static String getMimeType(byte[] data){
         String prefix = bytesToHexString(data, 4);
         if(prefix == null) return "image/*";
@@ -127,58 +198,25 @@ public class ImageUtils {
         }
     }
 
-    static void byte2File(byte[] buf, File file) {
-        try (FileOutputStream fos = new FileOutputStream(file);
-             BufferedOutputStream bos = new BufferedOutputStream(fos)){
-            bos.write(buf);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    static byte[] file2byte(String filePath) {
-        byte[] buffer = null;
-        File file = new File(filePath);
-        try (FileInputStream fis = new FileInputStream(file);
-             ByteArrayOutputStream bos = new ByteArrayOutputStream()){
-            byte[] b = new byte[8 * 1024];
-            int n;
-            while ((n = fis.read(b)) != -1) {
-                bos.write(b, 0, n);
-            }
-            fis.close();
-            bos.close();
-            buffer = bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return buffer;
+    /**
+     * 读取jpeg图片Exif中的旋转角度，只解析文件头，其他格式返回0
+     */
+    public static int readPictureDegree(String path) {
+        if (TextUtils.isEmpty(path)) return 0;
+        return ImageInfo.probe(path).getDegree();
     }
 
-    public static int readPictureDegree(String path) {
-        if(TextUtils.isEmpty(path) || !"image/jpeg".equals(getMimeType(path))) return 0;
-        int degree = 0;
-        try {
-            ExifInterface exifInterface = new ExifInterface(path);
-            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    degree = 90;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    degree = 180;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    degree = 270;
-                    break;
-                default:
-                    degree = 0;
-                    break;
-            }
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
+    static int getOrientationDegree(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
         }
-        return degree;
     }
 
 }
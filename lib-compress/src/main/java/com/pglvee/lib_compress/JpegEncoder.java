@@ -0,0 +1,32 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * TurboJPEG编码器；{@link CompressEngine}识别该编码器并直接使用native的压缩路径，
+ * 只有单独调用{@link #encode(Bitmap, int, OutputStream)}时才经过这里
+ */
+final class JpegEncoder implements ImageEncoder {
+
+    @Override
+    public String getMimeType() {
+        return "image/jpeg";
+    }
+
+    @Override
+    public boolean isLossless() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(Bitmap bitmap, int quality, OutputStream out) throws IOException {
+        byte[] data = CompressEngine.encodeJpeg(bitmap, quality);
+        if (data == null)
+            return false;
+        out.write(data);
+        return true;
+    }
+}
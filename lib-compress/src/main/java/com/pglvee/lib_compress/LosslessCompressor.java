@@ -0,0 +1,102 @@
+package com.pglvee.lib_compress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 不解码像素的jpeg输出：原图已经满足要求时去掉元数据后直接输出，只需旋转和居中裁剪时在DCT域中无损变换
+ */
+final class LosslessCompressor {
+
+    /** quality为0时直接输出的原图的最高估计质量，更高质量的原图改为无损变换或重新编码 */
+    static final int PASS_THROUGH_QUALITY = 90;
+    /** TurboJPEG的TJCS_YCbCr和TJCS_GRAY，其他颜色空间的原图需要重新编码 */
+    private static final int TJCS_YCBCR = 1;
+    private static final int TJCS_GRAY = 2;
+    /** TurboJPEG的TJSAMP_444和TJSAMP_GRAY */
+    private static final int TJSAMP_444 = 0;
+    private static final int TJSAMP_GRAY = 3;
+
+    private LosslessCompressor() {
+    }
+
+    /**
+     * jpeg原图无需缩放、裁剪和旋转，估计的质量不高于请求的质量时，重新编码只会增加损失和耗时；
+     * quality为0时只直接输出估计质量不高于{@link #PASS_THROUGH_QUALITY}的原图，按maxSize限制大小
+     */
+    static boolean isPassThrough(CompressRequest request, ImageInfo info, float scale, int[] cropOptions, int angle) {
+        return info.isJpeg() && info.data != null && request.isJpegOutput() && request.ssim <= 0
+                && request.output == CompressRequest.OUTPUT_BASELINE && scale <= 1 && angle % 360 == 0
+                && !ImageUtils.isRegionCrop(info.width, info.height, cropOptions)
+                && (info.colorspace == TJCS_YCBCR || info.colorspace == TJCS_GRAY) && keepsSubsampling(request, info)
+                && info.quality > 0 && info.quality <= (request.quality > 0 ? request.quality : PASS_THROUGH_QUALITY);
+    }
+
+    /**
+     * jpeg原图输出jpeg、未指定质量且不放大，旋转为90度的倍数时可以无损变换
+     */
+    static boolean isTransform(CompressRequest request, ImageInfo info, float scale, int angle) {
+        return info.isJpeg() && info.data != null && request.isJpegOutput() && request.quality <= 0 && request.ssim <= 0
+                && scale <= 1 && angle % 90 == 0 && keepsSubsampling(request, info);
+    }
+
+    /**
+     * 无损变换和直接输出保留原图的采样方式，指定了4:4:4或灰度时只用于已经是这种采样方式的原图
+     */
+    private static boolean keepsSubsampling(CompressRequest request, ImageInfo info) {
+        switch (request.subsampling) {
+            case CompressRequest.SUBSAMPLING_444:
+                return info.subsamp == TJSAMP_444;
+            case CompressRequest.SUBSAMPLING_GRAY:
+                return info.subsamp == TJSAMP_GRAY;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 去掉Exif等元数据后直接输出原图，与其他路径一样不保留Exif方向，保留ICC颜色配置；超过maxSize时返回false
+     */
+    static boolean passThrough(CompressRequest request, CompressResult result, ByteBuffer jpegData) {
+        long handle = copyWithoutMetadata(jpegData);
+        if (handle == 0)
+            return false;
+        return output(request, result, handle);
+    }
+
+    /**
+     * 在DCT域中无损旋转和居中裁剪jpeg图片，裁剪位置对齐到MCU，输出超过maxSize时返回false
+     */
+    static boolean transform(CompressRequest request, CompressResult result, ByteBuffer jpegData, int w, int h, int angle) {
+        int degree = (angle % 360 + 360) % 360;
+        boolean transpose = degree == 90 || degree == 270;
+        int[] cropOptions = request.maxScale > 0 ? ImageUtils.getOptionCrop(transpose ? h : w, transpose ? w : h, request.maxScale) : new int[]{0, 0, 0, 0};
+        long handle = transformCompress(jpegData, degree, cropOptions[2], cropOptions[3], cropOptions[0], cropOptions[1], request.output);
+        if (handle == 0)
+            return false;
+        return output(request, result, handle);
+    }
+
+    /**
+     * 无损输出不能按maxSize调整，超过时释放结果，由调用方改为重新编码
+     */
+    private static boolean output(CompressRequest request, CompressResult result, long handle) {
+        if (request.maxSize > 0 && CompressEngine.resultInfo(handle)[0] > request.maxSize) {
+            CompressEngine.freeResult(handle);
+            return false;
+        }
+        ResultWriter.write(request, result, handle);
+        return true;
+    }
+
+    private static long copyWithoutMetadata(ByteBuffer data) {
+        if (data.isDirect())
+            return CompressEngine.copyWithoutMetadata(data, null, data.position(), data.remaining());
+        return CompressEngine.copyWithoutMetadata(null, data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    private static long transformCompress(ByteBuffer data, int angle, int x, int y, int w, int h, int output) {
+        if (data.isDirect())
+            return CompressEngine.transformCompress(data, null, data.position(), data.remaining(), angle, x, y, w, h, output);
+        return CompressEngine.transformCompress(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), angle, x, y, w, h, output);
+    }
+}
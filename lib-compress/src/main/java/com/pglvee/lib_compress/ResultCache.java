@@ -0,0 +1,308 @@
+package com.pglvee.lib_compress;
+
+import android.os.Process;
+import android.text.TextUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压缩结果的磁盘缓存，通过{@link CompressEngine#setCache(ResultCache)}启用。
+ * 以输入图片内容和压缩参数的哈希值为key，命中时直接复制缓存的文件，不再解码和编码；
+ * 缓存文件先写入临时文件再重命名，总大小超过上限时按最近最少使用的顺序删除，
+ * 结果的宽高、质量和采样方式保存在文件名中，不需要额外的索引文件。可以在多个线程中同时使用
+ */
+public final class ResultCache {
+
+    /** 编码结果发生变化时修改，使旧版本的缓存失效 */
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicInteger tempId = new AtomicInteger();
+    private long maxSize;
+    private long size;
+
+    static {
+        System.loadLibrary("light");
+    }
+
+    private static final class Entry {
+        final File file;
+        final long length;
+        final int inWidth;
+        final int inHeight;
+        final int outWidth;
+        final int outHeight;
+        final int quality;
+        final int subsamp;
+
+        Entry(File file, int inWidth, int inHeight, int outWidth, int outHeight, int quality, int subsamp) {
+            this.file = file;
+            this.length = file.length();
+            this.inWidth = inWidth;
+            this.inHeight = inHeight;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.quality = quality;
+            this.subsamp = subsamp;
+        }
+    }
+
+    /**
+     * 打开缓存目录，读取已有的缓存文件并按修改时间恢复使用顺序
+     *
+     * @param maxSize 缓存文件的总大小上限
+     */
+    public ResultCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            return;
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            // 删除上次写入中断留下的临时文件和无法识别的文件
+            String[] parts = name.endsWith(SUFFIX) ? name.substring(0, name.length() - SUFFIX.length()).split("_") : null;
+            if (parts == null || parts.length != 7) {
+                file.delete();
+                continue;
+            }
+            try {
+                Entry entry = new Entry(file, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                        Integer.parseInt(parts[6]));
+                entries.put(parts[0], entry);
+                size += entry.length;
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        trim();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /**
+     * 当前缓存文件的总大小
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values())
+            entry.file.delete();
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * 计算请求对应的key：输入图片的全部字节加上规范化之后的压缩参数，文件使用probe时的映射；
+     * Bitmap和YUV输入的内容随时可能改变，输出到文件描述符时无法读回输出，都不缓存，返回null
+     */
+    static String key(CompressRequest request, ImageInfo info) {
+        ByteBuffer data = info.data;
+        if (data == null || request.outputFd != null)
+            return null;
+        long hash = hash(data, VERSION);
+        ImageEncoder encoder = request.encoder;
+        ByteBuffer options = ByteBuffer.allocate(52);
+        options.putInt(request.width).putInt(request.height)
+                .putInt(Math.max(request.quality, 0)).putLong(Math.max(request.maxSize, 0)).putFloat(Math.max(request.ssim, 0))
+                .putFloat(request.maxScale > 0 ? request.maxScale : 0)
+                .putInt(request.autoRotate ? -1 : (request.angle % 360 + 360) % 360)
+                .putInt(request.background).putInt(request.stream ? 1 : 0).putInt(request.output).putInt(request.subsampling)
+                .putInt((encoder.getClass().getName() + ' ' + encoder.getMimeType() + ' ' + encoder.isLossless()).hashCode());
+        options.flip();
+        return String.format(Locale.US, "%016x%016x", hash, hash(options, hash));
+    }
+
+    /**
+     * 查找缓存并更新使用顺序，文件已被外部删除时返回null
+     */
+    private synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (!entry.file.isFile()) {
+            entries.remove(key);
+            size -= entry.length;
+            return null;
+        }
+        // 修改时间保存使用顺序，下次打开时恢复
+        entry.file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * 命中时把缓存的图片按请求的输出方式复制到文件、buffer或byte[]，并填写结果
+     *
+     * @return 未命中或读取失败时返回false
+     */
+    boolean get(String key, CompressRequest request, CompressResult result) {
+        Entry entry = get(key);
+        if (entry == null)
+            return false;
+        try (FileInputStream in = new FileInputStream(entry.file)) {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            int size = (int) length;
+            if (!TextUtils.isEmpty(request.outputFilePath)) {
+                try (FileOutputStream out = new FileOutputStream(request.outputFilePath)) {
+                    long position = 0;
+                    while (position < length)
+                        position += channel.transferTo(position, length - position, out.getChannel());
+                }
+            } else if (request.outputBuffer != null) {
+                // 与native的copyResult一致，容量不足时返回-1
+                if (request.outputBuffer.remaining() < length) {
+                    size = -1;
+                } else {
+                    ByteBuffer dst = request.outputBuffer.slice();
+                    dst.limit(size);
+                    readFully(channel, dst);
+                    request.outputBuffer.position(request.outputBuffer.position() + size);
+                }
+            } else {
+                result.data = new byte[size];
+                readFully(channel, ByteBuffer.wrap(result.data));
+            }
+            result.success = size >= 0;
+            result.size = size;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        result.inWidth = entry.inWidth;
+        result.inHeight = entry.inHeight;
+        result.outWidth = entry.outWidth;
+        result.outHeight = entry.outHeight;
+        result.quality = entry.quality;
+        result.subsamp = entry.subsamp;
+        return true;
+    }
+
+    /**
+     * 将成功的压缩结果写入缓存，输出位置由请求决定
+     */
+    void put(String key, CompressRequest request, CompressResult result) {
+        File temp = newTempFile();
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            FileChannel channel = out.getChannel();
+            if (!TextUtils.isEmpty(request.outputFilePath)) {
+                try (FileInputStream in = new FileInputStream(request.outputFilePath)) {
+                    FileChannel src = in.getChannel();
+                    long position = 0, length = src.size();
+                    while (position < length)
+                        position += src.transferTo(position, length - position, channel);
+                }
+            } else {
+                ByteBuffer src;
+                if (request.outputBuffer != null) {
+                    // 输出写在buffer中position之前的size个字节
+                    src = request.outputBuffer.duplicate();
+                    src.limit(src.position());
+                    src.position(src.position() - result.size);
+                } else {
+                    src = ByteBuffer.wrap(result.getData());
+                }
+                while (src.hasRemaining())
+                    channel.write(src);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        commit(key, result, temp);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private File newTempFile() {
+        return new File(directory, Process.myPid() + "-" + tempId.incrementAndGet() + TEMP_SUFFIX);
+    }
+
+    /**
+     * 把写完的临时文件重命名为缓存文件，重命名是原子操作，读取方不会看到写了一半的文件
+     */
+    private synchronized void commit(String key, CompressResult result, File temp) {
+        File file = new File(directory, key + "_" + result.inWidth + "_" + result.inHeight + "_"
+                + result.outWidth + "_" + result.outHeight + "_" + result.quality + "_" + result.subsamp + SUFFIX);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        Entry entry = new Entry(file, result.inWidth, result.inHeight, result.outWidth, result.outHeight, result.quality,
+                result.subsamp);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.length;
+            if (!previous.file.equals(file))
+                previous.file.delete();
+        }
+        size += entry.length;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.length;
+            entry.file.delete();
+        }
+    }
+
+    static long hash(ByteBuffer data, long seed) {
+        if (data.isDirect())
+            return hash(data, null, data.position(), data.remaining(), seed);
+        return hash(null, data.array(), data.arrayOffset() + data.position(), data.remaining(), seed);
+    }
+
+    /**
+     * 输入为direct buffer或byte[]中的一段
+     *
+     * @return XXH64哈希值
+     */
+    private static native long hash(ByteBuffer buffer, byte[] array, int offset, int length, long seed);
+}
@@ -0,0 +1,93 @@
+package com.pglvee.lib_compress;
+
+import android.text.TextUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 将压缩结果写到请求指定的输出文件、描述符、buffer或byte[]，并填写结果的大小和尺寸
+ */
+final class ResultWriter {
+
+    private ResultWriter() {
+    }
+
+    /**
+     * 将{@link ImageEncoder}的输出写到输出文件、buffer或byte[]，buffer容量不足时与native一致返回-1
+     */
+    static void write(CompressRequest request, CompressResult result, EncodeBuffer data) throws IOException {
+        int size = data.size();
+        if (!TextUtils.isEmpty(request.outputFilePath)) {
+            try (FileOutputStream out = new FileOutputStream(request.outputFilePath)) {
+                data.writeTo(out);
+            }
+        } else if (request.outputFd != null) {
+            // 从描述符创建的FileOutputStream不拥有描述符，不能close
+            data.writeTo(new FileOutputStream(request.outputFd));
+        } else if (request.outputBuffer != null) {
+            if (request.outputBuffer.remaining() < size)
+                size = -1;
+            else
+                request.outputBuffer.put(data.array(), 0, size);
+        } else {
+            result.data = data.toByteArray();
+        }
+        result.success = size >= 0;
+        result.size = size;
+    }
+
+    /**
+     * 将native中的压缩结果写到输出文件、buffer或byte[]，并释放结果
+     */
+    static void write(CompressRequest request, CompressResult result, long handle) {
+        if (handle == 0)
+            return;
+        try {
+            int[] info = CompressEngine.resultInfo(handle);
+            if (result.metrics != null)
+                result.metrics.addNative(CompressEngine.resultMetrics(handle));
+            int size;
+            if (!TextUtils.isEmpty(request.outputFilePath))
+                size = CompressEngine.writeResult(handle, request.outputFilePath);
+            else if (request.outputFd != null)
+                size = writeResult(handle, request.outputFd);
+            else if (request.outputBuffer != null) {
+                size = CompressEngine.copyResult(handle, request.outputBuffer.slice());
+                if (size > 0) request.outputBuffer.position(request.outputBuffer.position() + size);
+            } else {
+                result.data = CompressEngine.getResult(handle);
+                size = result.data != null ? result.data.length : -1;
+            }
+            result.success = size >= 0;
+            result.size = size;
+            result.outWidth = info[1];
+            result.outHeight = info[2];
+            result.quality = info[3];
+            result.subsamp = info[4];
+        } finally {
+            CompressEngine.freeResult(handle);
+        }
+    }
+
+    /**
+     * 通过native结果上的direct buffer直接写到描述符，不复制到Java堆
+     *
+     * @return 写入的字节数，失败时返回-1
+     */
+    private static int writeResult(long handle, FileDescriptor fd) {
+        ByteBuffer data = CompressEngine.resultBuffer(handle);
+        try {
+            FileChannel channel = new FileOutputStream(fd).getChannel();
+            while (data.hasRemaining())
+                channel.write(data);
+            return data.limit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+}
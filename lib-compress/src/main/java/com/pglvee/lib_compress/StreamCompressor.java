@@ -0,0 +1,157 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 通过BitmapRegionDecoder只解码原图的一部分：裁剪时只解码保留的区域，超大图片按段解码后条带压缩，
+ * 解码得到的图片从引擎的{@link BitmapPool}中复用
+ */
+final class StreamCompressor {
+
+    /** 解码后超过该像素数的图片自动使用条带压缩 */
+    private static final long STREAM_PIXELS = 16L << 20;
+    /** 条带压缩时一次解码的原图像素字节数上限 */
+    static final long STREAM_CHUNK_BYTES = 16L << 20;
+    /** jpeg重启间隔最多65535个MCU，按最窄的8像素MCU计算 */
+    private static final int MAX_RESTART_INTERVAL = 65535;
+
+    private final CompressEngine engine;
+
+    StreamCompressor(CompressEngine engine) {
+        this.engine = engine;
+    }
+
+    static boolean isStream(CompressRequest request, int angle, long decodedPixels) {
+        return request.isJpegOutput() && request.maxSize <= 0 && request.ssim <= 0 && angle % 360 == 0
+                && (request.stream || decodedPixels > STREAM_PIXELS);
+    }
+
+    /**
+     * 条带压缩：每次只解码输出中一段行对应的原图区域，缩放到输出宽度后按条带交给native编码，
+     * native用重启标记把各条带拼接成一张jpeg图片；不支持的格式和取消时返回false
+     */
+    boolean compress(CompressRequest request, CompressResult result, int w, int h, float scale, int[] cropOptions,
+                     CompressTask task) {
+        int outWidth = (int) (cropOptions[0] / scale);
+        int outHeight = (int) (cropOptions[1] / scale);
+        if (outWidth <= 0 || outHeight <= 0)
+            return false;
+        int sample = ImageUtils.getOptionSample(scale);
+        float sy = (int) (h / scale) / (float) h;
+        // 条带高度是MCU高度16的倍数，且一个条带的MCU数不超过重启间隔的上限
+        int stripHeight = Math.min(256, MAX_RESTART_INTERVAL / ((outWidth + 7) / 8) * 8) / 16 * 16;
+        if (stripHeight <= 0)
+            return false;
+        long chunkRows = (long) (STREAM_CHUNK_BYTES * sy * sample * sample / (4L * cropOptions[0]));
+        int chunkHeight = (int) Math.max(stripHeight, Math.min(outHeight, chunkRows) / stripHeight * stripHeight);
+        BitmapRegionDecoder decoder = newRegionDecoder(request);
+        if (decoder == null)
+            return false;
+        BitmapPool pool = engine.getPool();
+        long encoder = CompressEngine.beginStrips(outWidth, outHeight, request.quality > 0 ? request.quality : 100,
+                request.options(), stripHeight);
+        Bitmap chunk = null;
+        try {
+            if (encoder == 0)
+                return false;
+            chunk = engine.obtainBitmap(outWidth, Math.min(chunkHeight, outHeight));
+            Canvas canvas = new Canvas(chunk);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            int offsetY = (int) (cropOptions[3] / scale);
+            CompressMetrics metrics = result.metrics;
+            for (int y = 0; y < outHeight; y += chunkHeight) {
+                if (CompressEngine.isCancelled(task))
+                    return false;
+                int rows = Math.min(chunkHeight, outHeight - y);
+                // 输出的[y, y + rows)行对应的原图行，上下多解码几行供插值使用
+                int top = Math.max(0, (int) ((y + offsetY) / sy) - 2 * sample);
+                int bottom = Math.min(h, (int) Math.ceil((y + rows + offsetY) / sy) + 2 * sample);
+                int[] region = new int[]{cropOptions[2], top, cropOptions[0], bottom - top};
+                BitmapFactory.Options newOpts = new BitmapFactory.Options();
+                newOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                newOpts.inSampleSize = sample;
+                long before = SystemClock.elapsedRealtimeNanos();
+                Bitmap decoded = engine.decodePooled(request, decoder, new Rect(region[0], region[1], region[0] + region[2], region[1] + region[3]), newOpts, region[2], region[3]);
+                if (decoded == null)
+                    return false;
+                long decodedAt = SystemClock.elapsedRealtimeNanos();
+                Matrix matrix = CompressEngine.getTransformMatrix(decoded, region, w, h, scale, cropOptions);
+                matrix.postTranslate(0, -y);
+                chunk.eraseColor(request.background);
+                canvas.drawBitmap(decoded, matrix, paint);
+                metrics.decodeNanos += decodedAt - before;
+                metrics.transformNanos += SystemClock.elapsedRealtimeNanos() - decodedAt;
+                metrics.peakPixelBytes = Math.max(metrics.peakPixelBytes, decoded.getAllocationByteCount() + chunk.getAllocationByteCount());
+                pool.put(decoded);
+                for (int row = 0; row < rows; row += stripHeight) {
+                    if (CompressEngine.writeStrip(encoder, chunk, row, Math.min(stripHeight, rows - row)) < 0)
+                        return false;
+                }
+            }
+            long handle = CompressEngine.finishStrips(encoder, request.output);
+            encoder = 0;
+            if (handle == 0)
+                return false;
+            ResultWriter.write(request, result, handle);
+            return true;
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (encoder != 0)
+                CompressEngine.abortStrips(encoder);
+            if (chunk != null)
+                pool.put(chunk);
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * 存在裁剪时只解码保留的区域，BitmapRegionDecoder会跳过区域之外的行和列，
+     * 解码时间和内存只与输出大小有关；不支持的格式返回null
+     *
+     * @param region {x, y, width, height}
+     */
+    Bitmap decodeRegion(CompressRequest request, int[] region, float scale) {
+        BitmapRegionDecoder decoder = newRegionDecoder(request);
+        if (decoder == null)
+            return null;
+        try {
+            BitmapFactory.Options newOpts = new BitmapFactory.Options();
+            newOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            newOpts.inSampleSize = ImageUtils.getOptionSample(scale);
+            Rect rect = new Rect(region[0], region[1], region[0] + region[2], region[1] + region[3]);
+            return engine.decodePooled(request, decoder, rect, newOpts, region[2], region[3]);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static BitmapRegionDecoder newRegionDecoder(CompressRequest request) {
+        try {
+            ByteBuffer inputData = request.inputData;
+            if (inputData == null)
+                return BitmapRegionDecoder.newInstance(request.inputFilePath, false);
+            if (inputData.hasArray())
+                return BitmapRegionDecoder.newInstance(inputData.array(), inputData.arrayOffset() + inputData.position(), inputData.remaining(), false);
+            // 解码器会在native中缓存整个输入，但不会再经过堆上的byte[]
+            return BitmapRegionDecoder.newInstance(new ByteBufferInputStream(inputData), false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
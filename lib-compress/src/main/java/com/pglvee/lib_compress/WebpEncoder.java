@@ -0,0 +1,39 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.OutputStream;
+
+/**
+ * 使用系统libwebp的WebP编码器。Android 11之前只有WEBP一种格式，quality为100时是无损编码，
+ * 因此有损编码的质量最高为99；Android 10之前quality为100时仍然是有损编码，不支持无损
+ */
+final class WebpEncoder implements ImageEncoder {
+
+    private final boolean lossless;
+
+    WebpEncoder(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    @Override
+    public String getMimeType() {
+        return "image/webp";
+    }
+
+    @Override
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean encode(Bitmap bitmap, int quality, OutputStream out) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            return bitmap.compress(lossless ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP_LOSSY, quality, out);
+        if (!lossless)
+            return bitmap.compress(Bitmap.CompressFormat.WEBP, Math.min(quality, 99), out);
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && bitmap.compress(Bitmap.CompressFormat.WEBP, 100, out);
+    }
+}
@@ -0,0 +1,64 @@
+package com.pglvee.lib_compress;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV 4:2:0格式的输入，Y、U、V三个平面为direct buffer，或者同一个byte[]中的三段；
+ * U、V平面的行数和列数为Y平面的一半，pixelStride为2时是NV21、NV12这类交错存储的格式
+ */
+final class YuvPlanes {
+
+    final ByteBuffer[] buffers;
+    final byte[] array;
+    final int[] offsets;
+    final int[] rowStrides;
+    final int uvPixelStride;
+    final int width;
+    final int height;
+
+    private YuvPlanes(ByteBuffer[] buffers, byte[] array, int[] offsets, int[] rowStrides, int uvPixelStride, int width, int height) {
+        this.buffers = buffers;
+        this.array = array;
+        this.offsets = offsets;
+        this.rowStrides = rowStrides;
+        this.uvPixelStride = uvPixelStride;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * 相机预览的NV21数据：Y平面之后是V、U交错的平面
+     */
+    static YuvPlanes fromNv21(byte[] data, int width, int height) {
+        if (width <= 0 || height <= 0 || data.length < width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2))
+            throw new IllegalArgumentException("nv21 data is smaller than " + width + "x" + height);
+        int uvOffset = width * height;
+        int uvStride = (width + 1) / 2 * 2;
+        return new YuvPlanes(null, data, new int[]{0, uvOffset + 1, uvOffset}, new int[]{width, uvStride, uvStride}, 2, width, height);
+    }
+
+    /**
+     * Camera2和ImageReader输出的YUV_420_888图片，直接读取各平面的direct buffer，压缩完成前不能close
+     */
+    static YuvPlanes fromImage(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888)
+            throw new IllegalArgumentException("image format must be YUV_420_888");
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        int[] offsets = new int[3];
+        int[] rowStrides = new int[3];
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = planes[i].getBuffer();
+            offsets[i] = buffers[i].position();
+            rowStrides[i] = planes[i].getRowStride();
+        }
+        return new YuvPlanes(buffers, null, offsets, rowStrides, planes[1].getPixelStride(), image.getWidth(), image.getHeight());
+    }
+
+    ByteBuffer getBuffer(int plane) {
+        return buffers != null ? buffers[plane] : null;
+    }
+}
@@ -6,12 +6,33 @@
 #include <string>
 #include <cstdio>
 #include <cstdlib>
+#include <cstring>
 #include <cerrno>
+#include <climits>
+#include <ctime>
+#include <algorithm>
+#include <atomic>
+#include <condition_variable>
+#include <functional>
+#include <list>
+#include <mutex>
+#include <system_error>
+#include <thread>
+#include <vector>
 #include <android/log.h>
+#include <android/bitmap.h>
 #include "turbojpeg.h"
 
 #define printf(format, ...)  __android_log_print(ANDROID_LOG_INFO, "compress-jni", format, ##__VA_ARGS__)
 
+/* Per-call diagnostics cost a formatted logcat write on every call, so they are only compiled in when
+   LIGHT_TRACE is defined (debug builds, or cmake -DLIGHT_TRACE=ON).  Errors are always logged. */
+#ifdef LIGHT_TRACE
+#define TRACE(format, ...)  printf(format, ##__VA_ARGS__)
+#else
+#define TRACE(format, ...)  ((void) 0)
+#endif
+
 #define THROW(action, message, label) { \
     printf("ERROR in line %d while %s:\n%s\n", __LINE__, action, message); \
     retval = -1;  goto lab##label; \
@@ -20,9 +41,39 @@
 #define THROW_TJ(action, label)  THROW(action, tjGetErrorStr2(tjInstance), label)
 #define THROW_UNIX(action, label)  THROW(action, strerror(errno), label)
 
+/* Stop quietly when the Java task has been cancelled.  cancel points to the int in the direct buffer of a
+   CompressTask, or is null when the call cannot be cancelled. */
+#define CANCELLED(cancel)  ((cancel) != nullptr && *(cancel) != 0)
+#define CANCEL(label) { \
+    TRACE("Cancelled in line %d\n", __LINE__); \
+    retval = -1;  goto lab##label; \
+}
+
 
 #define DEFAULT_SUBSAMP  TJSAMP_444
 #define DEFAULT_QUALITY  95
+#define DEFAULT_BITMAP_SUBSAMP  TJSAMP_420
+#define MAX_SEARCH_ENCODES  8
+#define SSIM_SEARCH_ENCODES  6
+#define SSIM_START_QUALITY  75
+#define SSIM_VIEW_SIZE  1080
+/* Output options from CompressRequest.OUTPUT_*, and CompressRequest.SUBSAMPLING_* in the bits above them */
+#define OUTPUT_OPTIMIZE  1
+#define OUTPUT_PROGRESSIVE  2
+#define OUTPUT_SUBSAMP_SHIFT  4
+#define OUTPUT_SUBSAMP_MASK  (3 << OUTPUT_SUBSAMP_SHIFT)
+/* Thresholds of the SUBSAMPLING_AUTO analysis, on chroma centered at 0: a sample is colored beyond GRAY_CHROMA
+   and sits on a chroma edge if it differs from its right or lower neighbor by more than CHROMA_EDGE (Cb + Cr). */
+#define GRAY_CHROMA  4
+#define CHROMA_EDGE  48
+#define SUBSAMP_SAMPLE_ROWS  256
+#define SUBSAMP_SAMPLE_COLUMNS  1024
+#define SEARCH_TOLERANCE  0.97
+#define SEARCH_HEADROOM  4096
+#define PARALLEL_MIN_PIXELS  (4 << 20)
+#define MAX_ENCODE_THREADS  8
+#define MIN_BUFFER_CLASS  4096
+#define DEFAULT_BUFFER_POOL_LIMIT  (64 << 20)
 
 const char *subsampName[TJ_NUMSAMP] = {
         "4:4:4", "4:2:2", "4:2:0", "Grayscale", "4:4:0", "4:1:1"
@@ -35,6 +86,124 @@ const char *colorspaceName[TJ_NUMCS] = {
 tjscalingfactor *scalingFactors = nullptr;
 int numScalingFactors = 0;
 
+/* TurboJPEG instances must not be shared between threads, so every thread that calls into the library keeps
+   its own compressor, decompressor and transformer, created on first use and destroyed when the thread exits. */
+struct threadstate {
+    tjhandle compressor = nullptr, decompressor = nullptr, transformer = nullptr;
+
+    ~threadstate() {
+        if (compressor) tjDestroy(compressor);
+        if (decompressor) tjDestroy(decompressor);
+        if (transformer) tjDestroy(transformer);
+    }
+};
+
+static thread_local threadstate threadState;
+
+static tjhandle getCompressor() {
+    if (threadState.compressor == nullptr) threadState.compressor = tjInitCompress();
+    return threadState.compressor;
+}
+
+static tjhandle getDecompressor() {
+    if (threadState.decompressor == nullptr) threadState.decompressor = tjInitDecompress();
+    return threadState.decompressor;
+}
+
+static tjhandle getTransformer() {
+    if (threadState.transformer == nullptr) threadState.transformer = tjInitTransform();
+    return threadState.transformer;
+}
+
+/* JPEG output buffers are recycled through a process-wide pool instead of being allocated and freed for every
+   image.  Buffers come in power-of-two size classes so that images of similar dimensions share them, the most
+   recently released buffer is reused first, and the least recently released ones are freed once the pool
+   holds more than bufferPoolLimit bytes. */
+typedef struct {
+    unsigned char *buf;
+    unsigned long capacity;
+} pooledbuffer;
+
+static std::mutex bufferPoolLock;
+static std::list<pooledbuffer> bufferPool;
+static unsigned long bufferPoolBytes = 0, bufferPoolLimit = DEFAULT_BUFFER_POOL_LIMIT;
+
+static unsigned long bufferClass(unsigned long size) {
+    unsigned long capacity = MIN_BUFFER_CLASS;
+    while (capacity < size) capacity <<= 1;
+    return capacity;
+}
+
+/* Free the least recently released buffers until the pool holds at most maxBytes.  bufferPoolLock must be held. */
+static void trimBufferPool(unsigned long maxBytes) {
+    while (bufferPoolBytes > maxBytes && !bufferPool.empty()) {
+        bufferPoolBytes -= bufferPool.back().capacity;
+        tjFree(bufferPool.back().buf);
+        bufferPool.pop_back();
+    }
+}
+
+/* Get a buffer of at least size bytes and store its real capacity, which must be passed to releaseBuffer().
+   tjAlloc() takes an int, so buffers of 2 GB and more fail with ENOMEM. */
+static unsigned char *acquireBuffer(unsigned long size, unsigned long *capacity) {
+    unsigned char *buf = nullptr;
+    if (size > (unsigned long) INT_MAX) {
+        *capacity = 0;
+        errno = ENOMEM;
+        return nullptr;
+    }
+    *capacity = std::min(bufferClass(size), (unsigned long) INT_MAX);
+    {
+        std::lock_guard<std::mutex> lock(bufferPoolLock);
+        for (auto it = bufferPool.begin(); it != bufferPool.end(); ++it) {
+            if (it->capacity == *capacity) {
+                buf = it->buf;
+                bufferPoolBytes -= it->capacity;
+                bufferPool.erase(it);
+                return buf;
+            }
+        }
+    }
+    if ((buf = tjAlloc((int) *capacity)) == nullptr) *capacity = 0;
+    return buf;
+}
+
+/* Return a buffer from acquireBuffer() to the pool.  Buffers allocated by TurboJPEG itself have capacity 0 and
+   are freed. */
+static void releaseBuffer(unsigned char *buf, unsigned long capacity) {
+    if (buf == nullptr) return;
+    std::lock_guard<std::mutex> lock(bufferPoolLock);
+    if (capacity == 0 || capacity > bufferPoolLimit) {
+        tjFree(buf);
+        return;
+    }
+    bufferPool.push_front({buf, capacity});
+    bufferPoolBytes += capacity;
+    trimBufferPool(bufferPoolLimit);
+}
+
+/* Make *buf, which may be null, hold at least size bytes.  Its contents are lost if it has to be replaced. */
+static int reserveBuffer(unsigned char **buf, unsigned long *capacity, unsigned long size) {
+    if (*buf != nullptr && *capacity >= size) return 0;
+    releaseBuffer(*buf, *capacity);
+    *buf = acquireBuffer(size, capacity);
+    return *buf != nullptr ? 0 : -1;
+}
+
+/* Move the first keep bytes of *buf into a smaller buffer of at least size bytes, if the buffer class of size is
+   smaller than *capacity.  The buffer is kept as it is if no smaller one can be allocated. */
+static void shrinkBuffer(unsigned char **buf, unsigned long *capacity, unsigned long keep, unsigned long size) {
+    unsigned char *newBuf;
+    unsigned long newCapacity;
+    size = std::max(size, keep);
+    if (*buf == nullptr || bufferClass(size) >= *capacity) return;
+    if ((newBuf = acquireBuffer(size, &newCapacity)) == nullptr) return;
+    memcpy(newBuf, *buf, keep);
+    releaseBuffer(*buf, *capacity);
+    *buf = newBuf;
+    *capacity = newCapacity;
+}
+
 /* DCT filter example.  This produces a negative of the image. */
 static int customFilter(short *coeffs, tjregion arrayRegion,
                         tjregion planeRegion, int componentIndex,
@@ -48,69 +217,69 @@ static int customFilter(short *coeffs, tjregion arrayRegion,
 static void usage(char *programName) {
     int i;
 
-    printf("\nUSAGE: %s <Input image> <Output image> [options]\n\n", programName);
+    TRACE("\nUSAGE: %s <Input image> <Output image> [options]\n\n", programName);
 
-    printf("Input and output images can be in Windows BMP or PBMPLUS (PPM/PGM) format.  If\n");
-    printf("either filename ends in a .jpg extension, then the TurboJPEG API will be used\n");
-    printf("to compress or decompress the image.\n\n");
+    TRACE("Input and output images can be in Windows BMP or PBMPLUS (PPM/PGM) format.  If\n");
+    TRACE("either filename ends in a .jpg extension, then the TurboJPEG API will be used\n");
+    TRACE("to compress or decompress the image.\n\n");
 
-    printf("Compression Options (used if the output image is a JPEG image)\n");
-    printf("--------------------------------------------------------------\n\n");
+    TRACE("Compression Options (used if the output image is a JPEG image)\n");
+    TRACE("--------------------------------------------------------------\n\n");
 
-    printf("-subsamp <444|422|420|gray> = Apply this level of chrominance subsampling when\n");
-    printf("     compressing the output image.  The default is to use the same level of\n");
-    printf("     subsampling as in the input image, if the input image is also a JPEG\n");
-    printf("     image, or to use grayscale if the input image is a grayscale non-JPEG\n");
-    printf("     image, or to use %s subsampling otherwise.\n\n", subsampName[DEFAULT_SUBSAMP]);
+    TRACE("-subsamp <444|422|420|gray> = Apply this level of chrominance subsampling when\n");
+    TRACE("     compressing the output image.  The default is to use the same level of\n");
+    TRACE("     subsampling as in the input image, if the input image is also a JPEG\n");
+    TRACE("     image, or to use grayscale if the input image is a grayscale non-JPEG\n");
+    TRACE("     image, or to use %s subsampling otherwise.\n\n", subsampName[DEFAULT_SUBSAMP]);
 
-    printf("-q <1-100> = Compress the output image with this JPEG quality level\n");
-    printf("     (default = %d).\n\n", DEFAULT_QUALITY);
+    TRACE("-q <1-100> = Compress the output image with this JPEG quality level\n");
+    TRACE("     (default = %d).\n\n", DEFAULT_QUALITY);
 
-    printf("Decompression Options (used if the input image is a JPEG image)\n");
-    printf("---------------------------------------------------------------\n\n");
+    TRACE("Decompression Options (used if the input image is a JPEG image)\n");
+    TRACE("---------------------------------------------------------------\n\n");
 
-    printf("-scale M/N = Scale the input image by a factor of M/N when decompressing it.\n");
-    printf("(M/N = ");
+    TRACE("-scale M/N = Scale the input image by a factor of M/N when decompressing it.\n");
+    TRACE("(M/N = ");
     for (i = 0; i < numScalingFactors; i++) {
-        printf("%d/%d", scalingFactors[i].num, scalingFactors[i].denom);
+        TRACE("%d/%d", scalingFactors[i].num, scalingFactors[i].denom);
         if (numScalingFactors == 2 && i != numScalingFactors - 1)
-            printf(" or ");
+            TRACE(" or ");
         else if (numScalingFactors > 2) {
             if (i != numScalingFactors - 1)
-                printf(", ");
+                TRACE(", ");
             if (i == numScalingFactors - 2)
-                printf("or ");
+                TRACE("or ");
         }
     }
-    printf(")\n\n");
+    TRACE(")\n\n");
 
-    printf("-hflip, -vflip, -transpose, -transverse, -rot90, -rot180, -rot270 =\n");
-    printf("     Perform one of these lossless transform operations on the input image\n");
-    printf("     prior to decompressing it (these options are mutually exclusive.)\n\n");
+    TRACE("-hflip, -vflip, -transpose, -transverse, -rot90, -rot180, -rot270 =\n");
+    TRACE("     Perform one of these lossless transform operations on the input image\n");
+    TRACE("     prior to decompressing it (these options are mutually exclusive.)\n\n");
 
-    printf("-grayscale = Perform lossless grayscale conversion on the input image prior\n");
-    printf("     to decompressing it (can be combined with the other transform operations\n");
-    printf("     above.)\n\n");
+    TRACE("-grayscale = Perform lossless grayscale conversion on the input image prior\n");
+    TRACE("     to decompressing it (can be combined with the other transform operations\n");
+    TRACE("     above.)\n\n");
 
-    printf("-crop WxH+X+Y = Perform lossless cropping on the input image prior to\n");
-    printf("     decompressing it.  X and Y specify the upper left corner of the cropping\n");
-    printf("     region, and W and H specify the width and height of the cropping region.\n");
-    printf("     X and Y must be evenly divible by the MCU block size (8x8 if the input\n");
-    printf("     image was compressed using no subsampling or grayscale, 16x8 if it was\n");
-    printf("     compressed using 4:2:2 subsampling, or 16x16 if it was compressed using\n");
-    printf("     4:2:0 subsampling.)\n\n");
+    TRACE("-crop WxH+X+Y = Perform lossless cropping on the input image prior to\n");
+    TRACE("     decompressing it.  X and Y specify the upper left corner of the cropping\n");
+    TRACE("     region, and W and H specify the width and height of the cropping region.\n");
+    TRACE("     X and Y must be evenly divible by the MCU block size (8x8 if the input\n");
+    TRACE("     image was compressed using no subsampling or grayscale, 16x8 if it was\n");
+    TRACE("     compressed using 4:2:2 subsampling, or 16x16 if it was compressed using\n");
+    TRACE("     4:2:0 subsampling.)\n\n");
 
-    printf("General Options\n");
-    printf("---------------\n\n");
+    TRACE("General Options\n");
+    TRACE("---------------\n\n");
 
-    printf("-fastupsample = Use the fastest chrominance upsampling algorithm available in\n");
-    printf("     the underlying codec.\n\n");
+    TRACE("-fastupsample = Use the fastest chrominance upsampling algorithm available in\n");
+    TRACE("     the underlying codec.\n\n");
 
-    printf("-fastdct = Use the fastest DCT/IDCT algorithms available in the underlying\n");
-    printf("     codec.\n\n");
+    TRACE("-fastdct = Use the fastest DCT/IDCT algorithms available in the underlying\n");
+    TRACE("     codec.\n\n");
 
-    printf("-accuratedct = Use the most accurate DCT/IDCT algorithms available in the\n");
-    printf("     underlying codec.\n\n");
+    TRACE("-accuratedct = Use the most accurate DCT/IDCT algorithms available in the\n");
+    TRACE("     underlying codec.\n\n");
 }
 
 int mainCompress(
@@ -240,7 +409,7 @@ int mainCompress(
             THROW_TJ("reading JPEG header", mainbailout);
         }
 
-        printf("%s Image:  %d x %d pixels, %s subsampling, %s colorspace\n", (doTransform ? "Transformed" : "Input"),
+        TRACE("%s Image:  %d x %d pixels, %s subsampling, %s colorspace\n", (doTransform ? "Transformed" : "Input"),
                width, height, subsampName[inSubsamp], colorspaceName[inColorspace]);
 
         if ((!strcasecmp(outFormat, "jpg") || !strcasecmp(outFormat, "jpeg")) && doTransform &&
@@ -289,10 +458,10 @@ int mainCompress(
             else
                 outSubsamp = TJSAMP_444;
         }
-        printf("Input Image:  %d x %d pixels\n", width, height);
+        TRACE("Input Image:  %d x %d pixels\n", width, height);
     }
 
-    printf("Output Image (%s):  %d x %d pixels", outFormat, width, height);
+    TRACE("Output Image (%s):  %d x %d pixels", outFormat, width, height);
 
     if (!strcasecmp(outFormat, "jpg") || !strcasecmp(outFormat, "jpeg")) {
         /* Output image format is JPEG.  Compress the uncompressed image. */
@@ -301,7 +470,7 @@ int mainCompress(
 
         if (outQual < 0)
             outQual = DEFAULT_QUALITY;
-        printf(", %s subsampling, quality = %d\n", subsampName[outSubsamp], outQual);
+        TRACE(", %s subsampling, quality = %d\n", subsampName[outSubsamp], outQual);
 
 
         if ((tjInstance = tjInitCompress()) == nullptr) {
@@ -332,7 +501,7 @@ int mainCompress(
 
     } else {
         /* Output image format is not JPEG.  Save the uncompressed image directly to disk. */
-        printf("\n");
+        TRACE("\n");
         if (tjSaveImage(output, imgBuf, width, 0, height, pixelFormat, 0) < 0) {
             THROW_TJ("saving output image", mainbailout);
         }
@@ -346,129 +515,2591 @@ int mainCompress(
     return retval;
 }
 
-int thumbnailCompress(unsigned char *jpegBuf, unsigned long jpegSize, const char *output, unsigned long maxSize) {
-    int retval = 0;
-    int quality = 100;
-    tjhandle tjInstance = nullptr;
-    unsigned char *imgBuf = nullptr;
-    FILE *jpegFile = nullptr;
-    int width, height, inSubsamp, inColorspace;
-    unsigned long jpegSize_out = 0;
-    unsigned char *jpegBuf_out = nullptr;
+/* Huffman optimization.  TurboJPEG 2.1 can only compute optimal Huffman tables for baseline images through the
+   process-wide TJ_OPTIMIZE environment variable, which would also change the strips of other threads.  Instead,
+   a finished single-scan baseline image is re-encoded losslessly, like jpegtran -optimize: the entropy-coded
+   data is decoded into symbols with the tables of the image, the symbols are counted, optimal tables are built
+   from the counts and the same symbols and extra bits are written again with the new codes.  Restart markers
+   are kept, so stitched strips can be optimized as well. */
+typedef struct {
+    unsigned char bits[17], huffval[256];
+    bool defined;
+    /* Decoding: the codes of length l are mincode[l]..maxcode[l] and their values start at valptr[l].  lookup
+       holds (length << 8) | value for every 8-bit prefix of a code of at most 8 bits. */
+    int mincode[17], maxcode[17], valptr[17];
+    unsigned short lookup[256];
+    /* Encoding */
+    unsigned int code[256];
+    unsigned char size[256];
+} hufftable;
+
+typedef struct {
+    int width, height, hmax, vmax, interval, components;
+    /* Per scan component, in scan order */
+    int h[4], v[4], dcTable[4], acTable[4];
+    /* Offsets of the SOS marker and of the entropy-coded data */
+    unsigned long sosPos, dataPos;
+} scaninfo;
+
+typedef struct {
+    const unsigned char *buf;
+    unsigned long size, pos;
+    unsigned long long acc;
+    int bits;
+    bool marker;
+} bitreader;
+
+typedef struct {
+    unsigned char *buf;
+    unsigned long capacity, pos;
+    unsigned long long acc;
+    int bits;
+} bitwriter;
+
+static int deriveTable(hufftable *table) {
+    int p = 0, l, i, k, code = 0;
+    memset(table->lookup, 0, sizeof(table->lookup));
+    memset(table->size, 0, sizeof(table->size));
+    for (l = 1; l <= 16; l++) {
+        table->valptr[l] = p;
+        table->mincode[l] = code;
+        for (i = 0; i < table->bits[l]; i++, p++, code++) {
+            unsigned char value = table->huffval[p];
+            table->code[value] = (unsigned int) code;
+            table->size[value] = (unsigned char) l;
+            if (l <= 8)
+                for (k = code << (8 - l); k < (code + 1) << (8 - l); k++)
+                    table->lookup[k] = (unsigned short) (l << 8 | value);
+        }
+        table->maxcode[l] = table->bits[l] ? code - 1 : -1;
+        if (code > 1 << l) return -1;
+        code <<= 1;
+    }
+    return 0;
+}
+
+/* Build the optimal table for the symbol counts, limited to 16-bit codes, as jpeg_gen_optimal_table() does. */
+static void genOptimalTable(long long *freq, hufftable *table) {
+    unsigned char bits[33];
+    int codesize[257], others[257], c1, c2, p, i, j;
+    long long v;
+
+    memset(bits, 0, sizeof(bits));
+    memset(codesize, 0, sizeof(codesize));
+    for (i = 0; i < 257; i++) others[i] = -1;
+    /* Reserve one code point so that no real code is all ones. */
+    freq[256] = 1;
+    for (;;) {
+        c1 = c2 = -1;
+        v = LLONG_MAX;
+        for (i = 0; i <= 256; i++)
+            if (freq[i] && freq[i] <= v) v = freq[c1 = i];
+        v = LLONG_MAX;
+        for (i = 0; i <= 256; i++)
+            if (freq[i] && freq[i] <= v && i != c1) v = freq[c2 = i];
+        if (c2 < 0) break;
+        freq[c1] += freq[c2];
+        freq[c2] = 0;
+        codesize[c1]++;
+        while (others[c1] >= 0) {
+            c1 = others[c1];
+            codesize[c1]++;
+        }
+        others[c1] = c2;
+        codesize[c2]++;
+        while (others[c2] >= 0) {
+            c2 = others[c2];
+            codesize[c2]++;
+        }
+    }
+    for (i = 0; i <= 256; i++)
+        if (codesize[i]) bits[codesize[i]]++;
+    /* Move codes longer than 16 bits up the tree, keeping it complete. */
+    for (i = 32; i > 16; i--) {
+        while (bits[i] > 0) {
+            j = i - 2;
+            while (bits[j] == 0) j--;
+            bits[i] -= 2;
+            bits[i - 1]++;
+            bits[j + 1] += 2;
+            bits[j]--;
+        }
+    }
+    while (bits[i] == 0) i--;
+    /* Remove the reserved code point, which is the longest one. */
+    bits[i]--;
+    memcpy(table->bits, bits, 17);
+    p = 0;
+    for (i = 1; i <= 32; i++)
+        for (j = 0; j <= 255; j++)
+            if (codesize[j] == i) table->huffval[p++] = (unsigned char) j;
+    table->defined = true;
+}
+
+static void fillBits(bitreader *reader) {
+    while (reader->bits <= 56) {
+        unsigned int byte = 0;
+        /* After a marker, zeros are fed so that the last codes of the segment can be peeked. */
+        if (!reader->marker && reader->pos < reader->size) {
+            byte = reader->buf[reader->pos];
+            if (byte != 0xFF) reader->pos++;
+            else if (reader->pos + 1 < reader->size && reader->buf[reader->pos + 1] == 0) reader->pos += 2;
+            else {
+                reader->marker = true;
+                byte = 0;
+            }
+        }
+        reader->acc |= (unsigned long long) byte << (56 - reader->bits);
+        reader->bits += 8;
+    }
+}
+
+static unsigned int readBits(bitreader *reader, int n) {
+    unsigned int value;
+    if (n == 0) return 0;
+    if (reader->bits < n) fillBits(reader);
+    value = (unsigned int) (reader->acc >> (64 - n));
+    reader->acc <<= n;
+    reader->bits -= n;
+    return value;
+}
+
+static int decodeSymbol(bitreader *reader, const hufftable *table) {
+    unsigned int look, code;
+    int l;
+    if (reader->bits < 16) fillBits(reader);
+    if ((look = table->lookup[reader->acc >> 56]) != 0) {
+        readBits(reader, look >> 8);
+        return look & 0xFF;
+    }
+    for (l = 9; l <= 16; l++) {
+        code = (unsigned int) (reader->acc >> (64 - l));
+        if ((int) code <= table->maxcode[l]) {
+            readBits(reader, l);
+            return table->huffval[table->valptr[l] + code - table->mincode[l]];
+        }
+    }
+    return -1;
+}
+
+static void putByte(bitwriter *writer, unsigned char byte) {
+    if (writer->pos < writer->capacity) writer->buf[writer->pos] = byte;
+    writer->pos++;
+}
+
+static void putBits(bitwriter *writer, unsigned int value, int n) {
+    unsigned char byte;
+    writer->acc = writer->acc << n | (value & ((1u << n) - 1));
+    writer->bits += n;
+    while (writer->bits >= 8) {
+        byte = (unsigned char) (writer->acc >> (writer->bits - 8));
+        writer->bits -= 8;
+        putByte(writer, byte);
+        if (byte == 0xFF) putByte(writer, 0);
+    }
+}
 
-    if ((jpegFile = fopen(output, "wb")) == nullptr) {
-        THROW_UNIX("opening output file", thumbout);
+/* Pad the last byte with one bits, as at the end of every entropy-coded segment. */
+static void flushBits(bitwriter *writer) {
+    if (writer->bits > 0) putBits(writer, 0x7F, 8 - writer->bits);
+    writer->bits = 0;
+}
+
+/* Decode one block.  Without a writer, the symbols are counted; with one, they are written with the codes of
+   outDc and outAc. */
+static int transcodeBlock(bitreader *reader, const hufftable *dc, const hufftable *ac, long long *dcCount,
+                          long long *acCount, bitwriter *writer, const hufftable *outDc, const hufftable *outAc) {
+    int s, k, rs;
+    unsigned int extra;
+    if ((s = decodeSymbol(reader, dc)) < 0 || s > 15) return -1;
+    extra = readBits(reader, s);
+    if (writer) {
+        putBits(writer, outDc->code[s], outDc->size[s]);
+        putBits(writer, extra, s);
+    } else dcCount[s]++;
+    for (k = 1; k < 64; k++) {
+        if ((rs = decodeSymbol(reader, ac)) < 0) return -1;
+        s = rs & 15;
+        extra = readBits(reader, s);
+        if (writer) {
+            putBits(writer, outAc->code[rs], outAc->size[rs]);
+            putBits(writer, extra, s);
+        } else acCount[rs]++;
+        if (s == 0) {
+            if (rs != 0xF0) break;
+            k += 15;
+        } else k += rs >> 4;
+        if (k > 63) return -1;
     }
+    return 0;
+}
 
-    if ((tjInstance = tjInitDecompress()) == nullptr) {
-        THROW_TJ("initializing decompressor", thumbout);
+/* Walk the MCUs of the scan once, counting symbols or writing them.  *end receives the offset of the marker
+   after the scan. */
+static int transcodeScan(const unsigned char *buf, unsigned long size, const scaninfo *scan, hufftable *tables,
+                         long long *counts, bitwriter *writer, hufftable *outTables, unsigned long *end) {
+    bitreader reader;
+    int blocks[4], mcusX, mcusY, restarts = 0, c, b;
+    long mcu, total;
+
+    memset(&reader, 0, sizeof(bitreader));
+    reader.buf = buf;
+    reader.size = size;
+    reader.pos = scan->dataPos;
+    if (scan->components == 1) {
+        /* A non-interleaved scan codes single blocks of the component. */
+        blocks[0] = 1;
+        mcusX = ((scan->width * scan->h[0] + scan->hmax - 1) / scan->hmax + 7) / 8;
+        mcusY = ((scan->height * scan->v[0] + scan->vmax - 1) / scan->vmax + 7) / 8;
+    } else {
+        for (c = 0; c < scan->components; c++) blocks[c] = scan->h[c] * scan->v[c];
+        mcusX = (scan->width + 8 * scan->hmax - 1) / (8 * scan->hmax);
+        mcusY = (scan->height + 8 * scan->vmax - 1) / (8 * scan->vmax);
+    }
+    total = (long) mcusX * mcusY;
+    for (mcu = 0; mcu < total; mcu++) {
+        if (scan->interval > 0 && mcu > 0 && mcu % scan->interval == 0) {
+            /* The rest of the segment is padding; the next one starts after the RSTn marker. */
+            while (reader.pos + 1 < size && !(buf[reader.pos] == 0xFF && (buf[reader.pos + 1] & 0xF8) == 0xD0))
+                reader.pos++;
+            if (reader.pos + 1 >= size) return -1;
+            reader.pos += 2;
+            reader.acc = 0;
+            reader.bits = 0;
+            reader.marker = false;
+            if (writer) {
+                flushBits(writer);
+                putByte(writer, 0xFF);
+                putByte(writer, (unsigned char) (0xD0 + restarts % 8));
+            }
+            restarts++;
+        }
+        for (c = 0; c < scan->components; c++) {
+            hufftable *dc = &tables[scan->dcTable[c]], *ac = &tables[4 + scan->acTable[c]];
+            for (b = 0; b < blocks[c]; b++) {
+                if (transcodeBlock(&reader, dc, ac, &counts[scan->dcTable[c] * 257],
+                                   &counts[(4 + scan->acTable[c]) * 257], writer,
+                                   writer ? &outTables[scan->dcTable[c]] : nullptr,
+                                   writer ? &outTables[4 + scan->acTable[c]] : nullptr) < 0)
+                    return -1;
+            }
+        }
     }
+    if (writer) flushBits(writer);
+    while (reader.pos + 1 < size &&
+           !(buf[reader.pos] == 0xFF && buf[reader.pos + 1] != 0 && buf[reader.pos + 1] != 0xFF &&
+             (buf[reader.pos + 1] & 0xF8) != 0xD0))
+        reader.pos++;
+    *end = reader.pos;
+    return 0;
+}
 
-    if (tjDecompressHeader3(tjInstance, jpegBuf, jpegSize, &width, &height, &inSubsamp, &inColorspace) < 0) {
-        THROW_TJ("reading JPEG header", thumbout);
+/* Read the headers up to the first SOS.  Only 8-bit baseline and extended sequential Huffman images are
+   supported.  Tables are indexed by class * 4 + slot. */
+static int parseScan(const unsigned char *buf, unsigned long size, hufftable *tables, scaninfo *scan) {
+    unsigned long pos = 2, len, end;
+    int ids[4], h[4], v[4], numComponents = 0, marker, i, j, n, count;
+
+    memset(scan, 0, sizeof(scaninfo));
+    if (size < 4 || buf[0] != 0xFF || buf[1] != 0xD8) return -1;
+    while (pos + 4 <= size) {
+        if (buf[pos] != 0xFF) return -1;
+        if ((marker = buf[pos + 1]) == 0xFF) {
+            pos++;
+            continue;
+        }
+        len = (unsigned long) (buf[pos + 2] << 8 | buf[pos + 3]);
+        if (len < 2 || pos + 2 + len > size) return -1;
+        end = pos + 2 + len;
+        const unsigned char *p = buf + pos + 4;
+        switch (marker) {
+            case 0xC0:
+            case 0xC1:
+                if (p[0] != 8 || (numComponents = p[5]) < 1 || numComponents > 4 ||
+                    len != 8 + 3 * (unsigned long) numComponents)
+                    return -1;
+                scan->height = p[1] << 8 | p[2];
+                scan->width = p[3] << 8 | p[4];
+                for (i = 0; i < numComponents; i++) {
+                    ids[i] = p[6 + 3 * i];
+                    h[i] = p[7 + 3 * i] >> 4;
+                    v[i] = p[7 + 3 * i] & 15;
+                    if (h[i] < 1 || h[i] > 4 || v[i] < 1 || v[i] > 4) return -1;
+                    scan->hmax = std::max(scan->hmax, h[i]);
+                    scan->vmax = std::max(scan->vmax, v[i]);
+                }
+                break;
+            case 0xC4:
+                while (p < buf + end) {
+                    if (p + 17 > buf + end || (p[0] >> 4) > 1 || (p[0] & 15) > 3) return -1;
+                    hufftable *table = &tables[(p[0] >> 4) * 4 + (p[0] & 15)];
+                    for (i = 1, count = 0; i <= 16; i++) count += table->bits[i] = p[i];
+                    if (count > 256 || p + 17 + count > buf + end) return -1;
+                    memcpy(table->huffval, p + 17, (size_t) count);
+                    if (deriveTable(table) < 0) return -1;
+                    table->defined = true;
+                    p += 17 + count;
+                }
+                break;
+            case 0xDD:
+                if (len != 4) return -1;
+                scan->interval = p[0] << 8 | p[1];
+                break;
+            case 0xDA:
+                if (numComponents == 0 || (n = p[0]) < 1 || n > numComponents || len != 6 + 2 * (unsigned long) n ||
+                    p[1 + 2 * n] != 0 || p[2 + 2 * n] != 63 || p[3 + 2 * n] != 0)
+                    return -1;
+                scan->components = n;
+                for (i = 0; i < n; i++) {
+                    for (j = 0; j < numComponents && ids[j] != p[1 + 2 * i]; j++);
+                    if (j == numComponents) return -1;
+                    scan->h[i] = h[j];
+                    scan->v[i] = v[j];
+                    scan->dcTable[i] = p[2 + 2 * i] >> 4;
+                    scan->acTable[i] = p[2 + 2 * i] & 15;
+                    if (scan->dcTable[i] > 3 || scan->acTable[i] > 3 || !tables[scan->dcTable[i]].defined ||
+                        !tables[4 + scan->acTable[i]].defined)
+                        return -1;
+                }
+                scan->sosPos = pos;
+                scan->dataPos = end;
+                return 0;
+            default:
+                /* Progressive, lossless, arithmetic and 12-bit images are left alone. */
+                if (marker >= 0xC2 && marker <= 0xCF) return -1;
+                break;
+        }
+        pos = end;
     }
-    printf("Input Image:  %d x %d pixels, %s subsampling, %s colorspace, %ld byte\n", width, height, subsampName[inSubsamp],
-           colorspaceName[inColorspace], jpegSize);
+    return -1;
+}
 
-    if ((imgBuf = tjAlloc(width * height * tjPixelSize[TJPF_BGRX])) == nullptr) {
-        THROW_UNIX("allocating uncompressed image buffer", thumbout);
+/* Re-encode src with optimal Huffman tables into dst.  Fails without touching the input if the image is not a
+   single-scan baseline image or the output does not fit in dstCapacity. */
+static int optimizeHuffman(const unsigned char *src, unsigned long srcSize, unsigned char *dst,
+                           unsigned long dstCapacity, unsigned long *dstSize) {
+    std::vector<hufftable> tables(8), outTables(8);
+    std::vector<long long> counts(8 * 257);
+    scaninfo scan;
+    bitwriter writer;
+    unsigned long pos = 2, len, end, dhtLen = 2;
+    int i, j;
+
+    for (i = 0; i < 8; i++) tables[i].defined = false;
+    if (parseScan(src, srcSize, tables.data(), &scan) < 0) return -1;
+    if (transcodeScan(src, srcSize, &scan, tables.data(), counts.data(), nullptr, nullptr, &end) < 0) return -1;
+    if (end + 2 > srcSize || src[end + 1] != 0xD9) return -1;
+    for (i = 0; i < 8; i++) {
+        outTables[i].defined = false;
+        for (j = 0; j < scan.components && scan.dcTable[j] != i && 4 + scan.acTable[j] != i; j++);
+        if (j == scan.components) continue;
+        /* A table that is referenced but never used still needs one code. */
+        if (std::all_of(&counts[i * 257], &counts[i * 257] + 256, [](long long n) { return n == 0; }))
+            counts[i * 257] = 1;
+        genOptimalTable(&counts[i * 257], &outTables[i]);
+        if (deriveTable(&outTables[i]) < 0) return -1;
+        for (j = 1; j <= 16; j++) dhtLen += outTables[i].bits[j];
+        dhtLen += 17;
     }
 
-    if (tjDecompress2(tjInstance, jpegBuf, jpegSize, imgBuf, width, 0, height, TJPF_BGRX, 0) < 0) {
-        THROW_TJ("decompressing JPEG image", thumbout);
+    memset(&writer, 0, sizeof(bitwriter));
+    writer.buf = dst;
+    writer.capacity = dstCapacity;
+    /* The headers without the old DHT segments, then the new tables right before SOS. */
+    putByte(&writer, 0xFF);
+    putByte(&writer, 0xD8);
+    while (pos < scan.sosPos) {
+        if (src[pos + 1] == 0xFF) {
+            pos++;
+            continue;
+        }
+        len = 2 + (unsigned long) (src[pos + 2] << 8 | src[pos + 3]);
+        if (src[pos + 1] != 0xC4)
+            for (i = 0; i < (int) len; i++) putByte(&writer, src[pos + i]);
+        pos += len;
     }
+    putByte(&writer, 0xFF);
+    putByte(&writer, 0xC4);
+    putByte(&writer, (unsigned char) (dhtLen >> 8));
+    putByte(&writer, (unsigned char) (dhtLen & 0xFF));
+    for (i = 0; i < 8; i++) {
+        int count = 0;
+        if (!outTables[i].defined) continue;
+        putByte(&writer, (unsigned char) ((i / 4) << 4 | i % 4));
+        for (j = 1; j <= 16; j++) {
+            putByte(&writer, outTables[i].bits[j]);
+            count += outTables[i].bits[j];
+        }
+        for (j = 0; j < count; j++) putByte(&writer, outTables[i].huffval[j]);
+    }
+    for (pos = scan.sosPos; pos < scan.dataPos; pos++) putByte(&writer, src[pos]);
+    if (transcodeScan(src, srcSize, &scan, tables.data(), counts.data(), &writer, outTables.data(), &end) < 0)
+        return -1;
+    for (pos = end; pos < srcSize; pos++) putByte(&writer, src[pos]);
+    if (writer.pos > dstCapacity) return -1;
+    *dstSize = writer.pos;
+    return 0;
+}
 
-    tjDestroy(tjInstance);
-    tjInstance = nullptr;
-    jpegSize_out = jpegSize;
+/* Replace a compressed image with its Huffman-optimized version.  This is best effort: if the image cannot be
+   optimized, it is kept as it is. */
+static void optimizeOutput(unsigned char **jpegBuf, unsigned long *jpegSize, unsigned long *capacity) {
+    unsigned char *optBuf;
+    unsigned long optCapacity, optSize;
+    if ((optBuf = acquireBuffer(*jpegSize + 2048, &optCapacity)) == nullptr) return;
+    if (optimizeHuffman(*jpegBuf, *jpegSize, optBuf, optCapacity, &optSize) < 0 || optSize >= *jpegSize) {
+        releaseBuffer(optBuf, optCapacity);
+        return;
+    }
+    releaseBuffer(*jpegBuf, *capacity);
+    *jpegBuf = optBuf;
+    *jpegSize = optSize;
+    *capacity = optCapacity;
+}
 
-    do {
-        tjFree(jpegBuf_out);
-        jpegBuf_out = nullptr;
+/* TurboJPEG flags for the OUTPUT_* options.  Progressive images always get optimized tables from libjpeg. */
+static int outputFlags(int options) {
+    return (options & OUTPUT_PROGRESSIVE) ? TJFLAG_PROGRESSIVE : 0;
+}
 
-        printf("Output Image :  %d x %d pixels", width, height);
+/* Whether a baseline image still has to be re-encoded by optimizeOutput. */
+static bool needsOptimize(int options) {
+    return (options & OUTPUT_OPTIMIZE) && !(options & OUTPUT_PROGRESSIVE);
+}
 
-        /* Output image format is JPEG.  Compress the uncompressed image. */
-        unsigned long scale = jpegSize_out/maxSize;
-        if(scale > 5) scale = 5;
-        quality -= (10*(int)scale);
-        printf(", %s subsampling, quality = %d\n", subsampName[inSubsamp], quality);
+enum {
+    SUBSAMP_DEFAULT, SUBSAMP_AUTO, SUBSAMP_444, SUBSAMP_GRAY
+};
 
-        if ((tjInstance = tjInitCompress()) == nullptr) {
-            THROW_TJ("initializing compressor", thumbout);
+static bool autoSubsamp(int options) {
+    return ((options & OUTPUT_SUBSAMP_MASK) >> OUTPUT_SUBSAMP_SHIFT) == SUBSAMP_AUTO;
+}
+
+/* The subsampling fixed by options: 4:4:4 or grayscale if requested, 4:2:0 otherwise.  A grayscale source
+   stays grayscale, since there is no chroma to keep. */
+static int requestedSubsamp(int options, int sourceSubsamp) {
+    if (sourceSubsamp == TJSAMP_GRAY) return TJSAMP_GRAY;
+    switch ((options & OUTPUT_SUBSAMP_MASK) >> OUTPUT_SUBSAMP_SHIFT) {
+        case SUBSAMP_444:
+            return TJSAMP_444;
+        case SUBSAMP_GRAY:
+            return TJSAMP_GRAY;
+        default:
+            return DEFAULT_BITMAP_SUBSAMP;
+    }
+}
+
+/* Counts of the sparse chroma sample taken by the SUBSAMPLING_AUTO analysis. */
+typedef struct {
+    long samples, colored, edges;
+} chromastats;
+
+static void countChroma(chromastats *stats, const int *cb, const int *cr) {
+    stats->samples++;
+    if (abs(cb[0]) > GRAY_CHROMA || abs(cr[0]) > GRAY_CHROMA) stats->colored++;
+    if (abs(cb[0] - cb[1]) + abs(cr[0] - cr[1]) > CHROMA_EDGE ||
+        abs(cb[0] - cb[2]) + abs(cr[0] - cr[2]) > CHROMA_EDGE)
+        stats->edges++;
+}
+
+/* Grayscale if at most 0.1% of the samples are colored (scans and black-on-white text), 4:4:4 if at least 0.5%
+   sit on sharp chroma edges that 4:2:0 would smear (colored text and UI on screenshots), 4:2:0 otherwise
+   (photos, whose chroma is smooth). */
+static int classifyChroma(const chromastats *stats, bool allow444) {
+    if (stats->samples == 0) return DEFAULT_BITMAP_SUBSAMP;
+    if (stats->colored * 1000 <= stats->samples) return TJSAMP_GRAY;
+    if (allow444 && stats->edges * 200 >= stats->samples) return TJSAMP_444;
+    return DEFAULT_BITMAP_SUBSAMP;
+}
+
+/* Pick the subsampling of packed pixels from about SUBSAMP_SAMPLE_ROWS x SUBSAMP_SAMPLE_COLUMNS samples, each
+   compared with its right and lower neighbors.  Chroma uses the JPEG (full-range BT.601) weights. */
+static int pixelsSubsamp(const unsigned char *srcBuf, int pitch, int pixelFormat, int width, int height) {
+    int ps = tjPixelSize[pixelFormat], r = tjRedOffset[pixelFormat], g = tjGreenOffset[pixelFormat];
+    int b = tjBlueOffset[pixelFormat], stepX = std::max(1, width / SUBSAMP_SAMPLE_COLUMNS);
+    int stepY = std::max(1, height / SUBSAMP_SAMPLE_ROWS), x, y, i, cb[3], cr[3];
+    chromastats stats = {0, 0, 0};
+
+    for (y = 0; y + 1 < height; y += stepY) {
+        const unsigned char *row = srcBuf + (size_t) y * pitch;
+        for (x = 0; x + 1 < width; x += stepX) {
+            const unsigned char *p[3] = {row + x * ps, row + (x + 1) * ps, row + pitch + x * ps};
+            for (i = 0; i < 3; i++) {
+                cb[i] = (-43 * p[i][r] - 85 * p[i][g] + 128 * p[i][b]) / 256;
+                cr[i] = (128 * p[i][r] - 107 * p[i][g] - 21 * p[i][b]) / 256;
+            }
+            countChroma(&stats, cb, cr);
+        }
+    }
+    return classifyChroma(&stats, true);
+}
+
+/* Stage timings and sizes of the native call that produced a result, reported to Java by resultMetrics.
+   Times are CLOCK_MONOTONIC nanoseconds; pixelBytes is the most memory held in pixel planes at one time;
+   every trial encode of a quality search is recorded with its size; ssim is the score of an SSIM search. */
+typedef struct {
+    long long decodeNanos, scaleNanos, encodeNanos;
+    unsigned long pixelBytes;
+    double ssim;
+    int searches, searchQuality[MAX_SEARCH_ENCODES];
+    unsigned long searchSize[MAX_SEARCH_ENCODES];
+} callmetrics;
+
+/* A compressed image kept on the native heap.  Java holds it as an opaque handle, writes it to its
+   destination with writeResult/copyResult/getResult and releases it with freeResult, which returns pooled
+   buffers (capacity > 0) to the buffer pool. */
+typedef struct {
+    unsigned char *jpegBuf;
+    unsigned long jpegSize, capacity;
+    int width, height, quality, subsamp;
+    callmetrics metrics;
+} jpegresult;
+
+static long long nowNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+static int parallelCompress(const unsigned char *srcBuf, const unsigned char **planes, const int *strides, int width,
+                            int pitch, int height, int pixelFormat, int subsamp, int quality, int flags,
+                            unsigned char **jpegBuf, unsigned long *jpegSize);
+
+/* Compress packed pixels in srcBuf or, if srcBuf is null, YUV planes into *jpegBuf, which holds *jpegSize bytes
+   as with TJFLAG_NOREALLOC.  Large images are compressed in strips on several cores, and with a single
+   TurboJPEG call if that is not possible. */
+static int encodeImage(tjhandle tjInstance, const unsigned char *srcBuf, const unsigned char **planes,
+                       const int *strides, int width, int pitch, int height, int pixelFormat, int subsamp,
+                       int quality, int flags, unsigned char **jpegBuf, unsigned long *jpegSize) {
+    unsigned long capacity = *jpegSize;
+    if (parallelCompress(srcBuf, planes, strides, width, pitch, height, pixelFormat, subsamp, quality, flags,
+                         jpegBuf, jpegSize) == 0)
+        return 0;
+    *jpegSize = capacity;
+    return srcBuf != nullptr
+           ? tjCompress2(tjInstance, srcBuf, width, pitch, height, pixelFormat, jpegBuf, jpegSize, subsamp, quality,
+                         flags | TJFLAG_NOREALLOC)
+           : tjCompressFromYUVPlanes(tjInstance, planes, width, strides, height, subsamp, jpegBuf, jpegSize, quality,
+                                     flags | TJFLAG_NOREALLOC);
+}
+
+/* Encode one trial of a quality search into *buf, which may have been sized from an earlier trial.  A trial that
+   does not fit is encoded again into a buffer of the worst-case size bufSize.  *size receives the image size. */
+static int encodeTrial(tjhandle tjInstance, const unsigned char *srcBuf, const unsigned char **planes,
+                       const int *strides, int width, int pitch, int height, int pixelFormat, int subsamp,
+                       int quality, int flags, unsigned long bufSize, unsigned char **buf, unsigned long *capacity,
+                       unsigned long *size) {
+    *size = *capacity;
+    if (encodeImage(tjInstance, srcBuf, planes, strides, width, pitch, height, pixelFormat, subsamp, quality, flags,
+                    buf, size) == 0)
+        return 0;
+    if (*capacity >= bufSize) return -1;
+    TRACE("Trial quality = %d does not fit in %ld byte\n", quality, *capacity);
+    if (reserveBuffer(buf, capacity, bufSize) < 0) return -1;
+    *size = *capacity;
+    return encodeImage(tjInstance, srcBuf, planes, strides, width, pitch, height, pixelFormat, subsamp, quality,
+                       flags, buf, size);
+}
+
+/* The buffer size for the trials after the first one of searchCompress, which has the highest quality.  A lower
+   quality is rarely larger, and a trial that still does not fit is encoded again by encodeTrial. */
+static unsigned long searchHeadroom(unsigned long firstSize, unsigned long bufSize) {
+    return std::min(bufSize, firstSize + firstSize / 8 + SEARCH_HEADROOM);
+}
+
+/* Find the highest quality whose JPEG fits in maxSize by bisecting the quality range, starting at 100.
+   Only the first trial is encoded into a worst-case sized buffer from the pool.  It is then moved into a
+   buffer sized by searchHeadroom, and the later trials alternate between two buffers of that size, so a
+   search holds about twice its largest output instead of two or three worst-case buffers.  The search costs
+   at most MAX_SEARCH_ENCODES encodes.  The source is either packed pixels in srcBuf or, if srcBuf is
+   null, YUV planes with the given strides.  The buffer holding the chosen image is returned with its
+   capacity and must be given back with releaseBuffer().  If no quality fits, the smallest image that was
+   produced is returned.  Every trial is recorded in metrics.  If optimize is set, each trial is encoded into
+   a third buffer, sized in the same way, and re-encoded with optimized Huffman tables before its size is
+   compared, so the search sees the size that is actually written.  The search stops before the next trial
+   once cancel is set. */
+int searchCompress(tjhandle tjInstance, const unsigned char *srcBuf, const unsigned char **planes, const int *strides,
+                   int width, int pitch, int height,
+                   int pixelFormat, int subsamp, int flags, bool optimize, unsigned long maxSize,
+                   unsigned char **jpegBuf, unsigned long *jpegSize, unsigned long *capacity, int *quality,
+                   callmetrics *metrics, const volatile int *cancel) {
+    int retval = 0, lo = 1, hi = 100, q = 100, encodes = 0, bestQuality = -1, tryIndex = 0;
+    bool fits = false;
+    unsigned long bufSize, trialSize, trySize = 0, rawSize = 0, bestSize = 0, bufCapacity[2] = {0, 0};
+    unsigned long rawCapacity = 0;
+    unsigned char *searchBuf[2] = {nullptr, nullptr}, *rawBuf = nullptr;
+
+    if ((bufSize = tjBufSize(width, height, subsamp)) == (unsigned long) -1) {
+        THROW("computing buffer size", tjGetErrorStr2(nullptr), searchout);
+    }
+    trialSize = bufSize;
+
+    while (lo <= hi && encodes < MAX_SEARCH_ENCODES) {
+        if (CANCELLED(cancel)) CANCEL(searchout);
+        if (reserveBuffer(optimize ? &rawBuf : &searchBuf[tryIndex], optimize ? &rawCapacity : &bufCapacity[tryIndex],
+                          trialSize) < 0) {
+            THROW_UNIX("allocating JPEG buffer", searchout);
+        }
+        if (encodeTrial(tjInstance, srcBuf, planes, strides, width, pitch, height, pixelFormat, subsamp, q, flags,
+                        bufSize, optimize ? &rawBuf : &searchBuf[tryIndex],
+                        optimize ? &rawCapacity : &bufCapacity[tryIndex], optimize ? &rawSize : &trySize) < 0) {
+            THROW_TJ("compressing image", searchout);
+        }
+        if (optimize) {
+            if (reserveBuffer(&searchBuf[tryIndex], &bufCapacity[tryIndex], rawSize + SEARCH_HEADROOM) < 0) {
+                THROW_UNIX("allocating JPEG buffer", searchout);
+            }
+            /* Keep the TurboJPEG tables if the image cannot be optimized. */
+            if (optimizeHuffman(rawBuf, rawSize, searchBuf[tryIndex], bufCapacity[tryIndex], &trySize) < 0 ||
+                trySize >= rawSize) {
+                memcpy(searchBuf[tryIndex], rawBuf, rawSize);
+                trySize = rawSize;
+            }
+        }
+        if (encodes++ == 0) {
+            /* Size the buffers of the later, lower qualities from the first trial. */
+            trialSize = searchHeadroom(optimize ? rawSize : trySize, bufSize);
+            if (optimize)
+                shrinkBuffer(&rawBuf, &rawCapacity, 0, trialSize);
+            else
+                shrinkBuffer(&searchBuf[tryIndex], &bufCapacity[tryIndex], trySize, trialSize);
+        }
+        metrics->searchQuality[metrics->searches] = q;
+        metrics->searchSize[metrics->searches++] = trySize;
+        TRACE("Search quality = %d, %ld byte\n", q, trySize);
+        if (trySize <= maxSize ? !fits || q > bestQuality : !fits && (bestSize == 0 || trySize < bestSize)) {
+            /* Keep this image and encode the next trial into the other buffer. */
+            tryIndex = 1 - tryIndex;
+            bestSize = trySize;
+            bestQuality = q;
+        }
+        if (trySize <= maxSize) {
+            fits = true;
+            if ((double) trySize >= (double) maxSize * SEARCH_TOLERANCE) break;
+            lo = q + 1;
+        } else {
+            hi = q - 1;
         }
+        q = (lo + hi) / 2;
+    }
+
+    /* The best image is in the buffer that was not used for the next trial. */
+    *jpegBuf = searchBuf[1 - tryIndex];
+    *capacity = bufCapacity[1 - tryIndex];
+    *jpegSize = bestSize;
+    *quality = bestQuality;
+    searchBuf[1 - tryIndex] = nullptr;
+
+    labsearchout:
+    releaseBuffer(searchBuf[0], bufCapacity[0]);
+    releaseBuffer(searchBuf[1], bufCapacity[1]);
+    releaseBuffer(rawBuf, rawCapacity);
+    return retval;
+}
 
-        if (tjCompress2(tjInstance, imgBuf, width, 0, height, TJPF_BGRX, &jpegBuf_out, &jpegSize_out, inSubsamp,
-                        quality, 0) < 0) {
-            THROW_TJ("compressing image", thumbout);
+/* Box-average the luma of an image into a plane that is factor times smaller in each direction.  The source
+   is either packed pixels, converted with the JPEG (full-range BT.601) luma weights, or a Y plane if
+   pixelFormat is TJPF_GRAY. */
+static void downsampleLuma(const unsigned char *src, int pitch, int pixelFormat, int width, int height, int factor,
+                           unsigned char *dst) {
+    int dw = std::max(1, width / factor), dh = std::max(1, height / factor), fw = std::min(factor, width),
+        fh = std::min(factor, height), ps = tjPixelSize[pixelFormat], x, y, i, j;
+    bool gray = pixelFormat == TJPF_GRAY;
+    int r = gray ? 0 : tjRedOffset[pixelFormat], g = gray ? 0 : tjGreenOffset[pixelFormat],
+        b = gray ? 0 : tjBlueOffset[pixelFormat];
+    unsigned long sum, n = (unsigned long) fw * fh;
+    for (y = 0; y < dh; y++) {
+        for (x = 0; x < dw; x++) {
+            sum = 0;
+            for (j = 0; j < fh; j++) {
+                const unsigned char *p = src + (size_t) (y * factor + j) * pitch + (size_t) x * factor * ps;
+                for (i = 0; i < fw; i++, p += ps)
+                    sum += gray ? p[0] : (19595 * p[r] + 38470 * p[g] + 7471 * p[b] + 32768) >> 16;
+            }
+            dst[(size_t) y * dw + x] = (unsigned char) ((sum + n / 2) / n);
         }
+    }
+}
 
-    } while (jpegSize_out > maxSize && maxSize > 0);
+/* Mean SSIM of two planes over 8 x 8 windows placed every 4 samples, with the constants of Wang et al. */
+static double planeSsim(const unsigned char *a, const unsigned char *b, int width, int height) {
+    const double c1 = (0.01 * 255) * (0.01 * 255), c2 = (0.03 * 255) * (0.03 * 255);
+    int ww = std::min(8, width), wh = std::min(8, height), x, y, i, j, windows = 0;
+    double total = 0, n = ww * wh;
+    for (y = 0; y + wh <= height; y += 4) {
+        for (x = 0; x + ww <= width; x += 4) {
+            long long sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+            for (j = 0; j < wh; j++) {
+                const unsigned char *pa = a + (size_t) (y + j) * width + x, *pb = b + (size_t) (y + j) * width + x;
+                for (i = 0; i < ww; i++) {
+                    sa += pa[i];
+                    sb += pb[i];
+                    saa += pa[i] * pa[i];
+                    sbb += pb[i] * pb[i];
+                    sab += pa[i] * pb[i];
+                }
+            }
+            double ma = sa / n, mb = sb / n, va = saa / n - ma * ma, vb = sbb / n - mb * mb, cov = sab / n - ma * mb;
+            total += (2 * ma * mb + c1) * (2 * cov + c2) / ((ma * ma + mb * mb + c1) * (va + vb + c2));
+            windows++;
+        }
+    }
+    return windows > 0 ? total / windows : 1.0;
+}
 
-    /* Write the JPEG image to disk. */
-    if (fwrite(jpegBuf_out, jpegSize_out, 1, jpegFile) < 1) {
-        THROW_UNIX("writing output file", thumbout);
+/* Find the lowest quality whose JPEG still has an SSIM of at least target against the source by bisecting the
+   quality range, starting at SSIM_START_QUALITY.  Every trial is decoded back to YUV planes and its luma is
+   compared with the luma of the source, both box-averaged to about SSIM_VIEW_SIZE on the short side, the size
+   a phone screen shows.  The usual min(width, height) / 256 factor of SSIM would average away the 8 x 8 block
+   artifacts of low qualities on camera images.  The search is
+   bounded to SSIM_SEARCH_ENCODES encodes and alternates between two worst-case sized buffers from the pool,
+   since the trials after the first one may have a higher quality.
+   If no quality reaches the target, the image with the highest score is returned.  The score of the chosen
+   image is stored in score. */
+int ssimCompress(tjhandle tjInstance, const unsigned char *srcBuf, const unsigned char **planes, const int *strides,
+                 int width, int pitch, int height, int pixelFormat, int subsamp, int flags, double target,
+                 unsigned char **jpegBuf, unsigned long *jpegSize, unsigned long *capacity, int *quality,
+                 double *score, callmetrics *metrics, const volatile int *cancel) {
+    int retval = 0, lo = 1, hi = 100, q = SSIM_START_QUALITY, encodes = 0, bestQuality = -1, tryIndex = 0, i;
+    int factor = std::max(1, (int) ((double) std::min(width, height) / SSIM_VIEW_SIZE + 0.5));
+    int dw = std::max(1, width / factor), dh = std::max(1, height / factor), yuvStrides[3];
+    bool met = false;
+    double s, bestScore = -1;
+    unsigned long bufSize, yuvSize = 0, trySize, bestSize = 0, bufCapacity[2] = {0, 0}, yuvCapacity = 0;
+    unsigned char *searchBuf[2] = {nullptr, nullptr}, *yuvBuf = nullptr, *yuvPlanes[3];
+    std::vector<unsigned char> reference((size_t) dw * dh), decoded((size_t) dw * dh);
+    tjhandle decompressor = nullptr;
+
+    if ((bufSize = tjBufSize(width, height, subsamp)) == (unsigned long) -1) {
+        THROW("computing buffer size", tjGetErrorStr2(nullptr), ssimout);
+    }
+    for (i = 0; i < (subsamp == TJSAMP_GRAY ? 1 : 3); i++) {
+        yuvStrides[i] = tjPlaneWidth(i, width, subsamp);
+        yuvSize += tjPlaneSizeYUV(i, width, 0, height, subsamp);
+    }
+    if ((searchBuf[0] = acquireBuffer(bufSize, &bufCapacity[0])) == nullptr ||
+        (searchBuf[1] = acquireBuffer(bufSize, &bufCapacity[1])) == nullptr ||
+        (yuvBuf = acquireBuffer(yuvSize, &yuvCapacity)) == nullptr) {
+        THROW_UNIX("allocating JPEG buffer", ssimout);
+    }
+    yuvPlanes[0] = yuvBuf;
+    yuvPlanes[1] = yuvPlanes[0] + tjPlaneSizeYUV(0, width, 0, height, subsamp);
+    yuvPlanes[2] = yuvPlanes[1] + (subsamp == TJSAMP_GRAY ? 0 : tjPlaneSizeYUV(1, width, 0, height, subsamp));
+    metrics->pixelBytes += yuvCapacity;
+    if ((decompressor = getDecompressor()) == nullptr) {
+        THROW_TJ("initializing decompressor", ssimout);
+    }
+    if (srcBuf != nullptr)
+        downsampleLuma(srcBuf, pitch > 0 ? pitch : width * tjPixelSize[pixelFormat], pixelFormat, width, height,
+                       factor, reference.data());
+    else
+        downsampleLuma(planes[0], strides != nullptr && strides[0] > 0 ? strides[0] : tjPlaneWidth(0, width, subsamp),
+                       TJPF_GRAY, width, height, factor, reference.data());
+
+    while (lo <= hi && encodes < SSIM_SEARCH_ENCODES) {
+        if (CANCELLED(cancel)) CANCEL(ssimout);
+        trySize = bufCapacity[tryIndex];
+        if (encodeImage(tjInstance, srcBuf, planes, strides, width, pitch, height, pixelFormat, subsamp, q, flags,
+                        &searchBuf[tryIndex], &trySize) < 0) {
+            THROW_TJ("compressing image", ssimout);
+        }
+        if (tjDecompressToYUVPlanes(decompressor, searchBuf[tryIndex], trySize, yuvPlanes, width, yuvStrides,
+                                    height, 0) < 0) {
+            THROW("decompressing trial image", tjGetErrorStr2(decompressor), ssimout);
+        }
+        downsampleLuma(yuvPlanes[0], yuvStrides[0], TJPF_GRAY, width, height, factor, decoded.data());
+        s = planeSsim(reference.data(), decoded.data(), dw, dh);
+        encodes++;
+        metrics->searchQuality[metrics->searches] = q;
+        metrics->searchSize[metrics->searches++] = trySize;
+        TRACE("SSIM search quality = %d, %ld byte, SSIM = %.4f\n", q, trySize, s);
+        if (s >= target ? !met || q < bestQuality : !met && s > bestScore) {
+            /* Keep this image and encode the next trial into the other buffer. */
+            tryIndex = 1 - tryIndex;
+            bestSize = trySize;
+            bestQuality = q;
+            bestScore = s;
+        }
+        if (s >= target) {
+            met = true;
+            hi = q - 1;
+        } else {
+            lo = q + 1;
+        }
+        q = (lo + hi) / 2;
     }
 
-    tjDestroy(tjInstance);
-    tjInstance = nullptr;
-    fclose(jpegFile);
-    jpegFile = nullptr;
-    tjFree(jpegBuf_out);
-    jpegBuf_out = nullptr;
+    *jpegBuf = searchBuf[1 - tryIndex];
+    *capacity = bufCapacity[1 - tryIndex];
+    *jpegSize = bestSize;
+    *quality = bestQuality;
+    *score = bestScore;
+    searchBuf[1 - tryIndex] = nullptr;
+
+    labssimout:
+    releaseBuffer(searchBuf[0], bufCapacity[0]);
+    releaseBuffer(searchBuf[1], bufCapacity[1]);
+    releaseBuffer(yuvBuf, yuvCapacity);
+    return retval;
+}
 
-    labthumbout:
-    if (imgBuf) tjFree(imgBuf);
-    if (tjInstance) tjDestroy(tjInstance);
-    if (jpegBuf_out) tjFree(jpegBuf_out);
-    if (jpegFile) fclose(jpegFile);
+/* Compress the pixels of an ARGB_8888 bitmap into a JPEG image in memory, with the subsampling chosen by
+   options. */
+int bitmapCompress(JNIEnv *env, jobject bitmap, int quality, unsigned long maxSize, double ssim, int options,
+                   const volatile int *cancel, jpegresult *result) {
+    int retval = 0, subsamp;
+    unsigned long bufSize;
+    long long start = nowNanos();
+    AndroidBitmapInfo info;
+    unsigned char *pixels = nullptr;
+    tjhandle tjInstance = nullptr;
+
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0) {
+        THROW("reading bitmap info", "AndroidBitmap_getInfo failed", bitmapout);
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        THROW("reading bitmap info", "Bitmap config must be ARGB_8888", bitmapout);
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, (void **) &pixels) < 0) {
+        THROW("locking bitmap pixels", "AndroidBitmap_lockPixels failed", bitmapout);
+    }
+    TRACE("Input Bitmap:  %d x %d pixels, stride %d\n", info.width, info.height, info.stride);
+
+    if ((tjInstance = getCompressor()) == nullptr) {
+        THROW_TJ("initializing compressor", bitmapout);
+    }
+
+    /* ARGB_8888 bitmaps are laid out as R, G, B, A bytes in memory. */
+    subsamp = autoSubsamp(options) ? pixelsSubsamp(pixels, (int) info.stride, TJPF_RGBX, (int) info.width,
+                                                   (int) info.height) : requestedSubsamp(options, -1);
+    if (maxSize > 0) {
+        if (searchCompress(tjInstance, pixels, nullptr, nullptr, (int) info.width, (int) info.stride,
+                           (int) info.height, TJPF_RGBX, subsamp, outputFlags(options),
+                           needsOptimize(options), maxSize, &result->jpegBuf,
+                           &result->jpegSize, &result->capacity, &quality, &result->metrics, cancel) < 0) {
+            if (CANCELLED(cancel)) CANCEL(bitmapout);
+            THROW("compressing image", "quality search failed", bitmapout);
+        }
+    } else if (ssim > 0) {
+        if (ssimCompress(tjInstance, pixels, nullptr, nullptr, (int) info.width, (int) info.stride, (int) info.height,
+                         TJPF_RGBX, subsamp, outputFlags(options), ssim, &result->jpegBuf,
+                         &result->jpegSize, &result->capacity, &quality, &result->metrics.ssim, &result->metrics,
+                         cancel) < 0) {
+            if (CANCELLED(cancel)) CANCEL(bitmapout);
+            THROW("compressing image", "SSIM search failed", bitmapout);
+        }
+        if (needsOptimize(options)) optimizeOutput(&result->jpegBuf, &result->jpegSize, &result->capacity);
+    } else {
+        if ((bufSize = tjBufSize((int) info.width, (int) info.height, subsamp)) == (unsigned long) -1) {
+            THROW("computing buffer size", tjGetErrorStr2(nullptr), bitmapout);
+        }
+        if ((result->jpegBuf = acquireBuffer(bufSize, &result->capacity)) == nullptr) {
+            THROW_UNIX("allocating JPEG buffer", bitmapout);
+        }
+        result->jpegSize = result->capacity;
+        if (encodeImage(tjInstance, pixels, nullptr, nullptr, (int) info.width, (int) info.stride, (int) info.height,
+                        TJPF_RGBX, subsamp, quality, outputFlags(options), &result->jpegBuf,
+                        &result->jpegSize) < 0) {
+            THROW_TJ("compressing image", bitmapout);
+        }
+        if (needsOptimize(options)) optimizeOutput(&result->jpegBuf, &result->jpegSize, &result->capacity);
+    }
+    TRACE("Output Image :  %d x %d pixels, %s subsampling, quality = %d, %ld byte\n", info.width, info.height,
+           subsampName[subsamp], quality, result->jpegSize);
+    result->metrics.encodeNanos = nowNanos() - start;
+    result->width = (int) info.width;
+    result->height = (int) info.height;
+    result->quality = quality;
+    result->subsamp = subsamp;
+
+    labbitmapout:
+    if (pixels) AndroidBitmap_unlockPixels(env, bitmap);
     return retval;
 }
 
+/* Decompress a JPEG image into the pixels of an ARGB_8888 bitmap.  If the bitmap is smaller than the image,
+   the largest TurboJPEG scaling factor that fits within the bitmap is used. */
+int bitmapDecompress(JNIEnv *env, const unsigned char *jpegBuf, unsigned long jpegSize, jobject bitmap, int flags) {
+    int retval = 0;
+    AndroidBitmapInfo info;
+    unsigned char *pixels = nullptr;
+    tjhandle tjInstance = nullptr;
 
-extern "C" JNIEXPORT void JNICALL
-Java_com_pglvee_lib_1compress_CompressUtils_compress(JNIEnv *env, jclass clazz,
-                                                          jboolean scale, jint m, jint n, jboolean su, jint subsamp, jboolean q, jint qual, jboolean g,
-                                                          jboolean hflip, jboolean vflip, jboolean transpose, jboolean transverse, jboolean rot90, jboolean rot180, jboolean rot270,
-                                                          jboolean c, jint c_w, jint c_h, jint  c_x, jint  c_y,
-                                                          jboolean fastupsample, jboolean fastdct, jboolean accuratedct,
-                                                          jstring input, jstring output) {
-    const char *src = env->GetStringUTFChars(input, nullptr);
-    const char *dst = env->GetStringUTFChars(output, nullptr);
-    mainCompress(
-            scale, m, n,
-            su, subsamp,
-            q, qual,
-            g,
-            hflip, vflip, transpose, transverse, rot90, rot180, rot270,
-            false,
-            c, c_w, c_h, c_x, c_y,
-            fastupsample, fastdct, accuratedct,
-            src, dst);
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0) {
+        THROW("reading bitmap info", "AndroidBitmap_getInfo failed", decompressout);
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        THROW("reading bitmap info", "Bitmap config must be ARGB_8888", decompressout);
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, (void **) &pixels) < 0) {
+        THROW("locking bitmap pixels", "AndroidBitmap_lockPixels failed", decompressout);
+    }
+    if ((tjInstance = getDecompressor()) == nullptr) {
+        THROW_TJ("initializing decompressor", decompressout);
+    }
+    if (tjDecompress2(tjInstance, jpegBuf, jpegSize, pixels, (int) info.width, (int) info.stride, (int) info.height,
+                      TJPF_RGBA, flags) < 0) {
+        THROW_TJ("decompressing JPEG image", decompressout);
+    }
+    TRACE("Output Bitmap:  %d x %d pixels\n", info.width, info.height);
+
+    labdecompressout:
+    if (pixels) AndroidBitmap_unlockPixels(env, bitmap);
+    return retval;
 }
 
-extern "C" JNIEXPORT void JNICALL
-Java_com_pglvee_lib_1compress_CompressUtils_imageCompress(JNIEnv *env, jclass clazz, jstring in, jstring out,
-                                                               jint quality) {
-    const char *src = env->GetStringUTFChars(in, nullptr);
-    const char *dst = env->GetStringUTFChars(out, nullptr);
-    mainCompress(
-            false, 1, 1,
-            false, 0,
-            true, quality,
-            false,
-            false, false, false, false, false, false, false,
-            false,
-            false, 0, 0, 0, 0,
-            false, false, false,
-            src, dst);
+/* An image held as separate Y, Cb and Cr planes (only Y for grayscale), the layout used by
+   tjCompressFromYUVPlanes and tjDecompressToYUVPlanes.  Chroma samples of camera frames may be interleaved
+   (NV21, semi-planar YUV_420_888), which is described by a pixel stride of 2.  width and height are the real
+   image size; the planes are at least as large as tjPlaneWidth/tjPlaneHeight.  buf is the storage owned by
+   the image, if any. */
+typedef struct {
+    const unsigned char *planes[3];
+    int strides[3], pixelStrides[3];
+    int width, height, subsamp;
+    unsigned char *buf;
+    unsigned long capacity;
+} planarimage;
+
+static int numPlanes(int subsamp) {
+    return subsamp == TJSAMP_GRAY ? 1 : 3;
 }
 
-extern "C" JNIEXPORT void JNICALL
-Java_com_pglvee_lib_1compress_CompressUtils_thumbnailCompress(JNIEnv *env, jclass clazz, jbyteArray in,
-                                                                   jstring out, jlong maxSize) {
-    jbyte *src = env->GetByteArrayElements(in, 0);
-    jsize length = env->GetArrayLength(in);
-    const char *dst = env->GetStringUTFChars(out, nullptr);
-    thumbnailCompress((unsigned char *) src, length, dst, maxSize);
+/* The number of real (unpadded) samples in a row or column of a plane. */
+static int componentSize(int componentID, int size, int mcuSize) {
+    return componentID == 0 ? size : (size * 8 + mcuSize - 1) / mcuSize;
+}
+
+static int allocPlanes(planarimage *image, int width, int height, int subsamp) {
+    unsigned long offsets[3], size = 0;
+    int i;
+    memset(image, 0, sizeof(planarimage));
+    for (i = 0; i < numPlanes(subsamp); i++) {
+        offsets[i] = size;
+        image->strides[i] = tjPlaneWidth(i, width, subsamp);
+        image->pixelStrides[i] = 1;
+        size += tjPlaneSizeYUV(i, width, 0, height, subsamp);
+    }
+    if ((image->buf = acquireBuffer(size, &image->capacity)) == nullptr) return -1;
+    for (i = 0; i < numPlanes(subsamp); i++) image->planes[i] = image->buf + offsets[i];
+    image->width = width;
+    image->height = height;
+    image->subsamp = subsamp;
+    return 0;
+}
+
+static void freePlanes(planarimage *image) {
+    releaseBuffer(image->buf, image->capacity);
+    image->buf = nullptr;
+}
+
+/* Weights of a 1-D resample from srcN to dstN samples.  Each output sample averages the source interval it
+   covers (a box filter), or interpolates linearly between the two nearest samples when enlarging. */
+static int resampleTaps(int srcN, int dstN, std::vector<int> &first, std::vector<int> &count,
+                        std::vector<float> &weights) {
+    double r = (double) srcN / dstN, start, end, x;
+    int maxTaps = (int) r + 2, i, j, n;
+    float *w;
+    first.resize(dstN);
+    count.resize(dstN);
+    weights.assign((size_t) dstN * maxTaps, 0.f);
+    for (i = 0; i < dstN; i++) {
+        w = &weights[(size_t) i * maxTaps];
+        n = 0;
+        if (r >= 1) {
+            start = i * r;
+            end = std::min((double) srcN, (i + 1) * r);
+            first[i] = j = (int) start;
+            for (; j < end && n < maxTaps; j++)
+                w[n++] = (float) ((std::min(j + 1.0, end) - std::max((double) j, start)) / (end - start));
+        } else {
+            x = std::max(0.0, std::min(srcN - 1.0, (i + 0.5) * r - 0.5));
+            first[i] = j = (int) x;
+            w[n++] = (float) (1 - (x - j));
+            if (j + 1 < srcN) w[n++] = (float) (x - j);
+        }
+        count[i] = n;
+    }
+    return maxTaps;
+}
+
+/* Resample one plane, filtering columns into a row buffer first and then rows, so that only one row of
+   intermediate samples is needed. */
+static void resamplePlane(const unsigned char *src, int srcW, int srcH, int srcStride, int srcPixelStride,
+                          unsigned char *dst, int dstW, int dstH, int dstStride) {
+    std::vector<int> xFirst, xCount, yFirst, yCount;
+    std::vector<float> xWeights, yWeights, row((size_t) srcW);
+    const unsigned char *s;
+    const float *w;
+    unsigned char *d;
+    float v;
+    int xTaps, yTaps, x, y, k;
+
+    if (srcW == dstW && srcH == dstH && srcPixelStride == 1) {
+        for (y = 0; y < dstH; y++) memcpy(dst + (size_t) y * dstStride, src + (size_t) y * srcStride, dstW);
+        return;
+    }
+    xTaps = resampleTaps(srcW, dstW, xFirst, xCount, xWeights);
+    yTaps = resampleTaps(srcH, dstH, yFirst, yCount, yWeights);
+    for (y = 0; y < dstH; y++) {
+        std::fill(row.begin(), row.end(), 0.f);
+        w = &yWeights[(size_t) y * yTaps];
+        for (k = 0; k < yCount[y]; k++) {
+            s = src + (size_t) (yFirst[y] + k) * srcStride;
+            for (x = 0; x < srcW; x++) row[x] += w[k] * s[x * srcPixelStride];
+        }
+        d = dst + (size_t) y * dstStride;
+        for (x = 0; x < dstW; x++) {
+            w = &xWeights[(size_t) x * xTaps];
+            v = 0.5f;
+            for (k = 0; k < xCount[x]; k++) v += w[k] * row[xFirst[x] + k];
+            d[x] = (unsigned char) std::min(255.f, std::max(0.f, v));
+        }
+    }
+}
+
+/* Fill the padding of a plane beyond its real size by repeating the last column and row. */
+static void padPlane(unsigned char *plane, int w, int h, int planeW, int planeH, int stride) {
+    int x, y;
+    for (y = 0; y < h; y++)
+        for (x = w; x < planeW; x++) plane[(size_t) y * stride + x] = plane[(size_t) y * stride + w - 1];
+    for (y = h; y < planeH; y++) memcpy(plane + (size_t) y * stride, plane + (size_t) (h - 1) * stride, planeW);
+}
+
+/* Rotate a w x h plane clockwise by 90, 180 or 270 degrees. */
+static void rotatePlane(const unsigned char *src, int w, int h, int srcStride, unsigned char *dst, int dstStride,
+                        int angle) {
+    int x, y;
+    for (y = 0; y < h; y++) {
+        const unsigned char *s = src + (size_t) y * srcStride;
+        for (x = 0; x < w; x++) {
+            if (angle == 90) dst[(size_t) x * dstStride + h - 1 - y] = s[x];
+            else if (angle == 180) dst[(size_t) (h - 1 - y) * dstStride + w - 1 - x] = s[x];
+            else dst[(size_t) (w - 1 - x) * dstStride + y] = s[x];
+        }
+    }
+}
+
+/* Pick the subsampling of YUV planes like pixelsSubsamp, from their chroma planes.  4:4:4 is only chosen if the
+   source has full-resolution chroma, since upsampled chroma has no detail to keep. */
+static int planesSubsamp(const planarimage *src) {
+    int mcuW = tjMCUWidth[src->subsamp], mcuH = tjMCUHeight[src->subsamp], x, y, i, cb[3], cr[3];
+    int w = componentSize(1, src->width, mcuW), h = componentSize(1, src->height, mcuH);
+    int stepX = std::max(1, w / SUBSAMP_SAMPLE_COLUMNS), stepY = std::max(1, h / SUBSAMP_SAMPLE_ROWS);
+    chromastats stats = {0, 0, 0};
+
+    if (src->subsamp == TJSAMP_GRAY) return TJSAMP_GRAY;
+    for (y = 0; y + 1 < h; y += stepY) {
+        const unsigned char *u = src->planes[1] + (size_t) y * src->strides[1];
+        const unsigned char *v = src->planes[2] + (size_t) y * src->strides[2];
+        for (x = 0; x + 1 < w; x += stepX) {
+            size_t ou[3] = {(size_t) x * src->pixelStrides[1], (size_t) (x + 1) * src->pixelStrides[1],
+                            (size_t) x * src->pixelStrides[1] + src->strides[1]};
+            size_t ov[3] = {(size_t) x * src->pixelStrides[2], (size_t) (x + 1) * src->pixelStrides[2],
+                            (size_t) x * src->pixelStrides[2] + src->strides[2]};
+            for (i = 0; i < 3; i++) {
+                cb[i] = u[ou[i]] - 128;
+                cr[i] = v[ov[i]] - 128;
+            }
+            countChroma(&stats, cb, cr);
+        }
+    }
+    return classifyChroma(&stats, src->subsamp == TJSAMP_444);
+}
+
+/* Crop the region c_x, c_y, c_w x c_h (in source pixels) of YUV planes and resample it to outWidth x outHeight
+   planes with outSubsamp subsampling.  A region of zero size is the whole image. */
+static int scalePlanes(const planarimage *src, int c_x, int c_y, int c_w, int c_h, int outWidth, int outHeight,
+                       int outSubsamp, planarimage *dst) {
+    int retval = 0, i;
+    int srcMcuW = tjMCUWidth[src->subsamp], srcMcuH = tjMCUHeight[src->subsamp];
+    int outMcuW = tjMCUWidth[outSubsamp], outMcuH = tjMCUHeight[outSubsamp], w, h;
+
+    if (c_w <= 0 || c_h <= 0) {
+        c_x = c_y = 0;
+        c_w = src->width;
+        c_h = src->height;
+    }
+    if (allocPlanes(dst, outWidth, outHeight, outSubsamp) < 0) {
+        THROW_UNIX("allocating YUV planes", scaleplanesout);
+    }
+    for (i = 0; i < numPlanes(outSubsamp); i++) {
+        /* The crop region scaled to this plane of the source. */
+        int px = componentSize(i, c_x, srcMcuW), py = componentSize(i, c_y, srcMcuH);
+        w = componentSize(i, outWidth, outMcuW);
+        h = componentSize(i, outHeight, outMcuH);
+        int pw = std::min(componentSize(i, c_w, srcMcuW), componentSize(i, src->width, srcMcuW) - px);
+        int ph = std::min(componentSize(i, c_h, srcMcuH), componentSize(i, src->height, srcMcuH) - py);
+        resamplePlane(src->planes[i] + (size_t) py * src->strides[i] + (size_t) px * src->pixelStrides[i],
+                      std::max(1, pw), std::max(1, ph), src->strides[i], src->pixelStrides[i],
+                      (unsigned char *) dst->planes[i], w, h, dst->strides[i]);
+        padPlane((unsigned char *) dst->planes[i], w, h, tjPlaneWidth(i, outWidth, outSubsamp),
+                 tjPlaneHeight(i, outHeight, outSubsamp), dst->strides[i]);
+    }
+
+    labscaleplanesout:
+    return retval;
+}
+
+/* Crop, resample and rotate YUV planes and compress them without any RGB conversion.  The crop region is in
+   source pixels, outWidth x outHeight is the size before the rotation by angle (0, 90, 180 or 270), and the
+   subsampling is chosen by options (see planesSubsamp).  If nothing has to change, the source planes are
+   compressed as they are. */
+int planesCompress(const planarimage *src, int c_x, int c_y, int c_w, int c_h, int outWidth, int outHeight,
+                   int angle, int quality, unsigned long maxSize, double ssim, int options,
+                   const volatile int *cancel, jpegresult *result) {
+    int retval = 0, outSubsamp = autoSubsamp(options) ? planesSubsamp(src) : requestedSubsamp(options, src->subsamp);
+    int width, height, i;
+    unsigned long bufSize;
+    long long start = nowNanos();
+    planarimage scaled, rotated;
+    const planarimage *image = src;
+    tjhandle tjInstance = nullptr;
+
+    memset(&scaled, 0, sizeof(planarimage));
+    memset(&rotated, 0, sizeof(planarimage));
+    if (c_w <= 0 || c_h <= 0) {
+        c_x = c_y = 0;
+        c_w = src->width;
+        c_h = src->height;
+    }
+    if (c_x != 0 || c_y != 0 || c_w != src->width || c_h != src->height || outWidth != src->width ||
+        outHeight != src->height || outSubsamp != src->subsamp || src->pixelStrides[1] != 1 ||
+        src->pixelStrides[2] != 1) {
+        if (scalePlanes(src, c_x, c_y, c_w, c_h, outWidth, outHeight, outSubsamp, &scaled) < 0) {
+            retval = -1;  goto labplanesout;
+        }
+        image = &scaled;
+    }
+    if (angle == 90 || angle == 180 || angle == 270) {
+        width = angle == 180 ? image->width : image->height;
+        height = angle == 180 ? image->height : image->width;
+        if (allocPlanes(&rotated, width, height, outSubsamp) < 0) {
+            THROW_UNIX("allocating YUV planes", planesout);
+        }
+        for (i = 0; i < numPlanes(outSubsamp); i++)
+            rotatePlane(image->planes[i], tjPlaneWidth(i, image->width, outSubsamp),
+                        tjPlaneHeight(i, image->height, outSubsamp), image->strides[i],
+                        (unsigned char *) rotated.planes[i], rotated.strides[i], angle);
+        result->metrics.pixelBytes = scaled.capacity + rotated.capacity;
+        freePlanes(&scaled);
+        image = &rotated;
+    }
+    result->metrics.pixelBytes = std::max(result->metrics.pixelBytes, scaled.capacity);
+    result->metrics.scaleNanos = nowNanos() - start;
+    start = nowNanos();
+    if (CANCELLED(cancel)) CANCEL(planesout);
+
+    if ((tjInstance = getCompressor()) == nullptr) {
+        THROW_TJ("initializing compressor", planesout);
+    }
+    if (maxSize > 0) {
+        if (searchCompress(tjInstance, nullptr, (const unsigned char **) image->planes, image->strides,
+                           image->width, 0, image->height, TJPF_UNKNOWN, outSubsamp, outputFlags(options),
+                           needsOptimize(options), maxSize,
+                           &result->jpegBuf, &result->jpegSize, &result->capacity, &quality, &result->metrics,
+                           cancel) < 0) {
+            if (CANCELLED(cancel)) CANCEL(planesout);
+            THROW("compressing image", "quality search failed", planesout);
+        }
+    } else if (ssim > 0) {
+        if (ssimCompress(tjInstance, nullptr, (const unsigned char **) image->planes, image->strides, image->width,
+                         0, image->height, TJPF_UNKNOWN, outSubsamp, outputFlags(options), ssim, &result->jpegBuf,
+                         &result->jpegSize, &result->capacity, &quality, &result->metrics.ssim, &result->metrics,
+                         cancel) < 0) {
+            if (CANCELLED(cancel)) CANCEL(planesout);
+            THROW("compressing image", "SSIM search failed", planesout);
+        }
+        if (needsOptimize(options)) optimizeOutput(&result->jpegBuf, &result->jpegSize, &result->capacity);
+    } else {
+        if ((bufSize = tjBufSize(image->width, image->height, outSubsamp)) == (unsigned long) -1) {
+            THROW("computing buffer size", tjGetErrorStr2(nullptr), planesout);
+        }
+        if ((result->jpegBuf = acquireBuffer(bufSize, &result->capacity)) == nullptr) {
+            THROW_UNIX("allocating JPEG buffer", planesout);
+        }
+        result->jpegSize = result->capacity;
+        if (encodeImage(tjInstance, nullptr, (const unsigned char **) image->planes, image->strides, image->width,
+                        0, image->height, TJPF_UNKNOWN, outSubsamp, quality, outputFlags(options), &result->jpegBuf,
+                        &result->jpegSize) < 0) {
+            THROW_TJ("compressing YUV planes", planesout);
+        }
+        if (needsOptimize(options)) optimizeOutput(&result->jpegBuf, &result->jpegSize, &result->capacity);
+    }
+    TRACE("Output Image :  %d x %d pixels from YUV planes, %s subsampling, quality = %d, %ld byte\n",
+           image->width, image->height, subsampName[outSubsamp], quality, result->jpegSize);
+    result->metrics.encodeNanos = nowNanos() - start;
+    result->width = image->width;
+    result->height = image->height;
+    result->quality = quality;
+    result->subsamp = outSubsamp;
+
+    labplanesout:
+    freePlanes(&scaled);
+    freePlanes(&rotated);
+    return retval;
+}
+
+/* Decompress a JPEG image into YUV planes, scaled by the TurboJPEG scaling factor that gives width x height. */
+int decompressToPlanes(const unsigned char *jpegBuf, unsigned long jpegSize, int width, int height,
+                       planarimage *image) {
+    int retval = 0, jpegWidth, jpegHeight, subsamp, colorspace;
+    tjhandle tjInstance = nullptr;
+
+    memset(image, 0, sizeof(planarimage));
+    if ((tjInstance = getDecompressor()) == nullptr) {
+        THROW_TJ("initializing decompressor", planesdecompressout);
+    }
+    if (tjDecompressHeader3(tjInstance, jpegBuf, jpegSize, &jpegWidth, &jpegHeight, &subsamp, &colorspace) < 0) {
+        THROW_TJ("reading JPEG header", planesdecompressout);
+    }
+    if (colorspace == TJCS_CMYK || colorspace == TJCS_YCCK || subsamp < 0) {
+        THROW("decompressing to YUV planes", "CMYK and unknown subsampling are not supported", planesdecompressout);
+    }
+    if (allocPlanes(image, width, height, subsamp) < 0) {
+        THROW_UNIX("allocating YUV planes", planesdecompressout);
+    }
+    if (tjDecompressToYUVPlanes(tjInstance, jpegBuf, jpegSize, (unsigned char **) image->planes, width,
+                                image->strides, height, 0) < 0) {
+        THROW_TJ("decompressing JPEG image to YUV planes", planesdecompressout);
+    }
+    TRACE("Input Image:  %d x %d pixels decoded to %d x %d YUV planes, %s subsampling\n", jpegWidth, jpegHeight,
+           width, height, subsampName[subsamp]);
+
+    labplanesdecompressout:
+    if (retval < 0) freePlanes(image);
+    return retval;
+}
+
+/* Convert YUV planes into the pixels of an ARGB_8888 bitmap of the same size, for transforms that need RGB. */
+int planesToBitmap(JNIEnv *env, const planarimage *src, jobject bitmap) {
+    int retval = 0, i, w, h;
+    AndroidBitmapInfo info;
+    unsigned char *pixels = nullptr;
+    planarimage packed;
+    const planarimage *image = src;
+    tjhandle tjInstance = nullptr;
+
+    memset(&packed, 0, sizeof(planarimage));
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0 || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        (int) info.width != src->width || (int) info.height != src->height) {
+        THROW("reading bitmap info", "Bitmap must be ARGB_8888 and as large as the image", yuvbitmapout);
+    }
+    if (src->pixelStrides[1] != 1 || src->pixelStrides[2] != 1) {
+        /* TurboJPEG needs contiguous chroma samples. */
+        if (allocPlanes(&packed, src->width, src->height, src->subsamp) < 0) {
+            THROW_UNIX("allocating YUV planes", yuvbitmapout);
+        }
+        for (i = 0; i < numPlanes(src->subsamp); i++) {
+            w = componentSize(i, src->width, tjMCUWidth[src->subsamp]);
+            h = componentSize(i, src->height, tjMCUHeight[src->subsamp]);
+            resamplePlane(src->planes[i], w, h, src->strides[i], src->pixelStrides[i],
+                          (unsigned char *) packed.planes[i], w, h, packed.strides[i]);
+            padPlane((unsigned char *) packed.planes[i], w, h, tjPlaneWidth(i, src->width, src->subsamp),
+                     tjPlaneHeight(i, src->height, src->subsamp), packed.strides[i]);
+        }
+        image = &packed;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, (void **) &pixels) < 0) {
+        THROW("locking bitmap pixels", "AndroidBitmap_lockPixels failed", yuvbitmapout);
+    }
+    if ((tjInstance = getDecompressor()) == nullptr) {
+        THROW_TJ("initializing decompressor", yuvbitmapout);
+    }
+    if (tjDecodeYUVPlanes(tjInstance, (const unsigned char **) image->planes, image->strides, image->subsamp,
+                          pixels, (int) info.width, (int) info.stride, (int) info.height, TJPF_RGBA, 0) < 0) {
+        THROW_TJ("decoding YUV planes", yuvbitmapout);
+    }
+
+    labyuvbitmapout:
+    if (pixels) AndroidBitmap_unlockPixels(env, bitmap);
+    freePlanes(&packed);
+    return retval;
+}
+
+/* Rotate a JPEG image by 90, 180 or 270 degrees and/or crop it losslessly in the DCT domain, without
+   decoding any pixels.  The crop region is given in the rotated image and its offset is moved up/left to
+   the nearest MCU boundary; partial MCUs on the edges are trimmed.  Markers are not copied, so the EXIF
+   orientation of the input does not get applied twice. */
+int transformCompress(const unsigned char *jpegBuf, unsigned long jpegSize, int angle,
+                      int c_x, int c_y, int c_w, int c_h, int options, jpegresult *result) {
+    int retval = 0, width, height, subsamp, colorspace, mcuW, mcuH;
+    long long start;
+    tjtransform xform;
+    tjhandle tjInstance = nullptr;
+
+    memset(&xform, 0, sizeof(tjtransform));
+    if (angle == 90) xform.op = TJXOP_ROT90;
+    else if (angle == 180) xform.op = TJXOP_ROT180;
+    else if (angle == 270) xform.op = TJXOP_ROT270;
+    xform.options = TJXOPT_TRIM | TJXOPT_COPYNONE;
+    if (options & OUTPUT_PROGRESSIVE) xform.options |= TJXOPT_PROGRESSIVE;
+
+    if ((tjInstance = getTransformer()) == nullptr) {
+        THROW_TJ("initializing transformer", transformout);
+    }
+    if (tjDecompressHeader3(tjInstance, jpegBuf, jpegSize, &width, &height, &subsamp, &colorspace) < 0) {
+        THROW_TJ("reading JPEG header", transformout);
+    }
+    if (c_w > 0 && c_h > 0) {
+        /* The MCU of the rotated image is transposed for 90 and 270 degrees. */
+        mcuW = (angle == 90 || angle == 270) ? tjMCUHeight[subsamp] : tjMCUWidth[subsamp];
+        mcuH = (angle == 90 || angle == 270) ? tjMCUWidth[subsamp] : tjMCUHeight[subsamp];
+        xform.r.x = c_x - c_x % mcuW;
+        xform.r.y = c_y - c_y % mcuH;
+        xform.r.w = c_w;
+        xform.r.h = c_h;
+        xform.options |= TJXOPT_CROP;
+    }
+    start = nowNanos();
+    if (tjTransform(tjInstance, jpegBuf, jpegSize, 1, &result->jpegBuf, &result->jpegSize, &xform, 0) < 0) {
+        THROW_TJ("transforming input image", transformout);
+    }
+    if (needsOptimize(options)) optimizeOutput(&result->jpegBuf, &result->jpegSize, &result->capacity);
+    result->metrics.encodeNanos = nowNanos() - start;
+    if (tjDecompressHeader3(tjInstance, result->jpegBuf, result->jpegSize, &result->width, &result->height,
+                            &result->subsamp, &colorspace) < 0) {
+        THROW_TJ("reading JPEG header", transformout);
+    }
+    result->quality = -1;
+    TRACE("Transformed Image:  %d x %d pixels, %s subsampling, %ld byte\n", result->width, result->height,
+           subsampName[result->subsamp], result->jpegSize);
+
+    labtransformout:
+    return retval;
+}
+
+static unsigned int readExif16(const unsigned char *buf, bool little) {
+    return little ? buf[0] | (buf[1] << 8) : (buf[0] << 8) | buf[1];
+}
+
+static unsigned long readExif32(const unsigned char *buf, bool little) {
+    return little ? buf[0] | (buf[1] << 8) | (buf[2] << 16) | ((unsigned long) buf[3] << 24)
+                  : ((unsigned long) buf[0] << 24) | (buf[1] << 16) | (buf[2] << 8) | buf[3];
+}
+
+/* Read the orientation tag (1-8) from the first IFD of an APP1 (Exif) segment payload, 0 if there is none. */
+static int readOrientation(const unsigned char *app1, unsigned long length) {
+    const unsigned char *tiff = app1 + 6;
+    unsigned long ifd, entry;
+    unsigned int count, i;
+    bool little;
+
+    if (length < 14 || memcmp(app1, "Exif\0\0", 6) != 0) return 0;
+    length -= 6;
+    if (tiff[0] == 'I' && tiff[1] == 'I') little = true;
+    else if (tiff[0] == 'M' && tiff[1] == 'M') little = false;
+    else return 0;
+    ifd = readExif32(tiff + 4, little);
+    /* Written so that a huge offset cannot wrap around where unsigned long has 32 bits. */
+    if (ifd > length || length - ifd < 2) return 0;
+    count = readExif16(tiff + ifd, little);
+    for (i = 0; i < count; i++) {
+        entry = ifd + 2 + 12 * i;
+        if (entry + 12 > length) return 0;
+        if (readExif16(tiff + entry, little) == 0x0112) return (int) readExif16(tiff + entry + 8, little);
+    }
+    return 0;
+}
+
+/* Image formats recognized by probeImage, in the order of ImageInfo.MIME_TYPES. */
+enum {
+    FORMAT_UNKNOWN, FORMAT_JPEG, FORMAT_PNG, FORMAT_GIF, FORMAT_BMP, FORMAT_WEBP
+};
+
+/* What probeImage learns from the first bytes of an image, without creating any decoder. */
+typedef struct {
+    int format;
+    int width, height;
+    int subsamp, colorspace;
+    int orientation;
+    int quality;
+} imageinfo;
+
+/* The luminance quantization table of the JPEG standard (Annex K) in zigzag order, the order of a DQT segment. */
+static const unsigned char stdLuminanceQuant[64] = {
+        16, 11, 12, 14, 12, 10, 16, 14, 13, 14, 18, 17, 16, 19, 24, 40,
+        26, 24, 22, 22, 24, 49, 35, 37, 29, 40, 58, 51, 61, 60, 57, 51,
+        56, 55, 64, 72, 92, 78, 64, 68, 87, 69, 55, 56, 80, 109, 81, 87,
+        95, 98, 103, 104, 103, 62, 77, 113, 121, 112, 100, 120, 92, 101, 103, 99
+};
+
+/* Estimate the quality a JPEG image was saved at from its luminance quantization table: the quality whose
+   standard table, scaled and clamped the way jpeg_set_quality() does, is closest to the image's table.  The
+   result is exact for libjpeg-based encoders and the nearest libjpeg equivalent for others.  Ties go to the
+   higher quality, so that an image is never taken for worse than it is. */
+static int estimateQuality(const unsigned int *table) {
+    int q, i, best = -1;
+    long scale, value, diff, bestDiff = 0;
+
+    for (q = 1; q <= 100; q++) {
+        scale = q < 50 ? 5000 / q : 200 - q * 2;
+        for (diff = 0, i = 0; i < 64; i++) {
+            value = (stdLuminanceQuant[i] * scale + 50) / 100;
+            value = value < 1 ? 1 : value > 255 ? 255 : value;
+            diff += labs(value - (long) table[i]);
+        }
+        if (best < 0 || diff <= bestDiff) {
+            best = q;
+            bestDiff = diff;
+        }
+    }
+    return best;
+}
+
+/* Map the sampling factors of a JPEG frame to a TJSAMP constant the way libjpeg-turbo does, -1 if there is no
+   match. */
+static int getSubsamp(int components, const int *h, const int *v) {
+    static const int factors[][3] = {
+            {TJSAMP_444, 1, 1}, {TJSAMP_422, 2, 1}, {TJSAMP_420, 2, 2}, {TJSAMP_440, 1, 2}, {TJSAMP_411, 4, 1}
+    };
+    int i;
+
+    if (components == 1) return TJSAMP_GRAY;
+    for (i = 1; i < components; i++) {
+        /* The K plane of a YCCK image is sampled like Y. */
+        if (components == 4 && i == 3 ? h[i] != h[0] || v[i] != v[0] : h[i] != 1 || v[i] != 1) return -1;
+    }
+    for (i = 0; i < (int) (sizeof(factors) / sizeof(factors[0])); i++) {
+        if (h[0] == factors[i][1] && v[0] == factors[i][2]) return factors[i][0];
+    }
+    return -1;
+}
+
+/* Walk the JPEG markers up to the first SOS, reading the frame size, sampling factors, color space, Exif
+   orientation and estimated quality in one pass over the header. */
+static int probeJpeg(const unsigned char *buf, unsigned long size, imageinfo *info) {
+    unsigned long pos = 2, length, table;
+    int marker, components = 0, adobe = -1, i, h[4] = {0}, v[4] = {0}, ids[4] = {0};
+    unsigned int luminance[64];
+    bool jfif = false, hasLuminance = false;
+
+    while (pos + 4 <= size) {
+        if (buf[pos] != 0xFF) return -1;
+        marker = buf[pos + 1];
+        if (marker == 0xFF) {
+            pos++;
+            continue;
+        }
+        if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+            pos += 2;
+            continue;
+        }
+        if (marker == 0xDA || marker == 0xD9) break;
+        length = readExif16(buf + pos + 2, false);
+        if (length < 2 || pos + 2 + length > size) return -1;
+        const unsigned char *segment = buf + pos + 4;
+        length -= 2;
+        if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+            if (length < 6) return -1;
+            info->height = (int) readExif16(segment + 1, false);
+            info->width = (int) readExif16(segment + 3, false);
+            components = segment[5];
+            if (components < 1 || components > 4 || length < 6 + 3 * (unsigned long) components) return -1;
+            for (i = 0; i < components; i++) {
+                ids[i] = segment[6 + 3 * i];
+                h[i] = segment[7 + 3 * i] >> 4;
+                v[i] = segment[7 + 3 * i] & 15;
+            }
+        } else if (marker == 0xE0 && length >= 5 && !memcmp(segment, "JFIF\0", 5)) {
+            jfif = true;
+        } else if (marker == 0xE1 && info->orientation == 0) {
+            info->orientation = readOrientation(segment, length);
+        } else if (marker == 0xEE && length >= 12 && !memcmp(segment, "Adobe", 5)) {
+            adobe = segment[11];
+        } else if (marker == 0xDB) {
+            /* A DQT segment holds one or more tables, each a precision/id byte and 64 8- or 16-bit values.
+               Table 0 is the luminance table in every common encoder. */
+            for (table = 0; table < length; table += (segment[table] >> 4) ? 129 : 65) {
+                if (table + ((segment[table] >> 4) ? 129 : 65) > length) break;
+                if ((segment[table] & 15) != 0) continue;
+                for (i = 0; i < 64; i++) {
+                    luminance[i] = (segment[table] >> 4) ? readExif16(segment + table + 1 + 2 * i, false)
+                                                         : segment[table + 1 + i];
+                }
+                hasLuminance = true;
+            }
+        }
+        pos += 2 + length + 2;
+    }
+    if (components == 0 || info->width == 0 || info->height == 0) return -1;
+    info->quality = hasLuminance ? estimateQuality(luminance) : -1;
+    info->subsamp = getSubsamp(components, h, v);
+    /* The same rules as default_decompress_parms() in libjpeg. */
+    if (components == 1) {
+        info->colorspace = TJCS_GRAY;
+    } else if (components == 3) {
+        info->colorspace = jfif || adobe > 0 || (adobe < 0 && !(ids[0] == 'R' && ids[1] == 'G' && ids[2] == 'B'))
+                           ? TJCS_YCbCr : TJCS_RGB;
+    } else {
+        info->colorspace = components == 4 && adobe == 2 ? TJCS_YCCK : TJCS_CMYK;
+    }
+    return 0;
+}
+
+static unsigned long readLittle(const unsigned char *buf, int bytes) {
+    unsigned long value = 0;
+    while (bytes-- > 0) value = (value << 8) | buf[bytes];
+    return value;
+}
+
+/* Identify an image by its magic bytes and read its size from the header: JPEG frame header, PNG IHDR,
+   GIF logical screen, BMP info header or WebP VP8/VP8L/VP8X chunk.  Only JPEG images have an orientation.
+   Returns -1 if the format is unknown or the header is truncated. */
+int probeImage(const unsigned char *buf, unsigned long size, imageinfo *info) {
+    memset(info, 0, sizeof(imageinfo));
+    info->subsamp = info->colorspace = info->quality = -1;
+    if (size >= 3 && buf[0] == 0xFF && buf[1] == 0xD8 && buf[2] == 0xFF) {
+        info->format = FORMAT_JPEG;
+        return probeJpeg(buf, size, info);
+    } else if (size >= 24 && !memcmp(buf, "\x89PNG\r\n\x1a\n", 8) && !memcmp(buf + 12, "IHDR", 4)) {
+        info->format = FORMAT_PNG;
+        info->width = (int) readExif32(buf + 16, false);
+        info->height = (int) readExif32(buf + 20, false);
+    } else if (size >= 10 && !memcmp(buf, "GIF8", 4)) {
+        info->format = FORMAT_GIF;
+        info->width = (int) readLittle(buf + 6, 2);
+        info->height = (int) readLittle(buf + 8, 2);
+    } else if (size >= 26 && buf[0] == 'B' && buf[1] == 'M') {
+        info->format = FORMAT_BMP;
+        if (readLittle(buf + 14, 4) == 12) {
+            info->width = (int) readLittle(buf + 18, 2);
+            info->height = (int) readLittle(buf + 20, 2);
+        } else {
+            info->width = (int) readLittle(buf + 18, 4);
+            /* Top-down bitmaps have a negative height. */
+            info->height = abs((int) readLittle(buf + 22, 4));
+        }
+    } else if (size >= 30 && !memcmp(buf, "RIFF", 4) && !memcmp(buf + 8, "WEBP", 4)) {
+        info->format = FORMAT_WEBP;
+        if (!memcmp(buf + 12, "VP8 ", 4) && buf[23] == 0x9D && buf[24] == 0x01 && buf[25] == 0x2A) {
+            info->width = (int) readLittle(buf + 26, 2) & 0x3FFF;
+            info->height = (int) readLittle(buf + 28, 2) & 0x3FFF;
+        } else if (!memcmp(buf + 12, "VP8L", 4) && buf[20] == 0x2F) {
+            unsigned long bits = readLittle(buf + 21, 4);
+            info->width = (int) (bits & 0x3FFF) + 1;
+            info->height = (int) ((bits >> 14) & 0x3FFF) + 1;
+        } else if (!memcmp(buf + 12, "VP8X", 4)) {
+            info->width = (int) readLittle(buf + 24, 3) + 1;
+            info->height = (int) readLittle(buf + 27, 3) + 1;
+        }
+    }
+    return info->width > 0 && info->height > 0 ? 0 : -1;
+}
+
+/* Whether a segment is an APP2 segment of an embedded ICC profile, which may be split over several of them. */
+static bool isIccProfile(const unsigned char *segment, unsigned long length) {
+    return segment[1] == 0xE2 && length >= 16 && !memcmp(segment + 4, "ICC_PROFILE", 12);
+}
+
+/* Copy a JPEG image as it is, without decoding or re-encoding it, dropping the application and comment segments
+   that the other paths do not copy either: Exif, XMP, thumbnails and comments.  JFIF (APP0) and Adobe (APP14)
+   segments are kept because they decide how the components are interpreted, and ICC profiles (APP2) because
+   the pixels are still in the color space of the profile.  Everything from the first SOS on is copied
+   unchanged.  The result reports the quality estimated from the quantization tables. */
+int copyWithoutMetadata(const unsigned char *jpegBuf, unsigned long jpegSize, jpegresult *result) {
+    int retval = 0, marker;
+    unsigned long pos = 2, length, size = 2;
+    long long start = nowNanos();
+    imageinfo info;
+
+    if (probeImage(jpegBuf, jpegSize, &info) < 0 || info.format != FORMAT_JPEG) {
+        THROW("reading JPEG header", "Not a JPEG image", stripout);
+    }
+    if ((result->jpegBuf = acquireBuffer(jpegSize, &result->capacity)) == nullptr) {
+        THROW_UNIX("allocating JPEG buffer", stripout);
+    }
+    memcpy(result->jpegBuf, jpegBuf, 2);
+    while (true) {
+        if (pos + 4 > jpegSize || jpegBuf[pos] != 0xFF) {
+            THROW("copying JPEG markers", "Corrupt JPEG header", stripout);
+        }
+        marker = jpegBuf[pos + 1];
+        if (marker == 0xFF) {
+            pos++;
+            continue;
+        }
+        if (marker == 0xDA) break;
+        length = marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7) ? 2 : 2 + readExif16(jpegBuf + pos + 2, false);
+        if (pos + length > jpegSize) {
+            THROW("copying JPEG markers", "Corrupt JPEG header", stripout);
+        }
+        if ((!(marker >= 0xE1 && marker <= 0xEF && marker != 0xEE) && marker != 0xFE) ||
+            isIccProfile(jpegBuf + pos, length)) {
+            memcpy(result->jpegBuf + size, jpegBuf + pos, length);
+            size += length;
+        }
+        pos += length;
+    }
+    memcpy(result->jpegBuf + size, jpegBuf + pos, jpegSize - pos);
+    result->jpegSize = size + jpegSize - pos;
+    result->width = info.width;
+    result->height = info.height;
+    result->subsamp = info.subsamp;
+    result->quality = info.quality;
+    result->metrics.encodeNanos = nowNanos() - start;
+    TRACE("Stripped Image:  %d x %d pixels, quality %d, %ld byte\n", result->width, result->height, result->quality,
+          result->jpegSize);
+
+    labstripout:
+    return retval;
+}
+
+/* An image compressed as a sequence of horizontal strips, so that only one strip of pixels has to exist at a
+   time.  Every strip is compressed separately with the same quality and subsampling, and therefore with the same
+   quantization and Huffman tables, and its entropy-coded data starts with fresh DC predictions, which is exactly
+   the decoder state after a restart marker.  The strips are joined into one baseline JPEG by keeping the headers
+   of the first strip, patching the image height in SOF0, adding a DRI segment whose interval is the number of
+   MCUs in one strip, and separating the entropy-coded segments with RST0-RST7 markers.  This relies on the
+   default TurboJPEG output, so TJ_OPTIMIZE, TJ_PROGRESSIVE, TJ_ARITHMETIC and TJ_RESTART must not be set.
+   If fixedOutput is set, jpegBuf belongs to the caller and is never grown. */
+typedef struct {
+    unsigned char *jpegBuf, *stripBuf;
+    unsigned long jpegSize, jpegCapacity, stripCapacity;
+    int width, height, quality, subsamp, stripHeight, interval, rows, strips;
+    bool fixedOutput;
+    long long encodeNanos;
+} stripencoder;
+
+static int appendOutput(stripencoder *encoder, const unsigned char *buf, unsigned long size) {
+    unsigned char *newBuf;
+    unsigned long capacity = encoder->jpegCapacity;
+    if (encoder->jpegSize + size > capacity) {
+        if (encoder->fixedOutput) return -1;
+        while (encoder->jpegSize + size > capacity) capacity = capacity ? capacity * 2 : MIN_BUFFER_CLASS;
+        if ((newBuf = tjAlloc((int) capacity)) == nullptr) return -1;
+        if (encoder->jpegBuf) memcpy(newBuf, encoder->jpegBuf, encoder->jpegSize);
+        tjFree(encoder->jpegBuf);
+        encoder->jpegBuf = newBuf;
+        encoder->jpegCapacity = capacity;
+    }
+    memcpy(encoder->jpegBuf + encoder->jpegSize, buf, size);
+    encoder->jpegSize += size;
+    return 0;
+}
+
+/* Return the offset of the entropy-coded data in a JPEG image produced by TurboJPEG, or 0 if it is malformed.
+   *sofPos and *sosPos receive the offsets of the SOF0 and SOS markers. */
+static unsigned long findScanData(const unsigned char *jpegBuf, unsigned long jpegSize, unsigned long *sofPos,
+                                  unsigned long *sosPos) {
+    unsigned long pos = 2, length;
+    *sofPos = 0;
+    while (pos + 4 <= jpegSize) {
+        if (jpegBuf[pos] != 0xFF) return 0;
+        length = readExif16(jpegBuf + pos + 2, false);
+        if (jpegBuf[pos + 1] == 0xC0) *sofPos = pos;
+        if (jpegBuf[pos + 1] == 0xDA) {
+            *sosPos = pos;
+            return *sofPos > 0 && pos + 2 + length <= jpegSize ? pos + 2 + length : 0;
+        }
+        pos += 2 + length;
+    }
+    return 0;
+}
+
+int stripEncoderBegin(int width, int height, int quality, int subsamp, int stripHeight, stripencoder *encoder) {
+    int retval = 0;
+    unsigned long bufSize, interval;
+
+    memset(encoder, 0, sizeof(stripencoder));
+    if (width <= 0 || height <= 0 || height > 65535) {
+        THROW("starting strip encoder", "Invalid image size", beginout);
+    }
+    if (stripHeight <= 0 || stripHeight % tjMCUHeight[subsamp] != 0) {
+        THROW("starting strip encoder", "Strip height must be a multiple of the MCU height", beginout);
+    }
+    interval = (unsigned long) ((width + tjMCUWidth[subsamp] - 1) / tjMCUWidth[subsamp]) *
+               (stripHeight / tjMCUHeight[subsamp]);
+    if (interval > 65535) {
+        THROW("starting strip encoder", "Restart interval exceeds 65535 MCUs", beginout);
+    }
+    if ((bufSize = tjBufSize(width, stripHeight, subsamp)) == (unsigned long) -1) {
+        THROW("computing buffer size", tjGetErrorStr2(nullptr), beginout);
+    }
+    if ((encoder->stripBuf = acquireBuffer(bufSize, &encoder->stripCapacity)) == nullptr) {
+        THROW_UNIX("allocating JPEG buffer", beginout);
+    }
+    encoder->width = width;
+    encoder->height = height;
+    encoder->quality = quality;
+    encoder->subsamp = subsamp;
+    encoder->stripHeight = stripHeight;
+    encoder->interval = (int) interval;
+    TRACE("Strip encoder:  %d x %d pixels, %d rows per strip, restart interval %d\n", width, height, stripHeight,
+           encoder->interval);
+
+    labbeginout:
+    return retval;
+}
+
+/* Append the next strip, compressed by TurboJPEG, to the joined image. */
+static int appendStrip(stripencoder *encoder, unsigned char *stripBuf, unsigned long stripSize) {
+    int retval = 0;
+    unsigned char marker[6];
+    unsigned long sofPos, sosPos, dataPos;
+
+    if ((dataPos = findScanData(stripBuf, stripSize, &sofPos, &sosPos)) == 0 || stripSize < dataPos + 2 ||
+        stripBuf[stripSize - 2] != 0xFF || stripBuf[stripSize - 1] != 0xD9) {
+        THROW("writing strip", "Unexpected JPEG stream layout", appendstripout);
+    }
+    if (encoder->strips == 0) {
+        /* SOF0 holds the segment length, the sample precision and then the height. */
+        stripBuf[sofPos + 5] = (unsigned char) (encoder->height >> 8);
+        stripBuf[sofPos + 6] = (unsigned char) (encoder->height & 0xFF);
+        marker[0] = 0xFF;
+        marker[1] = 0xDD;
+        marker[2] = 0;
+        marker[3] = 4;
+        marker[4] = (unsigned char) (encoder->interval >> 8);
+        marker[5] = (unsigned char) (encoder->interval & 0xFF);
+        if (appendOutput(encoder, stripBuf, sosPos) < 0 || appendOutput(encoder, marker, 6) < 0 ||
+            appendOutput(encoder, stripBuf + sosPos, dataPos - sosPos) < 0) {
+            THROW_UNIX("allocating JPEG buffer", appendstripout);
+        }
+    } else {
+        marker[0] = 0xFF;
+        marker[1] = (unsigned char) (0xD0 + (encoder->strips - 1) % 8);
+        if (appendOutput(encoder, marker, 2) < 0) {
+            THROW_UNIX("allocating JPEG buffer", appendstripout);
+        }
+    }
+    /* The entropy-coded data without the EOI marker. */
+    if (appendOutput(encoder, stripBuf + dataPos, stripSize - 2 - dataPos) < 0) {
+        THROW_UNIX("allocating JPEG buffer", appendstripout);
+    }
+    encoder->strips++;
+
+    labappendstripout:
+    return retval;
+}
+
+/* Compress the next strip.  Every strip but the last must be exactly stripHeight rows high. */
+int stripEncoderWrite(stripencoder *encoder, const unsigned char *pixels, int pitch, int rows, int pixelFormat) {
+    int retval = 0;
+    unsigned char *stripBuf = encoder->stripBuf;
+    unsigned long stripSize = encoder->stripCapacity;
+    long long start = nowNanos();
+    tjhandle tjInstance = nullptr;
+
+    if (rows <= 0 || encoder->rows + rows > encoder->height ||
+        (rows != encoder->stripHeight && encoder->rows + rows != encoder->height)) {
+        THROW("writing strip", "Only the last strip may be shorter than the strip height", writestripout);
+    }
+    if ((tjInstance = getCompressor()) == nullptr) {
+        THROW_TJ("initializing compressor", writestripout);
+    }
+    if (tjCompress2(tjInstance, pixels, encoder->width, pitch, rows, pixelFormat, &stripBuf, &stripSize,
+                    encoder->subsamp, encoder->quality, TJFLAG_NOREALLOC) < 0) {
+        THROW_TJ("compressing strip", writestripout);
+    }
+    if (appendStrip(encoder, stripBuf, stripSize) < 0) {
+        retval = -1;  goto labwritestripout;
+    }
+    encoder->rows += rows;
+    encoder->encodeNanos += nowNanos() - start;
+
+    labwritestripout:
+    return retval;
+}
+
+/* Terminate the image and move it into result.  The encoder is released in any case. */
+int stripEncoderFinish(stripencoder *encoder, jpegresult *result) {
+    int retval = 0;
+    const unsigned char eoi[2] = {0xFF, 0xD9};
+
+    if (encoder->rows != encoder->height) {
+        THROW("finishing strip encoder", "Not all rows have been written", finishout);
+    }
+    if (appendOutput(encoder, eoi, 2) < 0) {
+        THROW_UNIX("allocating JPEG buffer", finishout);
+    }
+    result->jpegBuf = encoder->jpegBuf;
+    result->jpegSize = encoder->jpegSize;
+    result->capacity = 0;
+    result->width = encoder->width;
+    result->height = encoder->height;
+    result->quality = encoder->quality;
+    result->subsamp = encoder->subsamp;
+    result->metrics.encodeNanos = encoder->encodeNanos;
+    encoder->jpegBuf = nullptr;
+    TRACE("Output Image :  %d x %d pixels in %d strips, %s subsampling, quality = %d, %ld byte\n", result->width,
+           result->height, encoder->strips, subsampName[result->subsamp], result->quality, result->jpegSize);
+
+    labfinishout:
+    tjFree(encoder->jpegBuf);
+    releaseBuffer(encoder->stripBuf, encoder->stripCapacity);
+    memset(encoder, 0, sizeof(stripencoder));
+    return retval;
+}
+
+/* The most threads that one image is compressed with, 0 for the number of cores.  Threads that compress strips
+   for other images count against it, so concurrent compressions do not oversubscribe the cores. */
+static std::atomic<int> encodeThreadLimit(0), encodeThreads(0);
+
+/* The strips of parallelCompress are compressed by a pool of worker threads that is started on first use and
+   lives as long as the process, so every worker creates its TurboJPEG compressor in threadState only once.
+   A task is the work function of one image, queued once for every thread reserved for it; pending counts the
+   tasks of that image that have not finished yet. */
+typedef struct {
+    std::function<void()> *work;
+    int *pending;
+} encodetask;
+
+struct encodepool {
+    std::mutex lock;
+    std::condition_variable queued, done;
+    std::list<encodetask> queue;
+    int workers = 0;
+};
+
+/* Never destroyed: the workers still wait on it when the process exits, and destroying a condition variable
+   with waiters blocks. */
+static encodepool *const encodePool = new encodepool();
+
+static void encodeWorker() {
+    std::unique_lock<std::mutex> lock(encodePool->lock);
+    for (;;) {
+        encodePool->queued.wait(lock, [] { return !encodePool->queue.empty(); });
+        encodetask task = encodePool->queue.front();
+        encodePool->queue.pop_front();
+        lock.unlock();
+        (*task.work)();
+        lock.lock();
+        if (--*task.pending == 0) encodePool->done.notify_all();
+    }
+}
+
+/* Run work on the calling thread and on extra workers of the pool, and return once all of them have returned.
+   work must take its items from a shared counter, so that it does not matter how many workers run it.  The
+   pool is grown to the number of reserved threads in encodeThreads; if a worker cannot be started, the others
+   and the calling thread do its share. */
+static void runParallel(std::function<void()> &work, int extra) {
+    int pending = extra, i;
+    {
+        std::lock_guard<std::mutex> lock(encodePool->lock);
+        while (encodePool->workers < encodeThreads) {
+            try {
+                std::thread(encodeWorker).detach();
+            } catch (const std::system_error &) {
+                break;
+            }
+            encodePool->workers++;
+        }
+        for (i = 0; i < extra; i++) encodePool->queue.push_back({&work, &pending});
+    }
+    encodePool->queued.notify_all();
+    work();
+
+    std::unique_lock<std::mutex> lock(encodePool->lock);
+    /* Tasks that no worker has taken yet would find no strips left. */
+    for (auto it = encodePool->queue.begin(); it != encodePool->queue.end();) {
+        if (it->pending == &pending) {
+            it = encodePool->queue.erase(it);
+            pending--;
+        } else {
+            ++it;
+        }
+    }
+    encodePool->done.wait(lock, [&] { return pending == 0; });
+}
+
+/* Compress a large image on several cores: the rows are split into strips of whole MCU rows, which the worker
+   pool compresses independently, and the strips are joined at restart markers exactly like the strips of a
+   stripencoder, straight into *jpegBuf.  Decoding the joined image gives the same pixels as the output of a
+   single TurboJPEG call.  Returns -1 without an error if the image is too small, progressive, or no other core
+   is free, and if the joined image does not fit in *jpegSize bytes. */
+static int parallelCompress(const unsigned char *srcBuf, const unsigned char **planes, const int *strides, int width,
+                            int pitch, int height, int pixelFormat, int subsamp, int quality, int flags,
+                            unsigned char **jpegBuf, unsigned long *jpegSize) {
+    int retval = 0, mcuW = tjMCUWidth[subsamp], mcuH = tjMCUHeight[subsamp], mcuRows = (height + mcuH - 1) / mcuH;
+    int mcusPerRow = (width + mcuW - 1) / mcuW, limit = encodeThreadLimit, busy = encodeThreads, extra = 0, i;
+    int stripMcuRows, stripHeight, strips, stripStrides[3];
+    unsigned long joinedSize = 2, sofPos, sosPos, dataPos;
+    const unsigned char eoi[2] = {0xFF, 0xD9};
+    std::atomic<int> next(0), failed(0);
+    std::vector<unsigned char *> stripBufs;
+    std::vector<unsigned long> stripSizes, stripCapacities;
+    std::function<void()> work;
+    stripencoder encoder;
+
+    memset(&encoder, 0, sizeof(stripencoder));
+    if ((long) width * height < PARALLEL_MIN_PIXELS || (flags & TJFLAG_PROGRESSIVE) || height > 65535 ||
+        mcusPerRow > 65535)
+        return -1;
+    if (limit <= 0) limit = (int) std::thread::hardware_concurrency();
+    limit = std::min(limit, MAX_ENCODE_THREADS);
+    /* Reserve the other cores that are not compressing strips of another image. */
+    do {
+        extra = std::min(limit - 1 - busy, mcuRows - 1);
+        if (extra <= 0) return -1;
+    } while (!encodeThreads.compare_exchange_weak(busy, busy + extra));
+
+    /* Two strips per thread even out strips that compress slower, a restart interval has at most 65535 MCUs. */
+    stripMcuRows = std::min((mcuRows + 2 * (extra + 1) - 1) / (2 * (extra + 1)), 65535 / mcusPerRow);
+    stripHeight = stripMcuRows * mcuH;
+    strips = (height + stripHeight - 1) / stripHeight;
+    if (stripEncoderBegin(width, height, quality, subsamp, stripHeight, &encoder) < 0) {
+        retval = -1;  goto labparallelout;
+    }
+    for (i = 0; i < 3; i++)
+        stripStrides[i] = strides != nullptr && strides[i] > 0 ? strides[i] : tjPlaneWidth(i, width, subsamp);
+    if (pitch <= 0 && srcBuf != nullptr) pitch = width * tjPixelSize[pixelFormat];
+    /* The first strip is compressed into the buffer of the encoder, the others into buffers from the pool. */
+    stripBufs.assign(strips, nullptr);
+    stripSizes.assign(strips, 0);
+    stripCapacities.assign(strips, 0);
+    stripBufs[0] = encoder.stripBuf;
+    stripCapacities[0] = encoder.stripCapacity;
+    encoder.stripBuf = nullptr;
+    for (i = 1; i < strips; i++) {
+        if ((stripBufs[i] = acquireBuffer(tjBufSize(width, stripHeight, subsamp), &stripCapacities[i])) == nullptr) {
+            THROW_UNIX("allocating JPEG buffer", parallelout);
+        }
+    }
+
+    work = [&]() {
+        tjhandle tjInstance = getCompressor();
+        const unsigned char *stripPlanes[3];
+        int strip, y, rows, c;
+        while (tjInstance != nullptr && !failed && (strip = next++) < strips) {
+            y = strip * stripHeight;
+            rows = std::min(stripHeight, height - y);
+            stripSizes[strip] = stripCapacities[strip];
+            if (srcBuf != nullptr) {
+                if (tjCompress2(tjInstance, srcBuf + (size_t) y * pitch, width, pitch, rows, pixelFormat,
+                                &stripBufs[strip], &stripSizes[strip], subsamp, quality,
+                                flags | TJFLAG_NOREALLOC) < 0)
+                    failed = 1;
+            } else {
+                /* A strip starts at a whole MCU row, so it starts at a whole row of every plane. */
+                for (c = 0; c < numPlanes(subsamp); c++)
+                    stripPlanes[c] = planes[c] + (size_t) (c == 0 ? y : y * 8 / mcuH) * stripStrides[c];
+                if (tjCompressFromYUVPlanes(tjInstance, stripPlanes, width, stripStrides, rows, subsamp,
+                                            &stripBufs[strip], &stripSizes[strip], quality,
+                                            flags | TJFLAG_NOREALLOC) < 0)
+                    failed = 1;
+            }
+        }
+        if (tjInstance == nullptr) failed = 1;
+    };
+    runParallel(work, extra);
+    if (failed) {
+        THROW("compressing strips", "a strip could not be compressed", parallelout);
+    }
+
+    /* The headers of the first strip and the DRI segment, then every entropy-coded segment with its RST marker
+       or, after the last one, EOI. */
+    for (i = 0; i < strips; i++) {
+        if ((dataPos = findScanData(stripBufs[i], stripSizes[i], &sofPos, &sosPos)) == 0 ||
+            stripSizes[i] < dataPos + 2) {
+            THROW("joining strips", "Unexpected JPEG stream layout", parallelout);
+        }
+        joinedSize += (i == 0 ? dataPos + 6 : 2) + stripSizes[i] - 2 - dataPos;
+    }
+    if (joinedSize > *jpegSize) {
+        retval = -1;  goto labparallelout;
+    }
+    encoder.jpegBuf = *jpegBuf;
+    encoder.jpegCapacity = *jpegSize;
+    encoder.fixedOutput = true;
+    for (i = 0; i < strips; i++) {
+        if (appendStrip(&encoder, stripBufs[i], stripSizes[i]) < 0) {
+            retval = -1;  goto labparallelout;
+        }
+    }
+    if (appendOutput(&encoder, eoi, 2) < 0) {
+        THROW("joining strips", "Output buffer is too small", parallelout);
+    }
+    *jpegSize = encoder.jpegSize;
+    TRACE("Parallel encode:  %d x %d pixels in %d strips on up to %d threads, %ld byte\n", width, height, strips,
+           extra + 1, *jpegSize);
+
+    labparallelout:
+    encodeThreads -= extra;
+    for (i = 0; i < (int) stripBufs.size(); i++) releaseBuffer(stripBufs[i], stripCapacities[i]);
+    releaseBuffer(encoder.stripBuf, encoder.stripCapacity);
+    return retval;
+}
+
+static int writeFile(const char *output, const unsigned char *buf, unsigned long size) {
+    int retval = 0;
+    FILE *file = nullptr;
+
+    if ((file = fopen(output, "wb")) == nullptr) {
+        THROW_UNIX("opening output file", writeout);
+    }
+    if (fwrite(buf, size, 1, file) < 1) {
+        THROW_UNIX("writing output file", writeout);
+    }
+
+    labwriteout:
+    if (file) fclose(file);
+    return retval;
+}
+
+/* 64-bit XXH64 hash of a buffer, used as the content address of cached results.  It reads 32 bytes per round
+   and runs at memory speed, so hashing the input costs far less than decoding it. */
+#define XXH_PRIME1 11400714785074694791ULL
+#define XXH_PRIME2 14029467366897019727ULL
+#define XXH_PRIME3 1609587929392839161ULL
+#define XXH_PRIME4 9650029242287828579ULL
+#define XXH_PRIME5 2870177450012600261ULL
+
+static inline uint64_t xxhRotl(uint64_t x, int r) {
+    return (x << r) | (x >> (64 - r));
+}
+
+static inline uint64_t xxhRead64(const unsigned char *p) {
+    uint64_t v;
+    memcpy(&v, p, sizeof(v));
+    return v;
+}
+
+static inline uint64_t xxhRound(uint64_t acc, uint64_t input) {
+    return xxhRotl(acc + input * XXH_PRIME2, 31) * XXH_PRIME1;
+}
+
+static inline uint64_t xxhMerge(uint64_t acc, uint64_t val) {
+    return (acc ^ xxhRound(0, val)) * XXH_PRIME1 + XXH_PRIME4;
+}
+
+uint64_t hashData(const unsigned char *buf, unsigned long size, uint64_t seed) {
+    const unsigned char *p = buf, *end = buf + size;
+    uint64_t h;
+
+    if (size >= 32) {
+        uint64_t v1 = seed + XXH_PRIME1 + XXH_PRIME2, v2 = seed + XXH_PRIME2, v3 = seed, v4 = seed - XXH_PRIME1;
+        do {
+            v1 = xxhRound(v1, xxhRead64(p));
+            v2 = xxhRound(v2, xxhRead64(p + 8));
+            v3 = xxhRound(v3, xxhRead64(p + 16));
+            v4 = xxhRound(v4, xxhRead64(p + 24));
+            p += 32;
+        } while (p <= end - 32);
+        h = xxhRotl(v1, 1) + xxhRotl(v2, 7) + xxhRotl(v3, 12) + xxhRotl(v4, 18);
+        h = xxhMerge(xxhMerge(xxhMerge(xxhMerge(h, v1), v2), v3), v4);
+    } else {
+        h = seed + XXH_PRIME5;
+    }
+    h += (uint64_t) size;
+    for (; p + 8 <= end; p += 8) h = xxhRotl(h ^ xxhRound(0, xxhRead64(p)), 27) * XXH_PRIME1 + XXH_PRIME4;
+    if (p + 4 <= end) {
+        uint32_t v;
+        memcpy(&v, p, sizeof(v));
+        h = xxhRotl(h ^ ((uint64_t) v * XXH_PRIME1), 23) * XXH_PRIME2 + XXH_PRIME3;
+        p += 4;
+    }
+    for (; p < end; p++) h = xxhRotl(h ^ (*p * XXH_PRIME5), 11) * XXH_PRIME1;
+    h ^= h >> 33;
+    h *= XXH_PRIME2;
+    h ^= h >> 29;
+    h *= XXH_PRIME3;
+    h ^= h >> 32;
+    return h;
+}
+
+/* Compressed input passed from Java: either a direct ByteBuffer or a region of a byte array. */
+typedef struct {
+    jbyteArray array;
+    jbyte *elements;
+    const unsigned char *buf;
+    unsigned long size;
+} jpeginput;
+
+/* The cancellation flag of a CompressTask, or null if the call has no task. */
+static const volatile int *cancelFlag(JNIEnv *env, jobject cancel) {
+    return cancel != nullptr ? (const volatile int *) env->GetDirectBufferAddress(cancel) : nullptr;
+}
+
+static int getInput(JNIEnv *env, jobject buffer, jbyteArray array, jint offset, jint length, jpeginput *input) {
+    memset(input, 0, sizeof(jpeginput));
+    if (buffer != nullptr) {
+        if ((input->buf = (const unsigned char *) env->GetDirectBufferAddress(buffer)) == nullptr) return -1;
+    } else if (array != nullptr) {
+        if ((input->elements = env->GetByteArrayElements(array, nullptr)) == nullptr) return -1;
+        input->array = array;
+        input->buf = (const unsigned char *) input->elements;
+    } else {
+        return -1;
+    }
+    input->buf += offset;
+    input->size = (unsigned long) length;
+    return 0;
+}
+
+static void releaseInput(JNIEnv *env, jpeginput *input) {
+    if (input->elements) env->ReleaseByteArrayElements(input->array, input->elements, JNI_ABORT);
+    input->elements = nullptr;
+}
+
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressUtils_compress(JNIEnv *env, jclass clazz,
+                                                          jboolean scale, jint m, jint n, jboolean su, jint subsamp, jboolean q, jint qual, jboolean g,
+                                                          jboolean hflip, jboolean vflip, jboolean transpose, jboolean transverse, jboolean rot90, jboolean rot180, jboolean rot270,
+                                                          jboolean c, jint c_w, jint c_h, jint  c_x, jint  c_y,
+                                                          jboolean fastupsample, jboolean fastdct, jboolean accuratedct,
+                                                          jstring input, jstring output) {
+    const char *src = env->GetStringUTFChars(input, nullptr);
+    const char *dst = env->GetStringUTFChars(output, nullptr);
+    mainCompress(
+            scale, m, n,
+            su, subsamp,
+            q, qual,
+            g,
+            hflip, vflip, transpose, transverse, rot90, rot180, rot270,
+            false,
+            c, c_w, c_h, c_x, c_y,
+            fastupsample, fastdct, accuratedct,
+            src, dst);
+    env->ReleaseStringUTFChars(input, src);
+    env->ReleaseStringUTFChars(output, dst);
+}
+
+/* YUV 4:2:0 input passed from Java: the Y, U and V planes are either three direct ByteBuffers or regions of
+   one byte array, such as an NV21 frame. */
+typedef struct {
+    jbyteArray array;
+    jbyte *elements;
+    planarimage image;
+} yuvinput;
+
+static int getYuvInput(JNIEnv *env, jobject y, jobject u, jobject v, jbyteArray array, jintArray offsets,
+                       jintArray rowStrides, jint uvPixelStride, jint width, jint height, yuvinput *input) {
+    jobject buffers[3] = {y, u, v};
+    jint offset[3], stride[3];
+    int i;
+    memset(input, 0, sizeof(yuvinput));
+    env->GetIntArrayRegion(offsets, 0, 3, offset);
+    env->GetIntArrayRegion(rowStrides, 0, 3, stride);
+    if (array != nullptr) {
+        if ((input->elements = env->GetByteArrayElements(array, nullptr)) == nullptr) return -1;
+        input->array = array;
+    }
+    for (i = 0; i < 3; i++) {
+        if (array != nullptr) {
+            input->image.planes[i] = (const unsigned char *) input->elements + offset[i];
+        } else if (buffers[i] != nullptr && env->GetDirectBufferAddress(buffers[i]) != nullptr) {
+            input->image.planes[i] = (const unsigned char *) env->GetDirectBufferAddress(buffers[i]) + offset[i];
+        } else {
+            return -1;
+        }
+        input->image.strides[i] = stride[i];
+        input->image.pixelStrides[i] = i == 0 ? 1 : uvPixelStride;
+    }
+    input->image.width = width;
+    input->image.height = height;
+    input->image.subsamp = TJSAMP_420;
+    return 0;
+}
+
+static void releaseYuvInput(JNIEnv *env, yuvinput *input) {
+    if (input->elements) env->ReleaseByteArrayElements(input->array, input->elements, JNI_ABORT);
+    input->elements = nullptr;
+}
+
+static jlong newResult(jpegresult *result) {
+    jpegresult *handle;
+    if ((handle = (jpegresult *) malloc(sizeof(jpegresult))) == nullptr) {
+        releaseBuffer(result->jpegBuf, result->capacity);
+        return 0;
+    }
+    *handle = *result;
+    return (jlong) (intptr_t) handle;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_bitmapCompress(JNIEnv *env, jclass clazz, jobject bitmap,
+                                                                jint quality, jlong maxSize, jfloat ssim,
+                                                                jint options, jobject cancel) {
+    jpegresult result;
+    memset(&result, 0, sizeof(jpegresult));
+    if (bitmapCompress(env, bitmap, quality, (unsigned long) maxSize, ssim, options, cancelFlag(env, cancel),
+                       &result) < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_transformCompress(JNIEnv *env, jclass clazz, jobject buffer,
+                                                                   jbyteArray array, jint offset, jint length,
+                                                                   jint angle, jint c_x, jint c_y, jint c_w,
+                                                                   jint c_h, jint options) {
+    jpeginput input;
+    jpegresult result;
+    int retval;
+    memset(&result, 0, sizeof(jpegresult));
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return 0;
+    retval = transformCompress(input.buf, input.size, angle, c_x, c_y, c_w, c_h, options, &result);
+    releaseInput(env, &input);
+    if (retval < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_copyWithoutMetadata(JNIEnv *env, jclass clazz, jobject buffer,
+                                                                 jbyteArray array, jint offset, jint length) {
+    jpeginput input;
+    jpegresult result;
+    int retval;
+    memset(&result, 0, sizeof(jpegresult));
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return 0;
+    retval = copyWithoutMetadata(input.buf, input.size, &result);
+    releaseInput(env, &input);
+    if (retval < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_yuvCompress(JNIEnv *env, jclass clazz, jobject y, jobject u, jobject v,
+                                                         jbyteArray array, jintArray offsets, jintArray rowStrides,
+                                                         jint uvPixelStride, jint width, jint height, jint c_x,
+                                                         jint c_y, jint c_w, jint c_h, jint outWidth,
+                                                         jint outHeight, jint angle, jint quality, jlong maxSize,
+                                                         jfloat ssim, jint options, jobject cancel) {
+    yuvinput input;
+    jpegresult result;
+    int retval = -1;
+    memset(&result, 0, sizeof(jpegresult));
+    if (getYuvInput(env, y, u, v, array, offsets, rowStrides, uvPixelStride, width, height, &input) == 0)
+        retval = planesCompress(&input.image, c_x, c_y, c_w, c_h, outWidth, outHeight, angle, quality,
+                                (unsigned long) maxSize, ssim, options, cancelFlag(env, cancel), &result);
+    releaseYuvInput(env, &input);
+    if (retval < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_yuvToBitmap(JNIEnv *env, jclass clazz, jobject y, jobject u, jobject v,
+                                                         jbyteArray array, jintArray offsets, jintArray rowStrides,
+                                                         jint uvPixelStride, jint width, jint height,
+                                                         jobject bitmap) {
+    yuvinput input;
+    int retval = -1;
+    if (getYuvInput(env, y, u, v, array, offsets, rowStrides, uvPixelStride, width, height, &input) == 0)
+        retval = planesToBitmap(env, &input.image, bitmap);
+    releaseYuvInput(env, &input);
+    return retval;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_jpegYuvCompress(JNIEnv *env, jclass clazz, jobject buffer,
+                                                             jbyteArray array, jint offset, jint length,
+                                                             jint scaledWidth, jint scaledHeight, jint c_x,
+                                                             jint c_y, jint c_w, jint c_h, jint outWidth,
+                                                             jint outHeight, jint angle, jint quality,
+                                                             jlong maxSize, jfloat ssim, jint options,
+                                                             jobject cancel) {
+    jpeginput input;
+    jpegresult result;
+    planarimage image;
+    int retval;
+    long long start = nowNanos();
+    memset(&result, 0, sizeof(jpegresult));
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return 0;
+    retval = decompressToPlanes(input.buf, input.size, scaledWidth, scaledHeight, &image);
+    releaseInput(env, &input);
+    if (retval == 0 && CANCELLED(cancelFlag(env, cancel))) {
+        freePlanes(&image);
+        retval = -1;
+    }
+    if (retval == 0) {
+        result.metrics.decodeNanos = nowNanos() - start;
+        retval = planesCompress(&image, c_x, c_y, c_w, c_h, outWidth, outHeight, angle, quality,
+                                (unsigned long) maxSize, ssim, options, cancelFlag(env, cancel), &result);
+        /* The decoded planes stay alive until the output has been encoded. */
+        result.metrics.pixelBytes += image.capacity;
+        freePlanes(&image);
+    }
+    if (retval < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+/* Decoded YUV planes kept on the native heap, so that several renditions are scaled and encoded from a single
+   decode.  The handle owns its planes until releasePlanes. */
+static jlong newPlanes(planarimage *image) {
+    planarimage *handle;
+    if ((handle = (planarimage *) malloc(sizeof(planarimage))) == nullptr) {
+        freePlanes(image);
+        return 0;
+    }
+    *handle = *image;
+    return (jlong) (intptr_t) handle;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_decodePlanes(JNIEnv *env, jclass clazz, jobject buffer,
+                                                          jbyteArray array, jint offset, jint length,
+                                                          jint scaledWidth, jint scaledHeight) {
+    jpeginput input;
+    planarimage image;
+    int retval;
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return 0;
+    retval = decompressToPlanes(input.buf, input.size, scaledWidth, scaledHeight, &image);
+    releaseInput(env, &input);
+    return retval < 0 ? 0 : newPlanes(&image);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_scalePlanes(JNIEnv *env, jclass clazz, jlong handle, jint outWidth,
+                                                         jint outHeight) {
+    const planarimage *src = (const planarimage *) (intptr_t) handle;
+    planarimage image;
+    memset(&image, 0, sizeof(planarimage));
+    /* Intermediate levels keep full-resolution chroma, so that renditions can still choose 4:4:4. */
+    if (scalePlanes(src, 0, 0, 0, 0, outWidth, outHeight,
+                    src->subsamp == TJSAMP_444 ? TJSAMP_444 : requestedSubsamp(0, src->subsamp), &image) < 0) {
+        freePlanes(&image);
+        return 0;
+    }
+    return newPlanes(&image);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_planesCompress(JNIEnv *env, jclass clazz, jlong handle, jint c_x,
+                                                            jint c_y, jint c_w, jint c_h, jint outWidth,
+                                                            jint outHeight, jint angle, jint quality, jlong maxSize,
+                                                            jfloat ssim, jint options, jobject cancel) {
+    jpegresult result;
+    memset(&result, 0, sizeof(jpegresult));
+    if (planesCompress((const planarimage *) (intptr_t) handle, c_x, c_y, c_w, c_h, outWidth, outHeight, angle,
+                       quality, (unsigned long) maxSize, ssim, options, cancelFlag(env, cancel), &result) < 0) {
+        releaseBuffer(result.jpegBuf, result.capacity);
+        return 0;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_releasePlanes(JNIEnv *env, jclass clazz, jlong handle) {
+    planarimage *image = (planarimage *) (intptr_t) handle;
+    if (image == nullptr) return;
+    freePlanes(image);
+    free(image);
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_resultInfo(JNIEnv *env, jclass clazz, jlong handle) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    jintArray info;
+    int values[5] = {(int) result->jpegSize, result->width, result->height, result->quality, result->subsamp};
+    if ((info = env->NewIntArray(5)) != nullptr) env->SetIntArrayRegion(info, 0, 5, values);
+    return info;
+}
+
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_resultMetrics(JNIEnv *env, jclass clazz, jlong handle) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    callmetrics *metrics = &result->metrics;
+    jlongArray array;
+    jlong values[6 + 2 * MAX_SEARCH_ENCODES];
+    int count = 6, i;
+    values[0] = metrics->decodeNanos;
+    values[1] = metrics->scaleNanos;
+    values[2] = metrics->encodeNanos;
+    values[3] = (jlong) metrics->pixelBytes;
+    values[4] = (jlong) (metrics->ssim * 1000000 + 0.5);
+    values[5] = metrics->searches;
+    for (i = 0; i < metrics->searches; i++) {
+        values[count++] = metrics->searchQuality[i];
+        values[count++] = (jlong) metrics->searchSize[i];
+    }
+    if ((array = env->NewLongArray(count)) != nullptr) env->SetLongArrayRegion(array, 0, count, values);
+    return array;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_writeResult(JNIEnv *env, jclass clazz, jlong handle, jstring out) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    const char *dst = env->GetStringUTFChars(out, nullptr);
+    int retval = writeFile(dst, result->jpegBuf, result->jpegSize);
+    env->ReleaseStringUTFChars(out, dst);
+    return retval < 0 ? -1 : (jint) result->jpegSize;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_copyResult(JNIEnv *env, jclass clazz, jlong handle, jobject out) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    unsigned char *dst = (unsigned char *) env->GetDirectBufferAddress(out);
+    if (dst == nullptr || env->GetDirectBufferCapacity(out) < (jlong) result->jpegSize) {
+        printf("ERROR while writing output buffer:\nbuffer is not direct or too small for %ld byte\n", result->jpegSize);
+        return -1;
+    }
+    memcpy(dst, result->jpegBuf, result->jpegSize);
+    return (jint) result->jpegSize;
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_getResult(JNIEnv *env, jclass clazz, jlong handle) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    jbyteArray data;
+    if ((data = env->NewByteArray((jsize) result->jpegSize)) != nullptr)
+        env->SetByteArrayRegion(data, 0, (jsize) result->jpegSize, (const jbyte *) result->jpegBuf);
+    return data;
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_resultBuffer(JNIEnv *env, jclass clazz, jlong handle) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    return env->NewDirectByteBuffer(result->jpegBuf, (jlong) result->jpegSize);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_freeResult(JNIEnv *env, jclass clazz, jlong handle) {
+    jpegresult *result = (jpegresult *) (intptr_t) handle;
+    if (result == nullptr) return;
+    releaseBuffer(result->jpegBuf, result->capacity);
+    free(result);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_beginStrips(JNIEnv *env, jclass clazz, jint width, jint height,
+                                                         jint quality, jint options, jint stripHeight) {
+    stripencoder *encoder;
+    /* The pixels are not known before the first strip, so automatic subsampling falls back to 4:2:0. */
+    if ((encoder = (stripencoder *) malloc(sizeof(stripencoder))) == nullptr) return 0;
+    if (stripEncoderBegin(width, height, quality, requestedSubsamp(options, -1), stripHeight, encoder) < 0) {
+        free(encoder);
+        return 0;
+    }
+    return (jlong) (intptr_t) encoder;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_writeStrip(JNIEnv *env, jclass clazz, jlong handle, jobject bitmap,
+                                                        jint firstRow, jint rows) {
+    stripencoder *encoder = (stripencoder *) (intptr_t) handle;
+    AndroidBitmapInfo info;
+    unsigned char *pixels = nullptr;
+    int retval;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) < 0 || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 ||
+        (int) info.width != encoder->width || firstRow < 0 || firstRow + rows > (int) info.height) {
+        printf("ERROR while writing strip:\nBitmap must be ARGB_8888, %d pixels wide and at least %d rows high\n",
+               encoder->width, firstRow + rows);
+        return -1;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, (void **) &pixels) < 0) return -1;
+    retval = stripEncoderWrite(encoder, pixels + (size_t) firstRow * info.stride, (int) info.stride, rows, TJPF_RGBX);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return retval;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_finishStrips(JNIEnv *env, jclass clazz, jlong handle,
+                                                          jint options) {
+    stripencoder *encoder = (stripencoder *) (intptr_t) handle;
+    jpegresult result;
+    int retval;
+    long long start;
+    memset(&result, 0, sizeof(jpegresult));
+    retval = stripEncoderFinish(encoder, &result);
+    free(encoder);
+    if (retval < 0) return 0;
+    /* Strips are stitched at restart markers and cannot be progressive, so both options give optimized tables. */
+    if (options != 0) {
+        start = nowNanos();
+        optimizeOutput(&result.jpegBuf, &result.jpegSize, &result.capacity);
+        result.metrics.encodeNanos += nowNanos() - start;
+    }
+    return newResult(&result);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_abortStrips(JNIEnv *env, jclass clazz, jlong handle) {
+    stripencoder *encoder = (stripencoder *) (intptr_t) handle;
+    if (encoder == nullptr) return;
+    tjFree(encoder->jpegBuf);
+    releaseBuffer(encoder->stripBuf, encoder->stripCapacity);
+    free(encoder);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_setBufferPoolLimit(JNIEnv *env, jclass clazz, jlong maxBytes) {
+    std::lock_guard<std::mutex> lock(bufferPoolLock);
+    bufferPoolLimit = (unsigned long) maxBytes;
+    trimBufferPool(bufferPoolLimit);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_setEncodeThreadLimit(JNIEnv *env, jclass clazz, jint threads) {
+    encodeThreadLimit = threads;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_trimBufferPool(JNIEnv *env, jclass clazz, jlong maxBytes) {
+    std::lock_guard<std::mutex> lock(bufferPoolLock);
+    trimBufferPool((unsigned long) maxBytes);
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_scalingFactors(JNIEnv *env, jclass clazz) {
+    tjscalingfactor *factors;
+    jintArray result;
+    jint *elements;
+    int count = 0, i;
+    if ((factors = tjGetScalingFactors(&count)) == nullptr) {
+        printf("ERROR while getting scaling factors:\n%s\n", tjGetErrorStr2(nullptr));
+        return env->NewIntArray(0);
+    }
+    if ((result = env->NewIntArray(count * 2)) == nullptr) return nullptr;
+    elements = env->GetIntArrayElements(result, nullptr);
+    for (i = 0; i < count; i++) {
+        elements[i * 2] = factors[i].num;
+        elements[i * 2 + 1] = factors[i].denom;
+    }
+    env->ReleaseIntArrayElements(result, elements, 0);
+    return result;
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_pglvee_lib_1compress_ImageInfo_probe(JNIEnv *env, jclass clazz, jobject buffer, jbyteArray array,
+                                              jint offset, jint length) {
+    jpeginput input;
+    imageinfo info;
+    jintArray result;
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return nullptr;
+    /* A truncated header may fail after the size was read, report it as unrecognized. */
+    if (probeImage(input.buf, input.size, &info) < 0) info.width = info.height = 0;
+    releaseInput(env, &input);
+    int values[7] = {info.format, info.width, info.height, info.subsamp, info.colorspace, info.orientation,
+                     info.quality};
+    if ((result = env->NewIntArray(7)) != nullptr) env->SetIntArrayRegion(result, 0, 7, values);
+    return result;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_pglvee_lib_1compress_CompressEngine_bitmapDecompress(JNIEnv *env, jclass clazz, jobject buffer,
+                                                                  jbyteArray array, jint offset, jint length,
+                                                                  jobject bitmap) {
+    jpeginput input;
+    int retval;
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return -1;
+    retval = bitmapDecompress(env, input.buf, input.size, bitmap, 0);
+    releaseInput(env, &input);
+    return retval;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_pglvee_lib_1compress_ResultCache_hash(JNIEnv *env, jclass clazz, jobject buffer, jbyteArray array,
+                                               jint offset, jint length, jlong seed) {
+    jpeginput input;
+    uint64_t h;
+    if (getInput(env, buffer, array, offset, length, &input) < 0) return 0;
+    h = hashData(input.buf, input.size, (uint64_t) seed);
+    releaseInput(env, &input);
+    return (jlong) h;
 }
@@ -0,0 +1,70 @@
+package com.pglvee.lib_compress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ByteBufferInputStream}从position读到limit，不改变原buffer
+ */
+public class ByteBufferInputStreamTest {
+
+    private static ByteBuffer direct(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++)
+            buffer.put((byte) (i * 7));
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[100];
+        int n;
+        while ((n = in.read(chunk, 0, chunk.length)) > 0)
+            out.write(chunk, 0, n);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsRemainingBytes() throws IOException {
+        ByteBuffer buffer = direct(1000);
+        buffer.position(10).limit(900);
+        byte[] expected = new byte[890];
+        buffer.duplicate().get(expected);
+
+        InputStream in = new ByteBufferInputStream(buffer);
+        assertEquals(890, in.available());
+        assertEquals(expected[0] & 0xff, in.read());
+        byte[] rest = readAll(in);
+        assertEquals(889, rest.length);
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[1], 0, 1));
+        assertEquals(0, in.read(new byte[1], 0, 0));
+        // 原buffer的position和limit不变
+        assertEquals(10, buffer.position());
+        assertEquals(900, buffer.limit());
+        assertArrayEquals(expected, readAll(new ByteBufferInputStream(buffer)));
+    }
+
+    @Test
+    public void skipAndReset() throws IOException {
+        ByteBuffer buffer = direct(300);
+        InputStream in = new ByteBufferInputStream(buffer);
+        assertEquals(100, in.skip(100));
+        in.mark(0);
+        int value = in.read();
+        assertEquals(buffer.get(100) & 0xff, value);
+        assertEquals(199, in.skip(1000));
+        assertEquals(0, in.skip(1));
+        in.reset();
+        assertEquals(value, in.read());
+        assertEquals(0, in.skip(-5));
+    }
+}
@@ -0,0 +1,26 @@
+package com.pglvee.lib_compress;
+
+import org.junit.Assume;
+
+/**
+ * JVM单元测试中的liblight.so：由 -PhostNative 为桌面编译，没有时跳过依赖native的测试
+ */
+final class HostNative {
+
+    private static Boolean loaded;
+
+    private HostNative() {
+    }
+
+    static synchronized void assumeLoaded() {
+        if (loaded == null) {
+            try {
+                System.loadLibrary("light");
+                loaded = true;
+            } catch (UnsatisfiedLinkError e) {
+                loaded = false;
+            }
+        }
+        Assume.assumeTrue("liblight is not built for the host", loaded);
+    }
+}
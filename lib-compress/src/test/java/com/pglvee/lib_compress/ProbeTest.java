@@ -0,0 +1,361 @@
+package com.pglvee.lib_compress;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.NodeList;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ImageInfo#probe(ByteBuffer)}对各种格式文件头的解析，以及截断和损坏的文件头。
+ * native需要为桌面编译的liblight.so，没有时跳过；测试图片由javax.imageio生成
+ */
+public class ProbeTest {
+
+    private static final String JPEG = "image/jpeg";
+    private static final String PNG = "image/png";
+    private static final String GIF = "image/gif";
+    private static final String BMP = "image/x-ms-bmp";
+    private static final String WEBP = "image/webp";
+    private static final String UNKNOWN = "image/*";
+
+    @Before
+    public void setUp() {
+        HostNative.assumeLoaded();
+    }
+
+    /**
+     * 读取数据的副本，每次都放在恰好等于长度的direct buffer中
+     */
+    private static ImageInfo probe(byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, 0, length).flip();
+        return ImageInfo.probe(buffer);
+    }
+
+    private static ImageInfo probe(byte[] data) {
+        return probe(data, data.length);
+    }
+
+    private static void assertSize(String mimeType, int width, int height, ImageInfo info) {
+        assertEquals("format", mimeType, info.mimeType);
+        assertEquals("width", width, info.width);
+        assertEquals("height", height, info.height);
+    }
+
+    /**
+     * 每一个前缀都只能得到正确的宽高或者无法识别，短于minLength时一定无法识别
+     */
+    private static void assertTruncated(byte[] data, int minLength, int width, int height) {
+        for (int length = 0; length < data.length; length++) {
+            ImageInfo info = probe(data, length);
+            if (length < minLength || info.width == 0)
+                assertTrue("length " + length, info.width == 0 && info.height == 0);
+            else
+                assertTrue("length " + length, info.width == width && info.height == height);
+        }
+    }
+
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x40);
+        }
+        return image;
+    }
+
+    private static byte[] imageIO(String format, int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image(width, height, BufferedImage.TYPE_INT_RGB), format, out));
+        return out.toByteArray();
+    }
+
+    /**
+     * 基线jpeg，彩色图片为4:2:0，fullChroma时所有分量都不做色度采样即4:4:4
+     */
+    private static byte[] jpeg(int width, int height, int type, boolean fullChroma) throws IOException {
+        BufferedImage image = image(width, height, type);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (fullChroma) {
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(format);
+            NodeList components = tree.getElementsByTagName("componentSpec");
+            for (int i = 0; i < components.getLength(); i++) {
+                IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+                component.setAttribute("HsamplingFactor", "1");
+                component.setAttribute("VsamplingFactor", "1");
+            }
+            metadata.setFromTree(format, tree);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        return jpeg(width, height, BufferedImage.TYPE_INT_RGB, false);
+    }
+
+    @Test
+    public void jpegSizeSubsampAndColorspace() throws IOException {
+        // {subsamp, colorspace}：4:2:0、4:4:4、灰度
+        ImageInfo[] infos = {
+                probe(jpeg(37, 23, BufferedImage.TYPE_INT_RGB, false)),
+                probe(jpeg(37, 23, BufferedImage.TYPE_INT_RGB, true)),
+                probe(jpeg(37, 23, BufferedImage.TYPE_BYTE_GRAY, false))};
+        int[][] expected = {{2, 1}, {0, 1}, {3, 2}};
+        for (int i = 0; i < infos.length; i++) {
+            assertSize(JPEG, 37, 23, infos[i]);
+            assertEquals("subsamp", expected[i][0], infos[i].subsamp);
+            assertEquals("colorspace", expected[i][1], infos[i].colorspace);
+            assertEquals("orientation", 0, infos[i].orientation);
+        }
+    }
+
+    @Test
+    public void exifOrientationInBothByteOrders() throws IOException {
+        byte[] jpeg = jpeg(16, 16);
+        for (boolean little : new boolean[]{false, true}) {
+            for (int orientation = 1; orientation <= 8; orientation++) {
+                ImageInfo info = probe(insert(jpeg, exif(orientation, little, 8)));
+                assertSize(JPEG, 16, 16, info);
+                assertEquals(orientation, info.orientation);
+            }
+        }
+    }
+
+    @Test
+    public void corruptExifHasNoOrientation() throws IOException {
+        byte[] jpeg = jpeg(16, 16);
+        byte[][] segments = {
+                exif(6, false, 0xffffffffL),
+                exif(6, true, 0xfffffffeL),
+                exif(6, false, 30),
+                segment(0xe1, ascii("Exif\0\0XX\0\52\0\0\0\10")),
+                segment(0xe1, ascii("Exif\0\0MM")),
+                segment(0xe1, ascii("http://ns.adobe.com/xap/1.0/\0<x/>")),
+        };
+        for (byte[] segment : segments) {
+            ImageInfo info = probe(insert(jpeg, segment));
+            assertSize(JPEG, 16, 16, info);
+            assertEquals(0, info.orientation);
+        }
+    }
+
+    @Test
+    public void truncatedJpeg() throws IOException {
+        byte[] jpeg = insert(jpeg(40, 30), exif(6, true, 8));
+        // 各段的起始位置，直到SOS
+        int sofEnd = -1, start = 2;
+        List<Integer> starts = new ArrayList<>();
+        while ((jpeg[start + 1] & 0xff) != 0xda) {
+            starts.add(start);
+            int end = start + 2 + ((jpeg[start + 2] & 0xff) << 8 | jpeg[start + 3] & 0xff);
+            if ((jpeg[start + 1] & 0xff) == 0xc0)
+                sofEnd = end;
+            start = end;
+        }
+        starts.add(start);
+        assertTrue(sofEnd > 0);
+        for (int length = 0; length <= start + 4; length++) {
+            int segment = 0;
+            for (int s : starts)
+                segment = s <= length ? s : segment;
+            // 在段的边界截断时文件头完整，在段中间截断时无法识别，SOF之前截断时没有尺寸
+            boolean complete = length >= sofEnd && (length - segment < 4 || segment == start);
+            ImageInfo info = probe(jpeg, length);
+            assertEquals("length " + length, complete ? 40 : 0, info.width);
+            assertEquals("length " + length, complete ? 30 : 0, info.height);
+        }
+    }
+
+    @Test
+    public void corruptJpeg() throws IOException {
+        byte[] jpeg = jpeg(16, 16);
+        byte[] soi = Arrays.copyOf(jpeg, 2);
+        byte[][] corrupt = {
+                // 段长度小于2
+                insert(jpeg, new byte[]{(byte) 0xff, (byte) 0xe2, 0, 1}),
+                // 段长度超过文件
+                insert(soi, new byte[]{(byte) 0xff, (byte) 0xe2, (byte) 0xff, (byte) 0xff, 0, 0}),
+                // 段之间不是0xff
+                insert(jpeg, new byte[]{0x12, 0x34, 0x56, 0x78}),
+                // 只有SOI
+                {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9},
+                // 没有分量和超过4个分量的SOF
+                insert(soi, segment(0xc0, new byte[]{8, 0, 16, 0, 16, 0})),
+                insert(soi, segment(0xc0, new byte[]{8, 0, 16, 0, 16, 5})),
+                // 分量信息超出SOF
+                insert(soi, segment(0xc0, new byte[]{8, 0, 16, 0, 16, 3, 1, 0x22, 0})),
+                // 宽高为0
+                insert(soi, segment(0xc0, new byte[]{8, 0, 0, 0, 16, 1, 1, 0x11, 0})),
+        };
+        for (byte[] data : corrupt) {
+            ImageInfo info = probe(data);
+            assertEquals(0, info.width);
+            assertEquals(0, info.height);
+        }
+    }
+
+    @Test
+    public void fillBytesBetweenSegments() throws IOException {
+        byte[] filled = insert(jpeg(16, 8), new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff});
+        assertSize(JPEG, 16, 8, probe(filled));
+    }
+
+    @Test
+    public void png() throws IOException {
+        byte[] png = imageIO("png", 301, 17);
+        assertSize(PNG, 301, 17, probe(png));
+        assertTruncated(Arrays.copyOf(png, 64), 24, 301, 17);
+        // IHDR之外的第一个块
+        byte[] corrupt = png.clone();
+        corrupt[12] = 'I';
+        corrupt[13] = 'D';
+        corrupt[14] = 'A';
+        corrupt[15] = 'T';
+        assertSize(UNKNOWN, 0, 0, probe(corrupt));
+    }
+
+    @Test
+    public void gif() throws IOException {
+        byte[] gif = imageIO("gif", 513, 2);
+        assertSize(GIF, 513, 2, probe(gif));
+        assertTruncated(Arrays.copyOf(gif, 32), 10, 513, 2);
+    }
+
+    @Test
+    public void bmp() throws IOException {
+        byte[] bmp = imageIO("bmp", 70, 1025);
+        assertSize(BMP, 70, 1025, probe(bmp));
+        assertTruncated(Arrays.copyOf(bmp, 64), 26, 70, 1025);
+
+        // 自上而下的位图高度为负数
+        ByteBuffer topDown = ByteBuffer.wrap(bmp.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        topDown.putInt(22, -1025);
+        assertSize(BMP, 70, 1025, probe(topDown.array()));
+
+        // OS/2的12字节BITMAPCOREHEADER使用16位宽高
+        ByteBuffer core = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+        core.put((byte) 'B').put((byte) 'M').putInt(26).putInt(0).putInt(26)
+                .putInt(12).putShort((short) 300).putShort((short) 200).putShort((short) 1).putShort((short) 24);
+        assertSize(BMP, 300, 200, probe(core.array()));
+    }
+
+    @Test
+    public void webp() {
+        // 有损VP8：关键帧起始码之后是14位宽高
+        ByteBuffer lossy = riff("VP8 ", 10);
+        lossy.put(20, (byte) 0x10).put(23, (byte) 0x9d).put(24, (byte) 0x01).put(25, (byte) 0x2a)
+                .putShort(26, (short) 1920).putShort(28, (short) 1080);
+        assertSize(WEBP, 1920, 1080, probe(lossy.array()));
+        assertTruncated(lossy.array(), 30, 1920, 1080);
+        lossy.put(23, (byte) 0);
+        assertSize(WEBP, 0, 0, probe(lossy.array()));
+
+        // 无损VP8L：签名0x2f之后是两个14位的宽高减1
+        ByteBuffer lossless = riff("VP8L", 10);
+        lossless.put(20, (byte) 0x2f).putInt(21, (640 - 1) | (480 - 1) << 14);
+        assertSize(WEBP, 640, 480, probe(lossless.array()));
+        assertTruncated(lossless.array(), 30, 640, 480);
+
+        // 扩展格式VP8X：24位的宽高减1
+        ByteBuffer extended = riff("VP8X", 10);
+        extended.put(24, (byte) 0x7f).put(25, (byte) 0x07).put(26, (byte) 0x00)
+                .put(27, (byte) 0x37).put(28, (byte) 0x04).put(29, (byte) 0x00);
+        assertSize(WEBP, 1920, 1080, probe(extended.array()));
+        assertTruncated(extended.array(), 30, 1920, 1080);
+
+        assertSize(WEBP, 0, 0, probe(riff("ALPH", 10).array()));
+    }
+
+    @Test
+    public void unknownFormat() {
+        assertSize(UNKNOWN, 0, 0, probe(ascii("GIF7a not an image")));
+        assertSize(UNKNOWN, 0, 0, probe(new byte[64]));
+        assertSize(UNKNOWN, 0, 0, probe(new byte[0]));
+        assertSize(UNKNOWN, 0, 0, probe(new byte[]{(byte) 0xff, (byte) 0xd8}));
+    }
+
+    /**
+     * 30字节的RIFF WEBP文件头，chunk之后的内容由调用方填写
+     */
+    private static ByteBuffer riff(String chunk, int chunkSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(ascii("RIFF")).putInt(22).put(ascii("WEBP")).put(ascii(chunk)).putInt(chunkSize);
+        return buffer;
+    }
+
+    /**
+     * 在SOI之后插入segments
+     */
+    private static byte[] insert(byte[] jpeg, byte[]... segments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        for (byte[] segment : segments)
+            out.write(segment, 0, segment.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    /**
+     * 标记为0xff marker、内容为payload的段
+     */
+    private static byte[] segment(int marker, byte[] payload) {
+        ByteBuffer segment = ByteBuffer.allocate(4 + payload.length);
+        segment.put((byte) 0xff).put((byte) marker).putShort((short) (payload.length + 2)).put(payload);
+        return segment.array();
+    }
+
+    /**
+     * 只含Orientation的Exif APP1，little为true时使用Intel字节序
+     *
+     * @param ifdOffset 第一个IFD相对TIFF头的偏移，正常为8
+     */
+    private static byte[] exif(int orientation, boolean little, long ifdOffset) {
+        ByteBuffer payload = ByteBuffer.allocate(32).order(little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        payload.put(ascii("Exif\0\0")).put(ascii(little ? "II" : "MM"));
+        payload.putShort((short) 42).putInt((int) ifdOffset);
+        // 一个IFD项：Orientation，SHORT，1个值
+        payload.putShort((short) 1).putShort((short) 0x0112).putShort((short) 3).putInt(1)
+                .putShort((short) orientation).putShort((short) 0);
+        payload.putInt(0);
+        return segment(0xe1, payload.array());
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) text.charAt(i);
+        return data;
+    }
+}
@@ -0,0 +1,210 @@
+package com.pglvee.lib_compress;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ResultCache}的key、文件名中的结果信息、先写临时文件再重命名和按最近最少使用删除。
+ * native的哈希需要为桌面编译的liblight.so，没有时跳过
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ResultCacheTest {
+
+    private static final byte[] INPUT = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        HostNative.assumeLoaded();
+    }
+
+    private static ImageInfo info(byte[] data) {
+        return new ImageInfo("image/jpeg", 1600, 1200, 2, 1, 1, 90, ByteBuffer.wrap(data));
+    }
+
+    private static CompressRequest.Builder request() {
+        return CompressRequest.newBuilder().src(INPUT).size(800, 600).quality(80);
+    }
+
+    @Test
+    public void keyChangesWithEveryOption() {
+        List<CompressRequest> requests = Arrays.asList(
+                request().build(),
+                request().size(800, 601).build(),
+                request().quality(81).build(),
+                request().max(100_000).build(),
+                request().crop(1.5f).build(),
+                request().rotate().build(),
+                request().rotate(90).build(),
+                request().background(0xffffffff).build(),
+                request().stream(true).build(),
+                request().output(CompressRequest.OUTPUT_OPTIMIZED).build(),
+                request().output(CompressRequest.OUTPUT_PROGRESSIVE).build(),
+                request().ssim(0.98f).build(),
+                request().subsampling(CompressRequest.SUBSAMPLING_AUTO).build(),
+                request().subsampling(CompressRequest.SUBSAMPLING_444).build(),
+                request().format(ImageEncoder.WEBP).build());
+        Set<String> keys = new HashSet<>();
+        for (CompressRequest request : requests)
+            assertTrue(keys.add(ResultCache.key(request, info(INPUT))));
+
+        byte[] other = INPUT.clone();
+        other[other.length - 1]++;
+        assertFalse(keys.contains(ResultCache.key(request().build(), info(other))));
+        // 输出位置和相同的参数不影响key
+        assertEquals(ResultCache.key(request().build(), info(INPUT)),
+                ResultCache.key(request().dst(new File(folder.getRoot(), "out.jpg")).build(), info(INPUT.clone())));
+        assertEquals(ResultCache.key(request().rotate(90).build(), info(INPUT)),
+                ResultCache.key(request().rotate(-270).build(), info(INPUT)));
+    }
+
+    @Test
+    public void noKeyWithoutReadableInput() {
+        assertNull(ResultCache.key(request().build(), new ImageInfo("image/jpeg", 1600, 1200, 2, 1, 1, 90, null)));
+        assertNull(ResultCache.key(request().dst(FileDescriptor.out).build(), info(INPUT)));
+    }
+
+    @Test
+    public void hitRestoresResultAfterReopen() throws IOException {
+        File directory = folder.newFolder("cache");
+        byte[] jpeg = output(1000, 1);
+        String key = put(new ResultCache(directory, 1 << 20), jpeg);
+
+        // 重新打开时从文件名恢复宽高、质量和采样方式
+        ResultCache cache = new ResultCache(directory, 1 << 20);
+        assertEquals(jpeg.length, cache.getSize());
+        File hit = new File(folder.getRoot(), "hit.jpg");
+        CompressResult result = new CompressResult();
+        assertTrue(cache.get(key, request().dst(hit).build(), result));
+        assertTrue(result.isSuccess());
+        assertArrayEquals(jpeg, Files.readAllBytes(hit.toPath()));
+        assertArrayEquals(new int[]{1600, 1200}, result.inSize());
+        assertArrayEquals(new int[]{800, 600}, result.outSize());
+        assertEquals(80, result.getQuality());
+        assertEquals(2, result.getSubsamp());
+        assertEquals(jpeg.length, result.getSize());
+
+        result = new CompressResult();
+        assertTrue(cache.get(key, request().build(), result));
+        assertArrayEquals(jpeg, result.getData());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length + 10);
+        buffer.position(10);
+        result = new CompressResult();
+        assertTrue(cache.get(key, request().dst(buffer).build(), result));
+        assertEquals(jpeg.length + 10, buffer.position());
+        // 容量不足时与native一样失败
+        result = new CompressResult();
+        assertTrue(cache.get(key, request().dst(ByteBuffer.allocateDirect(jpeg.length - 1)).build(), result));
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void putRenamesTempFileAndOpenDeletesLeftovers() throws IOException {
+        File directory = folder.newFolder("cache");
+        File temp = new File(directory, "1234-1.tmp");
+        File unknown = new File(directory, "unknown.jpg");
+        assertTrue(temp.createNewFile());
+        assertTrue(unknown.createNewFile());
+        ResultCache cache = new ResultCache(directory, 1 << 20);
+        assertFalse(temp.exists());
+        assertFalse(unknown.exists());
+
+        String key = put(cache, output(100, 2));
+        String[] names = directory.list();
+        assertNotNull(names);
+        assertEquals(1, names.length);
+        assertEquals(key + "_1600_1200_800_600_80_2.jpg", names[0]);
+    }
+
+    @Test
+    public void trimEvictsLeastRecentlyUsed() throws IOException {
+        File directory = folder.newFolder("cache");
+        ResultCache cache = new ResultCache(directory, 1 << 20);
+        String a = put(cache, output(100, 3));
+        String b = put(cache, output(100, 4));
+        String c = put(cache, output(100, 5));
+        assertTrue(cache.get(a, request().build(), new CompressResult()));
+
+        cache.setMaxSize(200);
+        assertEquals(200, cache.getSize());
+        assertFalse(cache.get(b, request().build(), new CompressResult()));
+        assertTrue(cache.get(a, request().build(), new CompressResult()));
+        assertTrue(cache.get(c, request().build(), new CompressResult()));
+    }
+
+    @Test
+    public void reopenRestoresUseOrder() throws IOException {
+        File directory = folder.newFolder("cache");
+        ResultCache cache = new ResultCache(directory, 1 << 20);
+        String[] keys = {put(cache, output(100, 6)), put(cache, output(100, 7)), put(cache, output(100, 8))};
+        // 修改时间保存使用顺序：keys[1]最早使用
+        long now = System.currentTimeMillis();
+        int[] ages = {20, 30, 10};
+        for (File file : directory.listFiles()) {
+            for (int i = 0; i < keys.length; i++) {
+                if (file.getName().startsWith(keys[i]))
+                    assertTrue(file.setLastModified(now - ages[i] * 1000L));
+            }
+        }
+
+        cache = new ResultCache(directory, 200);
+        assertEquals(200, cache.getSize());
+        assertFalse(cache.get(keys[1], request().build(), new CompressResult()));
+        assertTrue(cache.get(keys[0], request().build(), new CompressResult()));
+        assertTrue(cache.get(keys[2], request().build(), new CompressResult()));
+    }
+
+    private static byte[] output(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    /**
+     * 以output为内容的输入图片写入一个结果，返回key
+     */
+    private String put(ResultCache cache, byte[] data) throws IOException {
+        File file = folder.newFile("out" + data[0] + ".jpg");
+        Files.write(file.toPath(), data);
+        CompressRequest request = request().src(data).dst(file).build();
+        CompressResult result = new CompressResult();
+        result.success = true;
+        result.size = data.length;
+        result.inWidth = 1600;
+        result.inHeight = 1200;
+        result.outWidth = 800;
+        result.outHeight = 600;
+        result.quality = 80;
+        result.subsamp = 2;
+        String key = ResultCache.key(request, info(data));
+        cache.put(key, request, result);
+        return key;
+    }
+}